@@ -0,0 +1,431 @@
+/**
+ * This file is part of the PetalVault-Android password manager distribution.
+ * See <https://github.com/F33RNI/PetalVault-Android>.
+ * Copyright (C) 2024 Fern Lane
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, version 3.
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.f3rni.petalvault;
+
+import org.spongycastle.crypto.digests.Blake2bDigest;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Argon2 (RFC 9106, version 0x13) with lanes computed concurrently on the common pool.
+ * Like ScryptKdf, derivations are serialized by the lock of a single memory arena that is zero-filled
+ * after each derivation and is kept only until the batch of derivations is finished (see releaseArena())
+ */
+public class Argon2Kdf {
+    public static final int TYPE_D = 0;
+    public static final int TYPE_I = 1;
+    public static final int TYPE_ID = 2;
+
+    private static final int VERSION = 0x13;
+    private static final int BLOCK_LONGS = 128;
+    private static final int BLOCK_BYTES = BLOCK_LONGS * 8;
+    private static final int SYNC_POINTS = 4;
+
+    private static final ReentrantLock arenaLock = new ReentrantLock();
+    private static long[] arenaMemory;
+    private static volatile boolean releaseRequested;
+
+    /**
+     * Derives key using Argon2id
+     *
+     * @param password   password bytes
+     * @param salt       salt bytes (at least 8)
+     * @param memory     memory size in KiB
+     * @param iterations number of passes
+     * @param lanes      degree of parallelism
+     * @param length     length of derived key in bytes
+     * @return derived key
+     */
+    public static byte[] generate(byte[] password, byte[] salt, int memory, int iterations, int lanes, int length) {
+        return generate(TYPE_ID, password, salt, null, null, memory, iterations, lanes, length);
+    }
+
+    /**
+     * Derives key using Argon2
+     *
+     * @param type           TYPE_D, TYPE_I or TYPE_ID
+     * @param password       password bytes
+     * @param salt           salt bytes (at least 8)
+     * @param secret         optional secret value or null
+     * @param associatedData optional associated data or null
+     * @param memory         memory size in KiB
+     * @param iterations     number of passes
+     * @param lanes          degree of parallelism
+     * @param length         length of derived key in bytes
+     * @return derived key
+     */
+    public static byte[] generate(int type, byte[] password, byte[] salt, byte[] secret, byte[] associatedData,
+                                  int memory, int iterations, int lanes, int length) {
+        if (type < TYPE_D || type > TYPE_ID) throw new IllegalArgumentException("Unknown Argon2 type");
+        if (password == null || salt == null) throw new IllegalArgumentException("Password and salt must not be null");
+        if (salt.length < 8) throw new IllegalArgumentException("Salt must be at least 8 bytes long");
+        if (lanes < 1 || lanes > 0xffffff) throw new IllegalArgumentException("Lanes must be in [1, 2^24 - 1]");
+        if (iterations < 1) throw new IllegalArgumentException("Iterations must be >= 1");
+        if (memory < 8 * lanes) throw new IllegalArgumentException("Memory must be >= 8 * lanes KiB");
+        if (length < 4) throw new IllegalArgumentException("Derived key length must be >= 4");
+        if (secret == null) secret = new byte[0];
+        if (associatedData == null) associatedData = new byte[0];
+
+        // Memory is rounded down to a multiple of 4 * lanes blocks
+        int segmentLength = memory / (lanes * SYNC_POINTS);
+        int laneLength = segmentLength * SYNC_POINTS;
+        int blocks = laneLength * lanes;
+        if ((long) blocks * BLOCK_LONGS > Integer.MAX_VALUE - 8) throw new IllegalArgumentException("Memory is too large");
+
+        Instance instance = new Instance(type, iterations, lanes, blocks, laneLength, segmentLength);
+        byte[] h0 = initialHash(type, password, salt, secret, associatedData, memory, iterations, lanes, length);
+        try {
+            arenaLock.lock();
+            try {
+                instance.memory = arena(blocks * BLOCK_LONGS);
+                try {
+                    fillFirstBlocks(instance, h0);
+                    for (int pass = 0; pass < iterations; pass++)
+                        for (int slice = 0; slice < SYNC_POINTS; slice++)
+                            fillSlice(instance, pass, slice);
+                    return finalHash(instance, length);
+                } finally {
+                    Arrays.fill(instance.memory, 0, blocks * BLOCK_LONGS, 0);
+                    instance.memory = null;
+                }
+            } finally {
+                arenaLock.unlock();
+
+                // Release was requested while arena was in use
+                if (releaseRequested) releaseArena();
+            }
+        } finally {
+            Arrays.fill(h0, (byte) 0);
+        }
+    }
+
+    /**
+     * Drops memory arena (see PetalVaultApplication.onTrimMemory()). Doesn't block: if derivation is running,
+     * arena is dropped right after it
+     */
+    public static void releaseArena() {
+        releaseRequested = true;
+        if (!arenaLock.tryLock()) return;
+        try {
+            releaseLocked();
+        } finally {
+            arenaLock.unlock();
+        }
+    }
+
+    /**
+     * Drops memory arena. Must be called under arenaLock
+     */
+    private static void releaseLocked() {
+        arenaMemory = null;
+        releaseRequested = false;
+    }
+
+    /**
+     * @return memory arena with at least size longs. Must be called under arenaLock
+     */
+    private static long[] arena(int size) {
+        if (arenaMemory == null || arenaMemory.length < size) {
+            // Let the old arena be collected before allocating the new one
+            arenaMemory = null;
+            arenaMemory = new long[size];
+        }
+        return arenaMemory;
+    }
+
+    private static byte[] initialHash(int type, byte[] password, byte[] salt, byte[] secret, byte[] associatedData,
+                                      int memory, int iterations, int lanes, int length) {
+        Blake2bDigest digest = blake2b(64);
+        updateInt(digest, lanes);
+        updateInt(digest, length);
+        updateInt(digest, memory);
+        updateInt(digest, iterations);
+        updateInt(digest, VERSION);
+        updateInt(digest, type);
+        updateInt(digest, password.length);
+        digest.update(password, 0, password.length);
+        updateInt(digest, salt.length);
+        digest.update(salt, 0, salt.length);
+        updateInt(digest, secret.length);
+        digest.update(secret, 0, secret.length);
+        updateInt(digest, associatedData.length);
+        digest.update(associatedData, 0, associatedData.length);
+
+        // Room for block index and lane index
+        byte[] h0 = new byte[64 + 8];
+        digest.doFinal(h0, 0);
+        return h0;
+    }
+
+    private static void fillFirstBlocks(Instance instance, byte[] h0) {
+        byte[] blockBytes = new byte[BLOCK_BYTES];
+        for (int lane = 0; lane < instance.lanes; lane++) {
+            intToLittleEndian(lane, h0, 68);
+            for (int i = 0; i < 2; i++) {
+                intToLittleEndian(i, h0, 64);
+                hashVariable(h0, blockBytes);
+                int offset = (lane * instance.laneLength + i) * BLOCK_LONGS;
+                for (int k = 0; k < BLOCK_LONGS; k++) instance.memory[offset + k] = littleEndianToLong(blockBytes, k * 8);
+            }
+        }
+        Arrays.fill(blockBytes, (byte) 0);
+    }
+
+    /**
+     * Fills one slice of all lanes. Lane 0 is filled on the calling thread, others on the common pool
+     */
+    private static void fillSlice(Instance instance, int pass, int slice) {
+        ForkJoinTask<?>[] tasks = new ForkJoinTask<?>[instance.lanes];
+        try {
+            for (int lane = 1; lane < instance.lanes; lane++) {
+                final int laneFinal = lane;
+                tasks[lane] = ForkJoinPool.commonPool().submit(() -> fillSegment(instance, pass, slice, laneFinal));
+            }
+            fillSegment(instance, pass, slice, 0);
+        } finally {
+            // Next slice depends on this one and arena must not be touched by workers after returning
+            for (ForkJoinTask<?> task : tasks)
+                if (task != null) task.quietlyJoin();
+        }
+        for (ForkJoinTask<?> task : tasks)
+            if (task != null && task.isCompletedAbnormally())
+                throw new RuntimeException("Error filling Argon2 segment", task.getException());
+    }
+
+    private static void fillSegment(Instance instance, int pass, int slice, int lane) {
+        long[] memory = instance.memory;
+        long[] r = new long[BLOCK_LONGS];
+        long[] z = new long[BLOCK_LONGS];
+
+        // Argon2i and first half of the first pass of Argon2id use data-independent addressing
+        boolean dataIndependent = instance.type == TYPE_I || (instance.type == TYPE_ID && pass == 0 && slice < SYNC_POINTS / 2);
+        long[] addressInput = null, address = null, zero = null;
+        if (dataIndependent) {
+            addressInput = new long[BLOCK_LONGS];
+            address = new long[BLOCK_LONGS];
+            zero = new long[BLOCK_LONGS];
+            addressInput[0] = pass;
+            addressInput[1] = lane;
+            addressInput[2] = slice;
+            addressInput[3] = instance.blocks;
+            addressInput[4] = instance.iterations;
+            addressInput[5] = instance.type;
+        }
+
+        // First two blocks of each lane are already filled
+        int startIndex = pass == 0 && slice == 0 ? 2 : 0;
+        if (dataIndependent && startIndex != 0) nextAddresses(addressInput, address, zero, r, z);
+
+        int laneStart = lane * instance.laneLength;
+        int current = laneStart + slice * instance.segmentLength + startIndex;
+        int previous = current % instance.laneLength == 0 ? current + instance.laneLength - 1 : current - 1;
+
+        for (int index = startIndex; index < instance.segmentLength; index++, current++, previous++) {
+            if (current % instance.laneLength == 1) previous = current - 1;
+
+            long pseudoRandom;
+            if (dataIndependent) {
+                if (index % BLOCK_LONGS == 0) nextAddresses(addressInput, address, zero, r, z);
+                pseudoRandom = address[index % BLOCK_LONGS];
+            } else pseudoRandom = memory[previous * BLOCK_LONGS];
+
+            // Reference lane. The first slice of the first pass can only reference the current lane
+            int refLane = (int) ((pseudoRandom >>> 32) % instance.lanes);
+            if (pass == 0 && slice == 0) refLane = lane;
+
+            int refIndex = referenceIndex(instance, pass, slice, index, pseudoRandom & 0xffffffffL, refLane == lane);
+            int ref = refLane * instance.laneLength + refIndex;
+
+            fillBlock(memory, previous * BLOCK_LONGS, ref * BLOCK_LONGS, current * BLOCK_LONGS, pass != 0, r, z);
+        }
+    }
+
+    /**
+     * Maps J1 to the index of referenced block inside reference lane
+     */
+    private static int referenceIndex(Instance instance, int pass, int slice, int index, long j1, boolean sameLane) {
+        long areaSize;
+        if (pass == 0) {
+            if (sameLane) areaSize = slice * instance.segmentLength + index - 1;
+            else areaSize = slice * instance.segmentLength + (index == 0 ? -1 : 0);
+        } else {
+            if (sameLane) areaSize = instance.laneLength - instance.segmentLength + index - 1;
+            else areaSize = instance.laneLength - instance.segmentLength + (index == 0 ? -1 : 0);
+        }
+
+        long relativePosition = (j1 * j1) >>> 32;
+        relativePosition = areaSize - 1 - ((areaSize * relativePosition) >>> 32);
+
+        long startPosition = pass != 0 && slice != SYNC_POINTS - 1 ? (long) (slice + 1) * instance.segmentLength : 0;
+        return (int) ((startPosition + relativePosition) % instance.laneLength);
+    }
+
+    private static void nextAddresses(long[] addressInput, long[] address, long[] zero, long[] r, long[] z) {
+        addressInput[6]++;
+        compress(zero, 0, addressInput, 0, address, 0, false, r, z);
+        compress(zero, 0, address, 0, address, 0, false, r, z);
+    }
+
+    private static void fillBlock(long[] memory, int previous, int ref, int current, boolean xorOld, long[] r, long[] z) {
+        compress(memory, previous, memory, ref, memory, current, xorOld, r, z);
+    }
+
+    /**
+     * Compression function G. Result is written into out (XORed with it's old value if xorOld)
+     */
+    private static void compress(long[] x, int xOffset, long[] y, int yOffset, long[] out, int outOffset, boolean xorOld, long[] r, long[] z) {
+        for (int i = 0; i < BLOCK_LONGS; i++) r[i] = x[xOffset + i] ^ y[yOffset + i];
+        System.arraycopy(r, 0, z, 0, BLOCK_LONGS);
+
+        // Rows
+        for (int i = 0; i < 8; i++) {
+            int o = i * 16;
+            permute(z, o, o + 1, o + 2, o + 3, o + 4, o + 5, o + 6, o + 7,
+                    o + 8, o + 9, o + 10, o + 11, o + 12, o + 13, o + 14, o + 15);
+        }
+
+        // Columns
+        for (int i = 0; i < 8; i++) {
+            int o = i * 2;
+            permute(z, o, o + 1, o + 16, o + 17, o + 32, o + 33, o + 48, o + 49,
+                    o + 64, o + 65, o + 80, o + 81, o + 96, o + 97, o + 112, o + 113);
+        }
+
+        if (xorOld) for (int i = 0; i < BLOCK_LONGS; i++) out[outOffset + i] ^= z[i] ^ r[i];
+        else for (int i = 0; i < BLOCK_LONGS; i++) out[outOffset + i] = z[i] ^ r[i];
+    }
+
+    private static void permute(long[] v, int v0, int v1, int v2, int v3, int v4, int v5, int v6, int v7,
+                                int v8, int v9, int v10, int v11, int v12, int v13, int v14, int v15) {
+        mix(v, v0, v4, v8, v12);
+        mix(v, v1, v5, v9, v13);
+        mix(v, v2, v6, v10, v14);
+        mix(v, v3, v7, v11, v15);
+        mix(v, v0, v5, v10, v15);
+        mix(v, v1, v6, v11, v12);
+        mix(v, v2, v7, v8, v13);
+        mix(v, v3, v4, v9, v14);
+    }
+
+    private static void mix(long[] v, int a, int b, int c, int d) {
+        v[a] = fBlaMka(v[a], v[b]);
+        v[d] = Long.rotateRight(v[d] ^ v[a], 32);
+        v[c] = fBlaMka(v[c], v[d]);
+        v[b] = Long.rotateRight(v[b] ^ v[c], 24);
+        v[a] = fBlaMka(v[a], v[b]);
+        v[d] = Long.rotateRight(v[d] ^ v[a], 16);
+        v[c] = fBlaMka(v[c], v[d]);
+        v[b] = Long.rotateRight(v[b] ^ v[c], 63);
+    }
+
+    private static long fBlaMka(long x, long y) {
+        return x + y + 2 * (x & 0xffffffffL) * (y & 0xffffffffL);
+    }
+
+    private static byte[] finalHash(Instance instance, int length) {
+        // XOR last blocks of all lanes
+        long[] last = new long[BLOCK_LONGS];
+        for (int lane = 0; lane < instance.lanes; lane++) {
+            int offset = (lane * instance.laneLength + instance.laneLength - 1) * BLOCK_LONGS;
+            for (int k = 0; k < BLOCK_LONGS; k++) last[k] ^= instance.memory[offset + k];
+        }
+
+        byte[] lastBytes = new byte[BLOCK_BYTES];
+        for (int k = 0; k < BLOCK_LONGS; k++) longToLittleEndian(last[k], lastBytes, k * 8);
+        byte[] result = new byte[length];
+        hashVariable(lastBytes, result);
+        Arrays.fill(lastBytes, (byte) 0);
+        Arrays.fill(last, 0);
+        return result;
+    }
+
+    /**
+     * Variable-length hash function H'. Fills whole out
+     */
+    private static void hashVariable(byte[] input, byte[] out) {
+        Blake2bDigest digest = blake2b(Math.min(out.length, 64));
+        updateInt(digest, out.length);
+        digest.update(input, 0, input.length);
+        if (out.length <= 64) {
+            digest.doFinal(out, 0);
+            return;
+        }
+
+        // 32 bytes of each 64-bytes hash, the last hash is used whole
+        byte[] v = new byte[64];
+        digest.doFinal(v, 0);
+        System.arraycopy(v, 0, out, 0, 32);
+        int position = 32;
+        while (out.length - position > 64) {
+            digest = blake2b(64);
+            digest.update(v, 0, 64);
+            digest.doFinal(v, 0);
+            System.arraycopy(v, 0, out, position, 32);
+            position += 32;
+        }
+        digest = blake2b(out.length - position);
+        digest.update(v, 0, 64);
+        digest.doFinal(out, position);
+        Arrays.fill(v, (byte) 0);
+    }
+
+    /**
+     * @return Blake2b with any digest length from 1 to 64 bytes (the bits constructor only accepts 160, 256, 384 and 512)
+     */
+    private static Blake2bDigest blake2b(int digestLength) {
+        return new Blake2bDigest(null, digestLength, null, null);
+    }
+
+    private static void updateInt(Blake2bDigest digest, int value) {
+        digest.update((byte) value);
+        digest.update((byte) (value >>> 8));
+        digest.update((byte) (value >>> 16));
+        digest.update((byte) (value >>> 24));
+    }
+
+    private static void intToLittleEndian(int value, byte[] bytes, int offset) {
+        bytes[offset] = (byte) value;
+        bytes[offset + 1] = (byte) (value >>> 8);
+        bytes[offset + 2] = (byte) (value >>> 16);
+        bytes[offset + 3] = (byte) (value >>> 24);
+    }
+
+    private static void longToLittleEndian(long value, byte[] bytes, int offset) {
+        for (int i = 0; i < 8; i++) bytes[offset + i] = (byte) (value >>> (i * 8));
+    }
+
+    private static long littleEndianToLong(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = 7; i >= 0; i--) value = (value << 8) | (bytes[offset + i] & 0xff);
+        return value;
+    }
+
+    // Parameters and memory of a single derivation
+    private static class Instance {
+        final int type, iterations, lanes, blocks, laneLength, segmentLength;
+        long[] memory;
+
+        Instance(int type, int iterations, int lanes, int blocks, int laneLength, int segmentLength) {
+            this.type = type;
+            this.iterations = iterations;
+            this.lanes = lanes;
+            this.blocks = blocks;
+            this.laneLength = laneLength;
+            this.segmentLength = segmentLength;
+        }
+    }
+}
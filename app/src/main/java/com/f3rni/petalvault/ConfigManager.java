@@ -11,21 +11,49 @@
  * If not, see <http://www.gnu.org/licenses/>.
  */
 
+
 package com.f3rni.petalvault;
 
 import android.util.Log;
 
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+/**
+ * Config stored in config.json. Readers get values from an immutable in-memory snapshot, changes are made with
+ * edit() ... commit() / apply(), so each transaction replaces the snapshot and costs one atomic file write.
+ * All methods are thread-safe
+ */
 public class ConfigManager {
     private static final String TAG = ConfigManager.class.getName();
 
+    // Value of removed keys in Editor
+    private static final Object REMOVED = new Object();
+
     private final File configFile;
     private final String version;
-    private JSONObject config;
+    private final Object fileLock = new Object();
+    private final AtomicBoolean writeScheduled = new AtomicBoolean();
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "ConfigManager");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Current snapshot. It's never modified after being published
+    private volatile JSONObject config = new JSONObject();
+
+    // Modification time and size of config file after last read / write (to skip refresh() of unchanged file)
+    private long fileLastModified = -1, fileLength = -1;
 
     /**
      * Initializes ConfigManager instance
@@ -40,60 +68,193 @@ public class ConfigManager {
     }
 
     /**
-     * Refreshes config from file
+     * Refreshes config from file if it was changed since it was read or written by this instance.
+     * Ignored while changes made by apply() are not written yet
      */
     public void refresh() {
-        this.config = JSONFileUtils.readJsonFromFile(this.configFile);
+        synchronized (fileLock) {
+            if (writeScheduled.get()) return;
+            if (configFile.lastModified() == fileLastModified && configFile.length() == fileLength) return;
 
-        // Put version
-        try {
-            this.config.put("version", version);
-        } catch (JSONException e) {
-            Log.e(TAG, "Unable to put version into config", e);
+            JSONObject config = JSONFileUtils.readJsonFromFile(configFile);
+            fileLastModified = configFile.lastModified();
+            fileLength = configFile.length();
+
+            // Put version
+            try {
+                config.put("version", version);
+            } catch (JSONException e) {
+                Log.e(TAG, "Unable to put version into config", e);
+            }
+            this.config = config;
         }
     }
 
     /**
-     * Retrieves value from config by key
+     * Retrieves string value from config by key
      *
      * @param key          config key to get value of
-     * @param defaultValue value to return if key doesn't exists in config
+     * @param defaultValue value to return if key doesn't exists in config or it's not a string
      * @return key's value or defaultValue
      */
-    public Object get(String key, Object defaultValue) {
-        // Retrieve from config
-        if (config.has(key)) {
+    public String getString(String key, String defaultValue) {
+        Object value = config.opt(key);
+        return value instanceof String ? (String) value : defaultValue;
+    }
+
+    /**
+     * Retrieves boolean value from config by key
+     *
+     * @param key          config key to get value of
+     * @param defaultValue value to return if key doesn't exists in config or it's not a boolean
+     * @return key's value or defaultValue
+     */
+    public boolean getBoolean(String key, boolean defaultValue) {
+        Object value = config.opt(key);
+        return value instanceof Boolean ? (Boolean) value : defaultValue;
+    }
+
+    /**
+     * Retrieves copy of JSON object from config by key
+     *
+     * @param key config key to get value of
+     * @return copy of key's value (can be modified) or null if key doesn't exists in config or it's not an object
+     */
+    public JSONObject getJSONObject(String key) {
+        Object value = config.opt(key);
+        return value instanceof JSONObject ? (JSONObject) copy(value) : null;
+    }
+
+    /**
+     * Retrieves copy of JSON array from config by key
+     *
+     * @param key config key to get value of
+     * @return copy of key's value (can be modified) or empty array if key doesn't exists in config or it's not an array
+     */
+    public JSONArray getJSONArray(String key) {
+        Object value = config.opt(key);
+        return value instanceof JSONArray ? (JSONArray) copy(value) : new JSONArray();
+    }
+
+    /**
+     * Starts a transaction. Changes are visible only after Editor.commit() or Editor.apply()
+     *
+     * @return new Editor instance
+     */
+    public Editor edit() {
+        return new Editor();
+    }
+
+    /**
+     * Applies changes to a copy of current snapshot and publishes it
+     */
+    private synchronized void publish(Map<String, Object> changes) {
+        JSONObject next = (JSONObject) copy(config);
+        for (Map.Entry<String, Object> change : changes.entrySet()) {
             try {
-                return config.get(key);
+                if (change.getValue() == REMOVED) next.remove(change.getKey());
+                else next.put(change.getKey(), change.getValue());
             } catch (JSONException e) {
-                Log.w(TAG, "Error getting value for key: " + key, e);
+                Log.w(TAG, "Error setting value for key: " + change.getKey(), e);
             }
         }
+        config = next;
+    }
 
-        // No key -> return default value
-        return defaultValue;
+    /**
+     * Writes current snapshot to the file on the background thread. Multiple calls before the write starts
+     * result in a single write
+     */
+    private void scheduleWrite() {
+        if (!writeScheduled.compareAndSet(false, true)) return;
+        writer.execute(() -> {
+            synchronized (fileLock) {
+                writeScheduled.set(false);
+                writeToFile();
+            }
+        });
     }
 
     /**
-     * Sets config key to value and saves config file
+     * Waits until changes made by apply() are written (for tests)
+     */
+    void waitForWrites() throws InterruptedException, ExecutionException {
+        writer.submit(() -> {
+        }).get();
+    }
+
+    /**
+     * Writes current snapshot to the file. Must be called with fileLock held
      *
-     * @param key   config key
-     * @param value key's value
+     * @return true if file was written
+     */
+    private boolean writeToFile() {
+        boolean written = JSONFileUtils.writeJsonToFile(configFile, config);
+        fileLastModified = configFile.lastModified();
+        fileLength = configFile.length();
+        return written;
+    }
+
+    /**
+     * Deep copy of JSONObject or JSONArray (config is small, so it's simply re-parsed)
      */
-    public void set(String key, Object value) {
+    private static Object copy(Object value) {
         try {
-            config.put(key, value);
-            saveConfigToFile();
+            return value instanceof JSONObject ? new JSONObject(value.toString()) : new JSONArray(value.toString());
         } catch (JSONException e) {
-            Log.w(TAG, "Error setting value for key: " + key, e);
+            throw new IllegalStateException("Unable to copy config value", e);
         }
     }
 
     /**
-     * Saves config to the JSON file
+     * Batch of config changes
      */
-    private void saveConfigToFile() {
-        JSONFileUtils.writeJsonToFile(configFile, config);
+    public class Editor {
+        private final Map<String, Object> changes = new LinkedHashMap<>();
+
+        public Editor putString(String key, String value) {
+            changes.put(key, value);
+            return this;
+        }
+
+        public Editor putBoolean(String key, boolean value) {
+            changes.put(key, value);
+            return this;
+        }
+
+        public Editor putJSONObject(String key, JSONObject value) {
+            changes.put(key, copy(value));
+            return this;
+        }
+
+        public Editor putJSONArray(String key, JSONArray value) {
+            changes.put(key, copy(value));
+            return this;
+        }
+
+        public Editor remove(String key) {
+            changes.put(key, REMOVED);
+            return this;
+        }
+
+        /**
+         * Publishes changes and writes config file before returning
+         *
+         * @return true if file was written
+         */
+        public boolean commit() {
+            publish(changes);
+            synchronized (fileLock) {
+                return writeToFile();
+            }
+        }
+
+        /**
+         * Publishes changes and writes config file in background
+         */
+        public void apply() {
+            publish(changes);
+            scheduleWrite();
+        }
     }
 }
-
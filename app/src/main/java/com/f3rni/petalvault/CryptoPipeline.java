@@ -0,0 +1,267 @@
+/**
+ * This file is part of the PetalVault-Android password manager distribution.
+ * See <https://github.com/F33RNI/PetalVault-Android>.
+ * Copyright (C) 2024 Fern Lane
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, version 3.
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.f3rni.petalvault;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.zip.Deflater;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Streaming Deflater -> AES-GCM -> Base64 pipeline over reusable fixed-size buffers.
+ * Produces the same ciphertext as EntryCodec.encrypt() (v3 and newer formats), but never holds the whole
+ * compressed data or ciphertext, so large notes and bulk exports are encrypted in bounded memory.
+ * <p>
+ * Usage: begin(), write() any number of times, finish(). Instances are not thread-safe;
+ * get() returns instance of the current thread for per-entry use, bulk exports should create their own one.
+ * Cached keys of get() instances of all threads are wiped with clearKeys()
+ */
+public class CryptoPipeline {
+    private static final int CHUNK_SIZE = 8 * 1024;
+    private static final int GCM_TAG_LENGTH = 16;
+    private static final char[] BASE64_ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+    // Strings of entries larger than this (ex. after huge notes) are not kept between calls
+    private static final int BUILDER_SIZE_RETAINED_MAX = 64 * 1024;
+
+    // Pipelines of all threads (for clearKeys()). Pipelines of finished threads are dropped by GC
+    private static final Set<CryptoPipeline> pipelines = Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<>()));
+
+    private static final ThreadLocal<CryptoPipeline> instances = new ThreadLocal<CryptoPipeline>() {
+        @Override
+        protected CryptoPipeline initialValue() {
+            try {
+                CryptoPipeline pipeline = new CryptoPipeline();
+                pipelines.add(pipeline);
+                return pipeline;
+            } catch (GeneralSecurityException e) {
+                throw new RuntimeException("Unable to initialize crypto pipeline", e);
+            }
+        }
+    };
+
+    private final Cipher cipher;
+    private final Deflater deflater = new Deflater();
+    private final Deflater rawDeflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+
+    // Deflater -> cipher -> base64 buffers
+    private final ByteBuffer compressed = ByteBuffer.allocate(CHUNK_SIZE);
+    private ByteBuffer encrypted = ByteBuffer.allocate(CHUNK_SIZE + 2 * GCM_TAG_LENGTH);
+    private final char[] chars = new char[(CHUNK_SIZE + 2 * GCM_TAG_LENGTH + 2) / 3 * 4 + 4];
+    private final CharBuffer charsView = CharBuffer.wrap(chars);
+
+    // Base64 of the whole output is written by 3 bytes groups, so up to 2 bytes are carried to the next chunk
+    private final byte[] carry = new byte[2];
+    private int carryLength;
+
+    private final byte[] key = new byte[32];
+    private SecretKeySpec keySpec;
+    private Deflater activeDeflater;
+    private Appendable out;
+    private StringBuilder builder = new StringBuilder();
+
+    public CryptoPipeline() throws GeneralSecurityException {
+        cipher = Cipher.getInstance(EntryCodec.AES_GCM_MODE);
+    }
+
+    /**
+     * @return pipeline of the current thread
+     */
+    public static CryptoPipeline get() {
+        return instances.get();
+    }
+
+    /**
+     * Wipes cached key of pipelines of all threads. Called when vault is closed
+     */
+    public static void clearKeys() {
+        synchronized (pipelines) {
+            for (CryptoPipeline pipeline : pipelines) pipeline.clear();
+        }
+    }
+
+    /**
+     * Starts a new stream
+     *
+     * @param key        32 bytes key
+     * @param iv         12 bytes IV (must never repeat for the same key)
+     * @param dictionary version of preset dictionary (see EntryDictionary)
+     * @param out        destination of base64 ciphertext (with tag)
+     */
+    public synchronized void begin(byte[] key, byte[] iv, int dictionary, Appendable out) throws GeneralSecurityException {
+        if (dictionary == EntryDictionary.NONE) activeDeflater = deflater;
+        else activeDeflater = rawDeflater;
+        activeDeflater.reset();
+        if (dictionary != EntryDictionary.NONE) activeDeflater.setDictionary(EntryDictionary.get(dictionary));
+
+        cipher.init(Cipher.ENCRYPT_MODE, keySpec(key), new GCMParameterSpec(GCM_TAG_LENGTH * 8, iv));
+        carryLength = 0;
+        this.out = out;
+    }
+
+    /**
+     * Compresses, encrypts and encodes next part of data
+     */
+    public void write(byte[] data, int offset, int length) throws GeneralSecurityException, IOException {
+        if (out == null) throw new IllegalStateException("Pipeline was not started");
+        activeDeflater.setInput(data, offset, length);
+        while (!activeDeflater.needsInput()) encryptChunk(activeDeflater.deflate(compressed.array()));
+    }
+
+    /**
+     * Flushes compressor, adds authentication tag and base64 padding and ends the stream
+     */
+    public synchronized void finish() throws GeneralSecurityException, IOException {
+        if (out == null) throw new IllegalStateException("Pipeline was not started");
+        activeDeflater.finish();
+        while (!activeDeflater.finished()) encryptChunk(activeDeflater.deflate(compressed.array()));
+
+        // Tag (and bytes buffered by cipher)
+        compressed.clear().limit(0);
+        ensureEncrypted(cipher.getOutputSize(0));
+        encrypted.clear();
+        cipher.doFinal(compressed, encrypted);
+        encode(true);
+        out = null;
+    }
+
+    /**
+     * Compresses, encrypts and encodes data in one call (see EntryCodec.encrypt())
+     *
+     * @return base64 ciphertext (with tag)
+     */
+    public String encryptToBase64(byte[] data, int length, byte[] key, byte[] iv, int dictionary) throws GeneralSecurityException {
+        if (builder.capacity() > BUILDER_SIZE_RETAINED_MAX) builder = new StringBuilder();
+        builder.setLength(0);
+        begin(key, iv, dictionary, builder);
+        try {
+            write(data, 0, length);
+            finish();
+        } catch (IOException e) {
+            // StringBuilder never throws
+            throw new RuntimeException(e);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Encrypts length bytes of compressed buffer and encodes the result
+     */
+    private void encryptChunk(int length) throws GeneralSecurityException, IOException {
+        if (length == 0) return;
+        compressed.clear().limit(length);
+        ensureEncrypted(cipher.getOutputSize(length));
+        encrypted.clear();
+        cipher.update(compressed, encrypted);
+        encode(false);
+    }
+
+    /**
+     * Encodes content of encrypted buffer (with carried bytes) as base64 into output
+     *
+     * @param last true to encode all carried bytes with padding
+     */
+    private void encode(boolean last) throws IOException {
+        encrypted.flip();
+        byte[] bytes = encrypted.array();
+        int position = 0;
+        int end = encrypted.limit();
+        int charsLength = 0;
+
+        // Complete group of carried bytes
+        if (carryLength > 0 && carryLength + end >= 3) {
+            int b0 = carry[0] & 0xFF;
+            int b1 = carryLength == 2 ? carry[1] & 0xFF : bytes[position++] & 0xFF;
+            int b2 = bytes[position++] & 0xFF;
+            charsLength = encodeGroup(b0, b1, b2, charsLength);
+            carryLength = 0;
+        }
+
+        // Full groups
+        while (end - position >= 3) {
+            charsLength = encodeGroup(bytes[position] & 0xFF, bytes[position + 1] & 0xFF, bytes[position + 2] & 0xFF, charsLength);
+            position += 3;
+            if (charsLength > chars.length - 4) {
+                out.append(charsView, 0, charsLength);
+                charsLength = 0;
+            }
+        }
+
+        // Carry the rest
+        while (position < end) carry[carryLength++] = bytes[position++];
+
+        // Padding
+        if (last && carryLength > 0) {
+            int b0 = carry[0] & 0xFF;
+            int b1 = carryLength == 2 ? carry[1] & 0xFF : 0;
+            chars[charsLength++] = BASE64_ALPHABET[b0 >>> 2];
+            chars[charsLength++] = BASE64_ALPHABET[((b0 & 0x03) << 4) | (b1 >>> 4)];
+            chars[charsLength++] = carryLength == 2 ? BASE64_ALPHABET[(b1 & 0x0F) << 2] : '=';
+            chars[charsLength++] = '=';
+            carryLength = 0;
+        }
+
+        if (charsLength > 0) out.append(charsView, 0, charsLength);
+    }
+
+    private int encodeGroup(int b0, int b1, int b2, int charsLength) {
+        chars[charsLength++] = BASE64_ALPHABET[b0 >>> 2];
+        chars[charsLength++] = BASE64_ALPHABET[((b0 & 0x03) << 4) | (b1 >>> 4)];
+        chars[charsLength++] = BASE64_ALPHABET[((b1 & 0x0F) << 2) | (b2 >>> 6)];
+        chars[charsLength++] = BASE64_ALPHABET[b2 & 0x3F];
+        return charsLength;
+    }
+
+    /**
+     * Grows encrypted buffer if cipher needs more space (ex. providers that buffer AES-GCM input until doFinal())
+     */
+    private void ensureEncrypted(int size) {
+        if (encrypted.capacity() < size) encrypted = ByteBuffer.allocate(size);
+    }
+
+    /**
+     * Wipes key. Cipher is initialized with zero key to replace it's key schedule, unless stream is not finished
+     */
+    private synchronized void clear() {
+        if (keySpec == null) return;
+        Arrays.fill(key, (byte) 0);
+        keySpec = null;
+        if (out != null) return;
+        try {
+            cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key, "AES"), new GCMParameterSpec(GCM_TAG_LENGTH * 8, new byte[EntryCodec.GCM_IV_LENGTH]));
+        } catch (GeneralSecurityException ignored) {
+        }
+    }
+
+    /**
+     * @return key spec. Rebuilt only if key changed
+     */
+    private SecretKeySpec keySpec(byte[] key) throws GeneralSecurityException {
+        if (keySpec == null || !Arrays.equals(this.key, key)) {
+            if (key.length != this.key.length) throw new GeneralSecurityException("Key must be 32 bytes long");
+            System.arraycopy(key, 0, this.key, 0, key.length);
+            keySpec = new SecretKeySpec(this.key, "AES");
+        }
+        return keySpec;
+    }
+}
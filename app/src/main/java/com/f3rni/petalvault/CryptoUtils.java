@@ -13,22 +13,23 @@
 
 package com.f3rni.petalvault;
 
-import android.util.Base64;
 import android.util.Log;
 
+import androidx.annotation.NonNull;
+
+import org.json.JSONException;
 import org.json.JSONObject;
-import org.spongycastle.crypto.generators.SCrypt;
+import org.spongycastle.crypto.digests.SHA256Digest;
+import org.spongycastle.crypto.generators.HKDFBytesGenerator;
+import org.spongycastle.crypto.params.HKDFParameters;
+import org.spongycastle.util.encoders.Base64;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.util.Arrays;
-import java.util.zip.DataFormatException;
-import java.util.zip.Deflater;
-import java.util.zip.Inflater;
+import java.util.Iterator;
 
 import javax.crypto.Cipher;
 import javax.crypto.SecretKey;
@@ -38,47 +39,68 @@ import javax.crypto.spec.SecretKeySpec;
 public class CryptoUtils {
     private static final String TAG = CryptoUtils.class.getName();
 
-    private static final String AES_MODE = "AES/CBC/PKCS7Padding";
+    // PKCS5Padding is PKCS7 padding for 16-byte blocks. This name is also available on the JVM (for unit tests)
+    static final String AES_MODE = "AES/CBC/PKCS5Padding";
     private static final String PASSWORD_ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789!@#$%^&*()-_=+<>?";
     private static final int PASSWORD_LENGTH = 24;
 
     private static final SecureRandom secureRandom = new SecureRandom();
     private static final int MASTER_KEY_COST = 65536;
 
+    // scrypt parameters of vaults without "master_kdf" / "mnemonic_kdf" and of sync keys
+    public static final KdfParams KDF_LEGACY = new KdfParams(MASTER_KEY_COST, 8, 1);
+
+    // Entry formats ("v" key of encrypted entry). Entries without "v" are v2
+    public static final int ENTRY_VERSION_CBC = 2;
+    public static final int ENTRY_VERSION_GCM = 3;
+    public static final int ENTRY_VERSION_SPLIT = 4;
+    public static final int ENTRY_VERSION_RECORD = 5;
+
+    // Format of vault entries
+    public static final int ENTRY_VERSION = ENTRY_VERSION_RECORD;
+
     /**
      * Decrypts and decompresses dictionary data.
      *
-     * @param encrypted dictionary containing "enc" and "iv" keys
-     * @param masterKey derived key (32 bytes) for v>=2.0.0
+     * @param encrypted dictionary containing "enc", "iv", optional "v" (entry format), "d" (compression dictionary)
+     *                  and "sec", "sec_iv" (v4) keys
+     * @param masterKey derived key (32 bytes) for v2.x.x or data key (32 bytes) for v>=3.0.0
      * @return decrypted dictionary or null in case of error
      */
     public static JSONObject decryptEntry(JSONObject encrypted, byte[] masterKey) {
         try {
-            // Decrypt
-            byte[] ivBytes = base64Decode(encrypted.getString("iv"));
-            byte[] entryEncrypted = base64Decode(encrypted.getString("enc"));
-            Cipher cipher = Cipher.getInstance(AES_MODE);
-            SecretKey secretKey = new SecretKeySpec(masterKey, "AES");
-            cipher.init(Cipher.DECRYPT_MODE, secretKey, new IvParameterSpec(ivBytes));
-            byte[] entryDecrypted = cipher.doFinal(entryEncrypted);
-
-            // Decompress
-            byte[] entryUncompressed = decompress(entryDecrypted);
+            JSONObject entryDict = decryptEntryPart(encrypted.getString("enc"), encrypted.getString("iv"), getEntryVersion(encrypted), getEntryDictionary(encrypted), masterKey);
 
-            // Split checksum
-            byte[] entryBytes = Arrays.copyOfRange(entryUncompressed, 0, entryUncompressed.length - 16);
-            byte[] entryChecksumOriginal = Arrays.copyOfRange(entryUncompressed, entryUncompressed.length - 16, entryUncompressed.length);
+            // Check for ID key
+            if (!entryDict.has("id")) throw new Exception("No 'id' key");
 
-            // Verify checksum
-            byte[] entryChecksum = md5(entryBytes);
-            if (!Arrays.equals(entryChecksumOriginal, entryChecksum)) {
-                throw new Exception("Checksum verification error");
+            // v4, v5: merge secret part
+            if (isEntrySplit(encrypted)) {
+                JSONObject secret = decryptEntryPart(encrypted.getString("sec"), encrypted.getString("sec_iv"), getEntryVersion(encrypted), getEntryDictionary(encrypted), masterKey);
+                Iterator<String> keys = secret.keys();
+                while (keys.hasNext()) {
+                    String key = keys.next();
+                    entryDict.put(key, secret.get(key));
+                }
             }
+            return entryDict;
+        } catch (Exception e) {
+            Log.e(TAG, "Error decrypting entry", e);
+        }
+        return null;
+    }
 
-            // Convert to dictionary
-            JSONObject entryDict = new JSONObject("{" + new String(entryBytes, StandardCharsets.UTF_8) + "}");
-
-            // Check for ID key
+    /**
+     * Decrypts only index part (id, site, user) of v4 / v5 entry or entire entry of older formats
+     *
+     * @param encrypted dictionary containing "enc", "iv" and optional "v" (entry format), "d" (compression dictionary) keys
+     * @param masterKey data key (32 bytes)
+     * @return decrypted dictionary or null in case of error
+     */
+    public static JSONObject decryptEntryIndex(JSONObject encrypted, byte[] masterKey) {
+        if (!isEntrySplit(encrypted)) return decryptEntry(encrypted, masterKey);
+        try {
+            JSONObject entryDict = decryptEntryPart(encrypted.getString("enc"), encrypted.getString("iv"), getEntryVersion(encrypted), getEntryDictionary(encrypted), masterKey);
             if (!entryDict.has("id")) throw new Exception("No 'id' key");
             return entryDict;
         } catch (Exception e) {
@@ -88,39 +110,71 @@ public class CryptoUtils {
     }
 
     /**
-     * Compresses and encrypts dictionary data.
+     * Decrypts single ciphertext of v5 entry (index or secret part) without converting it to JSON
+     *
+     * @param enc        base64 ciphertext
+     * @param iv         base64 IV
+     * @param dictionary compression dictionary of entry (see getEntryDictionary())
+     * @param masterKey  data key (32 bytes)
+     * @return reader of decrypted fields. Valid until the next entry encryption / decryption on the same thread
+     * @throws Exception decrypt error
+     */
+    public static EntryRecord.Reader decryptEntryRecord(String enc, String iv, int dictionary, byte[] masterKey) throws Exception {
+        byte[] entryEncrypted = base64Decode(enc);
+        EntryCodec codec = EntryCodec.get();
+        int entryLength = codec.decrypt(entryEncrypted, 0, entryEncrypted.length, masterKey, base64Decode(iv), dictionary);
+        return new EntryRecord.Reader(codec.buffer(), 0, entryLength);
+    }
+
+    /**
+     * Compresses and encrypts dictionary data as a single ciphertext (v3). Used for sync data and device copies
      *
      * @param decrypted decrypted dictionary. Must contain "id" key
-     * @param masterKey derived key (32 bytes) for v>=2.0.0
-     * @return encrypted dictionary (with "enc" and "iv" keys) or null in case of error
+     * @param masterKey derived key (32 bytes) for v2.x.x or data key (32 bytes) for v>=3.0.0
+     * @return encrypted dictionary (with "v", "d", "enc" and "iv" keys) or null in case of error
      */
     public static JSONObject encryptEntry(JSONObject decrypted, byte[] masterKey) {
         try {
-            // Convert to bytes and calculate checksum
-            String entryStr = decrypted.toString().replace("\\/", "/");
-            entryStr = entryStr.substring(1, entryStr.length() - 1);
-            byte[] entryBytes = entryStr.getBytes(StandardCharsets.UTF_8);
-            byte[] entryChecksum = md5(entryBytes);
-            byte[] entryWithChecksum = concatenate(entryBytes, entryChecksum);
+            String[] encIv = encryptEntryPart(decrypted, masterKey);
 
-            // Compress and pad data
-            byte[] entryCompressed = compress(entryWithChecksum);
+            JSONObject result = new JSONObject();
+            result.put("v", ENTRY_VERSION_GCM);
+            result.put("d", EntryDictionary.CURRENT);
+            result.put("enc", encIv[0]);
+            result.put("iv", encIv[1]);
 
-            // Encrypt
-            byte[] ivBytes = new byte[16];
-            secureRandom.nextBytes(ivBytes);
-            Cipher cipher = Cipher.getInstance(AES_MODE);
-            SecretKey secretKey = new SecretKeySpec(masterKey, "AES");
-            cipher.init(Cipher.ENCRYPT_MODE, secretKey, new IvParameterSpec(ivBytes));
-            byte[] entryEncrypted = cipher.doFinal(entryCompressed);
+            return result;
+        } catch (Exception e) {
+            Log.e(TAG, "Error encrypting entry", e);
+        }
+        return null;
+    }
 
-            // Convert to base64
-            String enc = base64Encode(entryEncrypted);
-            String iv = base64Encode(ivBytes);
+    /**
+     * Encrypts index part (id, site, user) and secret part (pass, notes) of entry separately
+     * as binary records (v5). Used for vault entries, so secrets can be decrypted on demand
+     *
+     * @param entry     entry to encrypt
+     * @param masterKey data key (32 bytes)
+     * @return encrypted dictionary (with "v", "d", "enc", "iv", "sec" and "sec_iv" keys) or null in case of error
+     */
+    public static JSONObject encryptEntryRecord(VaultEntry entry, byte[] masterKey) {
+        try {
+            EntryRecord.Writer writer = EntryRecord.writer();
+            entry.writeIndex(writer);
+            String[] encIv = encryptEntryPart(writer.buffer(), writer.length(), masterKey);
+
+            writer = EntryRecord.writer();
+            entry.writeSecret(writer);
+            String[] secIv = encryptEntryPart(writer.buffer(), writer.length(), masterKey);
 
             JSONObject result = new JSONObject();
-            result.put("enc", enc);
-            result.put("iv", iv);
+            result.put("v", ENTRY_VERSION_RECORD);
+            result.put("d", EntryDictionary.CURRENT);
+            result.put("enc", encIv[0]);
+            result.put("iv", encIv[1]);
+            result.put("sec", secIv[0]);
+            result.put("sec_iv", secIv[1]);
 
             return result;
         } catch (Exception e) {
@@ -129,19 +183,130 @@ public class CryptoUtils {
         return null;
     }
 
+    /**
+     * Compresses and encrypts record with only id of entry (v5 index part without secret part).
+     * Used to log deletion of entry without revealing it's id
+     *
+     * @param id        entry id
+     * @param masterKey data key (32 bytes)
+     * @return encrypted id (with "v", "d", "enc" and "iv" keys) or null in case of error
+     */
+    public static JSONObject encryptEntryId(String id, byte[] masterKey) {
+        try {
+            EntryRecord.Writer writer = EntryRecord.writer();
+            writer.write(EntryRecord.TAG_ID, id);
+            String[] encIv = encryptEntryPart(writer.buffer(), writer.length(), masterKey);
+
+            JSONObject result = new JSONObject();
+            result.put("v", ENTRY_VERSION_RECORD);
+            result.put("d", EntryDictionary.CURRENT);
+            result.put("enc", encIv[0]);
+            result.put("iv", encIv[1]);
+
+            return result;
+        } catch (Exception e) {
+            Log.e(TAG, "Error encrypting entry id", e);
+        }
+        return null;
+    }
+
+    /**
+     * Decrypts, decompresses and verifies single ciphertext
+     *
+     * @return decrypted dictionary
+     */
+    private static JSONObject decryptEntryPart(String enc, String iv, int version, int dictionary, byte[] masterKey) throws Exception {
+        // Decrypt, decompress and verify tag (v3, v4, v5) or checksum (v2)
+        byte[] ivBytes = base64Decode(iv);
+        byte[] entryEncrypted = base64Decode(enc);
+        EntryCodec codec = EntryCodec.get();
+        int entryLength;
+        if (version == ENTRY_VERSION_GCM || version == ENTRY_VERSION_SPLIT || version == ENTRY_VERSION_RECORD)
+            entryLength = codec.decrypt(entryEncrypted, 0, entryEncrypted.length, masterKey, ivBytes, dictionary);
+        else if (version == ENTRY_VERSION_CBC)
+            entryLength = codec.decryptCbc(entryEncrypted, 0, entryEncrypted.length, masterKey, ivBytes);
+        else throw new Exception("Unsupported entry format: " + version);
+
+        // Convert to dictionary
+        if (version == ENTRY_VERSION_RECORD) return EntryRecord.toJSON(codec.buffer(), 0, entryLength);
+        return new JSONObject("{" + new String(codec.buffer(), 0, entryLength, StandardCharsets.UTF_8) + "}");
+    }
+
+    /**
+     * Compresses (with current compression dictionary), encrypts and authenticates dictionary as a single ciphertext
+     *
+     * @return base64 ciphertext and base64 IV
+     */
+    private static String[] encryptEntryPart(JSONObject decrypted, byte[] masterKey) throws Exception {
+        // Convert to bytes
+        String entryStr = decrypted.toString().replace("\\/", "/");
+        entryStr = entryStr.substring(1, entryStr.length() - 1);
+        byte[] entryBytes = entryStr.getBytes(StandardCharsets.UTF_8);
+        return encryptEntryPart(entryBytes, entryBytes.length, masterKey);
+    }
+
+    /**
+     * Compresses (with current compression dictionary), encrypts and authenticates plaintext as a single ciphertext
+     *
+     * @return base64 ciphertext and base64 IV
+     */
+    private static String[] encryptEntryPart(byte[] data, int length, byte[] masterKey) throws Exception {
+        byte[] ivBytes = new byte[EntryCodec.GCM_IV_LENGTH];
+        secureRandom.nextBytes(ivBytes);
+
+        // Compress, encrypt and convert to base64 in one pass
+        String entryEncrypted = CryptoPipeline.get().encryptToBase64(data, length, masterKey, ivBytes, EntryDictionary.CURRENT);
+        return new String[]{entryEncrypted, base64Encode(ivBytes)};
+    }
+
+    /**
+     * @param encrypted encrypted dictionary
+     * @return entry format of encrypted dictionary
+     */
+    public static int getEntryVersion(JSONObject encrypted) {
+        return encrypted.optInt("v", ENTRY_VERSION_CBC);
+    }
+
+    /**
+     * @param encrypted encrypted dictionary
+     * @return true if index part and secret part of encrypted dictionary are encrypted separately (v4, v5)
+     */
+    public static boolean isEntrySplit(JSONObject encrypted) {
+        int version = getEntryVersion(encrypted);
+        return version == ENTRY_VERSION_SPLIT || version == ENTRY_VERSION_RECORD;
+    }
+
+    /**
+     * @param encrypted encrypted dictionary
+     * @return version of preset compression dictionary of encrypted dictionary (see EntryDictionary)
+     */
+    public static int getEntryDictionary(JSONObject encrypted) {
+        return encrypted.optInt("d", EntryDictionary.NONE);
+    }
+
+    /**
+     * @param encrypted encrypted dictionary
+     * @return true if encrypted dictionary is in the current entry format and uses current compression dictionary,
+     * so it's ciphertext can be reused
+     */
+    public static boolean isEntryFormatCurrent(JSONObject encrypted) {
+        return getEntryVersion(encrypted) == ENTRY_VERSION && getEntryDictionary(encrypted) == EntryDictionary.CURRENT;
+    }
+
     /**
      * Encrypts mnemonic with master password.
      *
      * @param mnemonic       mnemonic phrase to encrypt as list of words
      * @param masterPassword strong master password
-     * @return tuple (padded and encrypted mnemonic with checksum, 32B salt of scrypt, 16B IV of AES)
+     * @param kdfParams      KDF type and parameters
+     * @return tuple (padded and encrypted mnemonic with checksum, 32B salt of KDF, 16B IV of AES, KDF parameters)
      */
-    public static MnemonicEncrypted encryptMnemonic(String[] mnemonic, String masterPassword) {
+    public static MnemonicEncrypted encryptMnemonic(String[] mnemonic, String masterPassword, KdfParams kdfParams) {
         try {
             // Derive key from master password
             byte[] masterSalt1 = new byte[32];
             secureRandom.nextBytes(masterSalt1);
-            byte[] derivedKey = SCrypt.generate(masterPassword.getBytes(StandardCharsets.UTF_8), masterSalt1, MASTER_KEY_COST, 8, 1, 32);
+            byte[] derivedKey = kdfParams.derive(masterPassword.getBytes(StandardCharsets.UTF_8), masterSalt1, 32);
 
             // Convert mnemonic to str->bytes, add checksum and pad
             String mnemonicStr = String.join(" ", mnemonic);
@@ -157,7 +322,7 @@ public class CryptoUtils {
             cipher.init(Cipher.ENCRYPT_MODE, secretKey, new IvParameterSpec(masterSalt2));
             byte[] mnemonicEncrypted = cipher.doFinal(mnemonicWithChecksum);
 
-            return new MnemonicEncrypted(mnemonicEncrypted, masterSalt1, masterSalt2);
+            return new MnemonicEncrypted(mnemonicEncrypted, masterSalt1, masterSalt2, kdfParams);
         } catch (Exception e) {
             Log.e(TAG, "Error encrypting mnemonic", e);
         }
@@ -167,14 +332,14 @@ public class CryptoUtils {
     /**
      * Decrypts mnemonic with master password.
      *
-     * @param mnemonicEncrypted padded and encrypted mnemonic with checksum, salt 1, salt 2
+     * @param mnemonicEncrypted padded and encrypted mnemonic with checksum, salt 1, salt 2, KDF parameters
      * @param masterPassword    strong master password
      * @return mnemonic phrase as array of words
      * @throws Exception decrypt / check error
      */
     public static String[] decryptMnemonic(MnemonicEncrypted mnemonicEncrypted, String masterPassword) throws Exception {
         // Derive key from master password
-        byte[] derivedKey = SCrypt.generate(masterPassword.getBytes(StandardCharsets.UTF_8), mnemonicEncrypted.salt1, MASTER_KEY_COST, 8, 1, 32);
+        byte[] derivedKey = mnemonicEncrypted.kdfParams.derive(masterPassword.getBytes(StandardCharsets.UTF_8), mnemonicEncrypted.salt1, 32);
 
         // Decrypt
         Cipher cipher = Cipher.getInstance(AES_MODE);
@@ -197,6 +362,69 @@ public class CryptoUtils {
         return mnemonicStr.split(" ");
     }
 
+    /**
+     * Wraps (encrypts) random data key with key derived from the mnemonic.
+     *
+     * @param dataKey          32 bytes data key that encrypts vault entries
+     * @param keyEncryptionKey 32 bytes key derived with entropyToMasterKey()
+     * @return tuple (padded and encrypted data key with checksum, 16B IV of AES) or null in case of error
+     */
+    public static KeyEncrypted wrapKey(byte[] dataKey, byte[] keyEncryptionKey) {
+        try {
+            // Add checksum
+            byte[] dataKeyWithChecksum = concatenate(dataKey, md5(dataKey));
+
+            // Encrypt
+            byte[] ivBytes = new byte[16];
+            secureRandom.nextBytes(ivBytes);
+            Cipher cipher = Cipher.getInstance(AES_MODE);
+            SecretKey secretKey = new SecretKeySpec(keyEncryptionKey, "AES");
+            cipher.init(Cipher.ENCRYPT_MODE, secretKey, new IvParameterSpec(ivBytes));
+            byte[] dataKeyEncrypted = cipher.doFinal(dataKeyWithChecksum);
+
+            return new KeyEncrypted(dataKeyEncrypted, ivBytes);
+        } catch (Exception e) {
+            Log.e(TAG, "Error wrapping data key", e);
+        }
+        return null;
+    }
+
+    /**
+     * Unwraps (decrypts) data key with key derived from the mnemonic.
+     *
+     * @param keyEncrypted     padded and encrypted data key with checksum and IV
+     * @param keyEncryptionKey 32 bytes key derived with entropyToMasterKey()
+     * @return 32 bytes data key
+     * @throws Exception decrypt / check error
+     */
+    public static byte[] unwrapKey(KeyEncrypted keyEncrypted, byte[] keyEncryptionKey) throws Exception {
+        // Decrypt
+        Cipher cipher = Cipher.getInstance(AES_MODE);
+        SecretKey secretKey = new SecretKeySpec(keyEncryptionKey, "AES");
+        cipher.init(Cipher.DECRYPT_MODE, secretKey, new IvParameterSpec(keyEncrypted.iv));
+        byte[] dataKeyDecrypted = cipher.doFinal(keyEncrypted.keyEncrypted);
+
+        // Extract checksum
+        byte[] dataKey = Arrays.copyOfRange(dataKeyDecrypted, 0, dataKeyDecrypted.length - 16);
+        byte[] dataKeyChecksum = Arrays.copyOfRange(dataKeyDecrypted, dataKeyDecrypted.length - 16, dataKeyDecrypted.length);
+
+        // Check
+        if (!Arrays.equals(md5(dataKey), dataKeyChecksum)) {
+            throw new Exception("Checksums are not equal! Wrong mnemonic?");
+        }
+
+        return dataKey;
+    }
+
+    /**
+     * Drops scrypt and Argon2id arenas (up to hundreds of MB). Called after a batch of derivations,
+     * when vault is closed and on low memory. They are allocated again on the next key derivation
+     */
+    public static void releaseKdfArenas() {
+        ScryptKdf.releaseArena();
+        Argon2Kdf.releaseArena();
+    }
+
     /**
      * Derives master key from entropy.
      *
@@ -205,12 +433,40 @@ public class CryptoUtils {
      * @return tuple (32-bytes master key, 32-bytes salt)
      */
     public static MasterKey entropyToMasterKey(byte[] entropy, byte[] masterSalt) {
+        return entropyToMasterKey(entropy, masterSalt, KDF_LEGACY);
+    }
+
+    /**
+     * Derives master key from entropy.
+     *
+     * @param entropy    128-bit entropy from mnemonic
+     * @param masterSalt existing salt (32-bytes) or null to generate a new one
+     * @param kdfParams  KDF type and parameters
+     * @return tuple (32-bytes master key, 32-bytes salt, KDF parameters)
+     */
+    public static MasterKey entropyToMasterKey(byte[] entropy, byte[] masterSalt, KdfParams kdfParams) {
         if (masterSalt == null) {
             masterSalt = new byte[32];
             secureRandom.nextBytes(masterSalt);
         }
-        byte[] masterKey = SCrypt.generate(entropy, masterSalt, MASTER_KEY_COST, 8, 1, 32);
-        return new MasterKey(masterKey, masterSalt);
+        byte[] masterKey = kdfParams.derive(entropy, masterSalt, 32);
+        return new MasterKey(masterKey, masterSalt, kdfParams);
+    }
+
+    /**
+     * Derives subkey from root key with HKDF-SHA256
+     *
+     * @param rootKey 32 bytes root key
+     * @param salt    salt of subkey
+     * @param context purpose of subkey (HKDF info)
+     * @return 32 bytes subkey
+     */
+    public static byte[] deriveSubkey(byte[] rootKey, byte[] salt, String context) {
+        HKDFBytesGenerator hkdf = new HKDFBytesGenerator(new SHA256Digest());
+        hkdf.init(new HKDFParameters(rootKey, salt, context.getBytes(StandardCharsets.UTF_8)));
+        byte[] subkey = new byte[32];
+        hkdf.generateBytes(subkey, 0, subkey.length);
+        return subkey;
     }
 
     /**
@@ -235,35 +491,6 @@ public class CryptoUtils {
         return md.digest(data);
     }
 
-    private static byte[] compress(byte[] data) throws IOException {
-        Deflater deflater = new Deflater();
-        deflater.setInput(data);
-        deflater.finish();
-        byte[] buffer = new byte[1024];
-        int length;
-        try (ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream()) {
-            while (!deflater.finished()) {
-                length = deflater.deflate(buffer);
-                byteArrayOutputStream.write(buffer, 0, length);
-            }
-            return byteArrayOutputStream.toByteArray();
-        }
-    }
-
-    private static byte[] decompress(byte[] data) throws IOException, DataFormatException {
-        Inflater inflater = new Inflater();
-        inflater.setInput(data);
-        byte[] buffer = new byte[1024];
-        int length;
-        try (ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream()) {
-            while (!inflater.finished()) {
-                length = inflater.inflate(buffer);
-                byteArrayOutputStream.write(buffer, 0, length);
-            }
-            return byteArrayOutputStream.toByteArray();
-        }
-    }
-
     private static byte[] concatenate(byte[] a, byte[] b) {
         byte[] result = new byte[a.length + b.length];
         System.arraycopy(a, 0, result, 0, a.length);
@@ -272,11 +499,11 @@ public class CryptoUtils {
     }
 
     public static String base64Encode(byte[] data) {
-        return Base64.encodeToString(data, Base64.NO_WRAP);
+        return Base64.toBase64String(data);
     }
 
     public static byte[] base64Decode(String data) {
-        return Base64.decode(data, Base64.NO_WRAP);
+        return Base64.decode(data);
     }
 
     /**
@@ -291,24 +518,177 @@ public class CryptoUtils {
         return randomBytes;
     }
 
-    // Utility class for storing encrypted mnemonic with salts
+    // Utility class for storing encrypted mnemonic with salts and KDF parameters
     public static class MnemonicEncrypted {
         public final byte[] mnemonicEncrypted, salt1, salt2;
+        public final KdfParams kdfParams;
 
-        MnemonicEncrypted(byte[] mnemonicEncrypted, byte[] salt1, byte[] salt2) {
+        MnemonicEncrypted(byte[] mnemonicEncrypted, byte[] salt1, byte[] salt2, KdfParams kdfParams) {
             this.mnemonicEncrypted = mnemonicEncrypted;
             this.salt1 = salt1;
             this.salt2 = salt2;
+            this.kdfParams = kdfParams;
         }
     }
 
-    // Utility class for storing derived master key and it's salt
+    // Utility class for storing wrapped data key with it's IV
+    public static class KeyEncrypted {
+        public final byte[] keyEncrypted, iv;
+
+        public KeyEncrypted(byte[] keyEncrypted, byte[] iv) {
+            this.keyEncrypted = keyEncrypted;
+            this.iv = iv;
+        }
+    }
+
+    // Utility class for storing derived master key, it's salt and KDF parameters
     public static class MasterKey {
         public final byte[] masterKey, salt;
+        public final KdfParams kdfParams;
 
-        public MasterKey(byte[] masterKey, byte[] salt) {
+        public MasterKey(byte[] masterKey, byte[] salt, KdfParams kdfParams) {
             this.masterKey = masterKey;
             this.salt = salt;
+            this.kdfParams = kdfParams;
+        }
+    }
+
+    // Utility class for storing KDF type and it's parameters
+    public static class KdfParams {
+        public static final String TYPE_SCRYPT = "scrypt";
+        public static final String TYPE_ARGON2ID = "argon2id";
+
+        public final String type;
+
+        // scrypt: CPU / memory cost N and block size r. Argon2id: memory m in KiB and iterations t. Both: lanes p
+        public final int n, r, m, t, p;
+
+        public KdfParams(int n, int r, int p) {
+            this(TYPE_SCRYPT, n, r, 0, 0, p);
+        }
+
+        private KdfParams(String type, int n, int r, int m, int t, int p) {
+            this.type = type;
+            this.n = n;
+            this.r = r;
+            this.m = m;
+            this.t = t;
+            this.p = p;
+        }
+
+        /**
+         * @param m memory in KiB
+         * @param t iterations
+         * @param p lanes
+         * @return Argon2id parameters
+         */
+        public static KdfParams argon2id(int m, int t, int p) {
+            return new KdfParams(TYPE_ARGON2ID, 0, 0, m, t, p);
+        }
+
+        /**
+         * Derives key with this KDF
+         *
+         * @param password password or entropy bytes
+         * @param salt     salt bytes
+         * @param length   length of derived key in bytes
+         * @return derived key
+         */
+        public byte[] derive(byte[] password, byte[] salt, int length) {
+            if (TYPE_ARGON2ID.equals(type)) return Argon2Kdf.generate(password, salt, m, t, p, length);
+            return ScryptKdf.generate(password, salt, n, r, p, length);
+        }
+
+        /**
+         * Parses parameters from vault header, device record or sync data
+         *
+         * @param json {"type": "scrypt", "n": N, "r": r, "p": p}, {"type": "argon2id", "m": m, "t": t, "p": p}
+         *             or null for legacy vaults. Missing type means scrypt
+         * @return parsed parameters or KDF_LEGACY
+         * @throws JSONException if type is unknown, parameters are out of KdfCalibrator bounds
+         *                       or need more memory than KdfCalibrator.memoryBudget()
+         */
+        public static KdfParams fromJSON(JSONObject json) throws JSONException {
+            if (json == null) return KDF_LEGACY;
+            String type = json.optString("type", TYPE_SCRYPT);
+            KdfParams kdfParams;
+            if (type.equals(TYPE_SCRYPT)) kdfParams = new KdfParams(json.getInt("n"), json.getInt("r"), json.getInt("p"));
+            else if (type.equals(TYPE_ARGON2ID)) kdfParams = argon2id(json.getInt("m"), json.getInt("t"), json.getInt("p"));
+            else throw new JSONException("Unknown KDF type: " + type);
+            if (!kdfParams.isWithinBounds()) throw new JSONException("KDF parameters out of bounds: " + kdfParams);
+            if (kdfParams.memorySize() > KdfCalibrator.memoryBudget())
+                throw new JSONException("KDF parameters out of memory budget: " + kdfParams);
+            return kdfParams;
+        }
+
+        /**
+         * Parses parameters of sync root from sync data or device record. Sync roots are always created
+         * with KDF_LEGACY, so anything else (ex. crafted QR code) is rejected before deriving
+         *
+         * @param json {"type": "scrypt", "n": N, "r": r, "p": p}
+         * @return KDF_LEGACY
+         * @throws JSONException if parameters are not KDF_LEGACY
+         */
+        public static KdfParams syncRootFromJSON(JSONObject json) throws JSONException {
+            String type = json.optString("type", TYPE_SCRYPT);
+            if (!type.equals(TYPE_SCRYPT) || json.getInt("n") != KDF_LEGACY.n || json.getInt("r") != KDF_LEGACY.r || json.getInt("p") != KDF_LEGACY.p)
+                throw new JSONException("Unsupported sync root KDF parameters: " + json);
+            return KDF_LEGACY;
+        }
+
+        /**
+         * Parameters come from files and QR codes, so they are checked before deriving
+         * to not run for hours
+         *
+         * @return true if parameters are within KdfCalibrator bounds
+         */
+        private boolean isWithinBounds() {
+            if (p < 1 || p > KdfCalibrator.LANES_MAX) return false;
+            if (type.equals(TYPE_ARGON2ID)) return m >= KdfCalibrator.M_MIN && t >= 1 && t <= KdfCalibrator.T;
+
+            return n >= KdfCalibrator.N_MIN && (n & (n - 1)) == 0 && r >= 1 && r <= KdfCalibrator.R;
+        }
+
+        /**
+         * @return memory allocated by derive() on this device in bytes
+         */
+        long memorySize() {
+            if (type.equals(TYPE_ARGON2ID)) return 1024L * m;
+            return KdfCalibrator.arenaSize(n, r, p, Runtime.getRuntime().availableProcessors());
+        }
+
+        public JSONObject toJSON() throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put("type", type);
+            if (type.equals(TYPE_ARGON2ID)) {
+                json.put("m", m);
+                json.put("t", t);
+            } else {
+                json.put("n", n);
+                json.put("r", r);
+            }
+            json.put("p", p);
+            return json;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof KdfParams)) return false;
+            KdfParams kdfParams = (KdfParams) o;
+            return type.equals(kdfParams.type) && n == kdfParams.n && r == kdfParams.r && m == kdfParams.m && t == kdfParams.t && p == kdfParams.p;
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(new Object[]{type, n, r, m, t, p});
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            if (type.equals(TYPE_ARGON2ID)) return type + " m=" + m + " t=" + t + " p=" + p;
+            return type + " N=" + n + " r=" + r + " p=" + p;
         }
     }
 }
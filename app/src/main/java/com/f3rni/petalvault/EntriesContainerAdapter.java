@@ -24,7 +24,7 @@ import androidx.recyclerview.widget.RecyclerView;
 import java.util.List;
 
 public class EntriesContainerAdapter extends RecyclerView.Adapter<EntriesContainerAdapter.RowViewHolder> {
-    private final List<VaultEntry> vaultEntries;
+    private List<VaultEntry> vaultEntries;
     public RowClickListener rowClickListener;
 
     EntriesContainerAdapter(List<VaultEntry> vaultEntries) {
@@ -36,6 +36,23 @@ public class EntriesContainerAdapter extends RecyclerView.Adapter<EntriesContain
         this.rowClickListener = rowClickListener;
     }
 
+    /**
+     * Replaces shown entries (ex. with search results). Call notifyDataSetChanged() after it
+     *
+     * @param vaultEntries entries to show
+     */
+    public void setVaultEntries(List<VaultEntry> vaultEntries) {
+        this.vaultEntries = vaultEntries;
+    }
+
+    /**
+     * @param index row index
+     * @return entry shown in this row
+     */
+    public VaultEntry getVaultEntry(int index) {
+        return vaultEntries.get(index);
+    }
+
     @NonNull
     @Override
     public RowViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
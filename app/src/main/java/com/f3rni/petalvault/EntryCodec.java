@@ -0,0 +1,320 @@
+/**
+ * This file is part of the PetalVault-Android password manager distribution.
+ * See <https://github.com/F33RNI/PetalVault-Android>.
+ * Copyright (C) 2024 Fern Lane
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, version 3.
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.f3rni.petalvault;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Per-thread entry encoder / decoder that reuses Ciphers, MD5, Deflater, Inflater and scratch buffers.
+ * Wire formats:
+ * v3 (current): AES-GCM(deflate(data)) with 12 bytes IV and 16 bytes tag.
+ * With a preset dictionary (see EntryDictionary) data is compressed as raw Deflate stream,
+ * because zlib header and Adler-32 add 6 bytes and GCM tag already protects the data
+ * v2 (legacy): AES-CBC(deflate(data + MD5(data)))
+ * <p>
+ * Results are written into buffer() and are valid until the next call on the same thread.
+ * Cached keys of all threads are wiped with clearKeys()
+ */
+public class EntryCodec {
+    static final String AES_GCM_MODE = "AES/GCM/NoPadding";
+    static final int GCM_IV_LENGTH = 12;
+    private static final int GCM_TAG_LENGTH = 16;
+
+    private static final int CHECKSUM_LENGTH = 16;
+    private static final int BUFFER_SIZE_DEFAULT = 1024;
+
+    // Buffers larger than this (ex. after huge notes) are not kept between calls
+    private static final int BUFFER_SIZE_RETAINED_MAX = 64 * 1024;
+
+    // Codecs of all threads (for clearKeys()). Codecs of finished threads are dropped by GC
+    private static final Set<EntryCodec> codecs = Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<>()));
+
+    private static final ThreadLocal<EntryCodec> instances = new ThreadLocal<EntryCodec>() {
+        @Override
+        protected EntryCodec initialValue() {
+            try {
+                EntryCodec codec = new EntryCodec();
+                codecs.add(codec);
+                return codec;
+            } catch (GeneralSecurityException e) {
+                throw new RuntimeException("Unable to initialize entry codec", e);
+            }
+        }
+    };
+
+    private final Cipher gcmCipher;
+    private final Cipher cbcCipher;
+    private final MessageDigest md5;
+    private final Deflater deflater = new Deflater();
+    private final Inflater inflater = new Inflater();
+    private final Deflater rawDeflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    private final Inflater rawInflater = new Inflater(true);
+
+    private final byte[] key = new byte[32];
+    private final byte[] checksum = new byte[CHECKSUM_LENGTH];
+    private SecretKeySpec keySpec;
+    private byte[] scratch = new byte[BUFFER_SIZE_DEFAULT];
+    private byte[] output = new byte[BUFFER_SIZE_DEFAULT];
+
+    private EntryCodec() throws GeneralSecurityException {
+        gcmCipher = Cipher.getInstance(AES_GCM_MODE);
+        cbcCipher = Cipher.getInstance(CryptoUtils.AES_MODE);
+        md5 = MessageDigest.getInstance("MD5");
+    }
+
+    /**
+     * @return codec of the current thread
+     */
+    public static EntryCodec get() {
+        return instances.get();
+    }
+
+    /**
+     * Wipes cached key, key schedule of ciphers and buffers of codecs of all threads. Called when vault is closed
+     */
+    public static void clearKeys() {
+        synchronized (codecs) {
+            for (EntryCodec codec : codecs) codec.clear();
+        }
+    }
+
+    /**
+     * @return output buffer of the last call
+     */
+    public byte[] buffer() {
+        return output;
+    }
+
+    /**
+     * Compresses (without dictionary) and encrypts data with AES-GCM (v3)
+     *
+     * @param data   data to encrypt
+     * @param length number of bytes of data
+     * @param key    32 bytes key
+     * @param iv     12 bytes IV (must never repeat for the same key)
+     * @return length of ciphertext (with tag) in buffer()
+     */
+    public int encrypt(byte[] data, int length, byte[] key, byte[] iv) throws GeneralSecurityException {
+        return encrypt(data, length, key, iv, EntryDictionary.NONE);
+    }
+
+    /**
+     * Compresses and encrypts data with AES-GCM (v3)
+     *
+     * @param data       data to encrypt
+     * @param length     number of bytes of data
+     * @param key        32 bytes key
+     * @param iv         12 bytes IV (must never repeat for the same key)
+     * @param dictionary version of preset dictionary (see EntryDictionary)
+     * @return length of ciphertext (with tag) in buffer()
+     */
+    public synchronized int encrypt(byte[] data, int length, byte[] key, byte[] iv, int dictionary) throws GeneralSecurityException {
+        // Compress into scratch buffer
+        int compressedLength = dictionary == EntryDictionary.NONE ? deflate(deflater, null, data, length)
+                : deflate(rawDeflater, EntryDictionary.get(dictionary), data, length);
+
+        // Encrypt and authenticate
+        output = ensure(output, compressedLength + GCM_TAG_LENGTH);
+        gcmCipher.init(Cipher.ENCRYPT_MODE, keySpec(key), new GCMParameterSpec(GCM_TAG_LENGTH * 8, iv));
+        return gcmCipher.doFinal(scratch, 0, compressedLength, output, 0);
+    }
+
+    /**
+     * Verifies, decrypts and decompresses AES-GCM (v3) data compressed without dictionary
+     *
+     * @param encrypted ciphertext (with tag)
+     * @param offset    offset of ciphertext
+     * @param length    length of ciphertext
+     * @param key       32 bytes key
+     * @param iv        12 bytes IV
+     * @return length of data in buffer()
+     */
+    public int decrypt(byte[] encrypted, int offset, int length, byte[] key, byte[] iv) throws GeneralSecurityException, DataFormatException {
+        return decrypt(encrypted, offset, length, key, iv, EntryDictionary.NONE);
+    }
+
+    /**
+     * Verifies, decrypts and decompresses AES-GCM (v3) data
+     *
+     * @param encrypted  ciphertext (with tag)
+     * @param offset     offset of ciphertext
+     * @param length     length of ciphertext
+     * @param key        32 bytes key
+     * @param iv         12 bytes IV
+     * @param dictionary version of preset dictionary (see EntryDictionary)
+     * @return length of data in buffer()
+     */
+    public synchronized int decrypt(byte[] encrypted, int offset, int length, byte[] key, byte[] iv, int dictionary) throws GeneralSecurityException, DataFormatException {
+        byte[] dictionaryBytes = EntryDictionary.get(dictionary);
+
+        // Verify and decrypt (AEADBadTagException in case of wrong key or modified data)
+        scratch = ensure(scratch, length);
+        gcmCipher.init(Cipher.DECRYPT_MODE, keySpec(key), new GCMParameterSpec(GCM_TAG_LENGTH * 8, iv));
+        int compressedLength = gcmCipher.doFinal(encrypted, offset, length, scratch, 0);
+
+        // Decompress
+        if (dictionaryBytes == null) return inflate(inflater, null, compressedLength);
+        return inflate(rawInflater, dictionaryBytes, compressedLength);
+    }
+
+    /**
+     * Adds checksum, compresses and encrypts data with AES-CBC (v2). Kept for compatibility tests and benchmarks
+     *
+     * @param data   data to encrypt
+     * @param length number of bytes of data
+     * @param key    32 bytes key
+     * @param iv     16 bytes IV
+     * @return length of ciphertext in buffer()
+     */
+    synchronized int encryptCbc(byte[] data, int length, byte[] key, byte[] iv) throws GeneralSecurityException {
+        // Data + checksum
+        byte[] withChecksum = new byte[length + CHECKSUM_LENGTH];
+        System.arraycopy(data, 0, withChecksum, 0, length);
+        md5.update(data, 0, length);
+        md5.digest(withChecksum, length, CHECKSUM_LENGTH);
+
+        // Compress into scratch buffer
+        int compressedLength = deflate(deflater, null, withChecksum, withChecksum.length);
+
+        // Encrypt
+        output = ensure(output, compressedLength + 16);
+        cbcCipher.init(Cipher.ENCRYPT_MODE, keySpec(key), new IvParameterSpec(iv));
+        return cbcCipher.doFinal(scratch, 0, compressedLength, output, 0);
+    }
+
+    /**
+     * Decrypts, decompresses AES-CBC (v2) data and verifies it's checksum
+     *
+     * @param encrypted ciphertext
+     * @param offset    offset of ciphertext
+     * @param length    length of ciphertext
+     * @param key       32 bytes key
+     * @param iv        16 bytes IV
+     * @return length of data (without checksum) in buffer()
+     */
+    public synchronized int decryptCbc(byte[] encrypted, int offset, int length, byte[] key, byte[] iv) throws GeneralSecurityException, DataFormatException {
+        // Decrypt
+        scratch = ensure(scratch, length + 16);
+        cbcCipher.init(Cipher.DECRYPT_MODE, keySpec(key), new IvParameterSpec(iv));
+        int compressedLength = cbcCipher.doFinal(encrypted, offset, length, scratch, 0);
+
+        // Decompress
+        int dataLength = inflate(inflater, null, compressedLength);
+
+        // Verify checksum
+        dataLength -= CHECKSUM_LENGTH;
+        if (dataLength < 0) throw new DataFormatException("No checksum");
+        md5.update(output, 0, dataLength);
+        md5.digest(checksum, 0, CHECKSUM_LENGTH);
+        int diff = 0;
+        for (int i = 0; i < CHECKSUM_LENGTH; i++)
+            diff |= checksum[i] ^ output[dataLength + i];
+        if (diff != 0) throw new GeneralSecurityException("Checksum verification error");
+
+        return dataLength;
+    }
+
+    /**
+     * Compresses length bytes of data into scratch buffer
+     *
+     * @param dictionary preset dictionary or null
+     * @return compressed length
+     */
+    private int deflate(Deflater deflater, byte[] dictionary, byte[] data, int length) {
+        deflater.reset();
+        if (dictionary != null) deflater.setDictionary(dictionary);
+        deflater.setInput(data, 0, length);
+        deflater.finish();
+        scratch = ensure(scratch, length + 64);
+        int compressedLength = 0;
+        while (!deflater.finished()) {
+            if (compressedLength == scratch.length) scratch = Arrays.copyOf(scratch, scratch.length * 2);
+            compressedLength += deflater.deflate(scratch, compressedLength, scratch.length - compressedLength);
+        }
+        return compressedLength;
+    }
+
+    /**
+     * Decompresses compressedLength bytes of scratch buffer into output buffer
+     *
+     * @param dictionary preset dictionary or null. Raw streams need it before the input
+     * @return decompressed length
+     */
+    private int inflate(Inflater inflater, byte[] dictionary, int compressedLength) throws DataFormatException {
+        inflater.reset();
+        if (dictionary != null) inflater.setDictionary(dictionary);
+        inflater.setInput(scratch, 0, compressedLength);
+        output = ensure(output, compressedLength * 4);
+        int dataLength = 0;
+        while (!inflater.finished()) {
+            if (dataLength == output.length) output = Arrays.copyOf(output, output.length * 2);
+            int inflated = inflater.inflate(output, dataLength, output.length - dataLength);
+            if (inflated == 0 && !inflater.finished() && (inflater.needsInput() || inflater.needsDictionary()))
+                throw new DataFormatException("Truncated data");
+            dataLength += inflated;
+        }
+        return dataLength;
+    }
+
+    /**
+     * @return key spec. Rebuilt only if key changed
+     */
+    private SecretKeySpec keySpec(byte[] key) throws GeneralSecurityException {
+        if (keySpec == null || !Arrays.equals(this.key, key)) {
+            if (key.length != this.key.length) throw new GeneralSecurityException("Key must be 32 bytes long");
+            System.arraycopy(key, 0, this.key, 0, key.length);
+            keySpec = new SecretKeySpec(this.key, "AES");
+        }
+        return keySpec;
+    }
+
+    /**
+     * Wipes key and buffers. Ciphers are initialized with zero key to replace their key schedule
+     */
+    private synchronized void clear() {
+        if (keySpec == null) return;
+        Arrays.fill(key, (byte) 0);
+        keySpec = null;
+        Arrays.fill(scratch, (byte) 0);
+        Arrays.fill(output, (byte) 0);
+        try {
+            SecretKeySpec zeroKeySpec = new SecretKeySpec(key, "AES");
+            gcmCipher.init(Cipher.DECRYPT_MODE, zeroKeySpec, new GCMParameterSpec(GCM_TAG_LENGTH * 8, new byte[GCM_IV_LENGTH]));
+            cbcCipher.init(Cipher.DECRYPT_MODE, zeroKeySpec, new IvParameterSpec(new byte[16]));
+        } catch (GeneralSecurityException ignored) {
+        }
+    }
+
+    /**
+     * @return buffer with at least size bytes. Oversized buffers are replaced with smaller ones
+     */
+    private static byte[] ensure(byte[] buffer, int size) {
+        if (buffer.length < size) return new byte[Math.max(size, buffer.length * 2)];
+        if (buffer.length > BUFFER_SIZE_RETAINED_MAX && size <= BUFFER_SIZE_DEFAULT) return new byte[BUFFER_SIZE_DEFAULT];
+        return buffer;
+    }
+}
@@ -0,0 +1,64 @@
+/**
+ * This file is part of the PetalVault-Android password manager distribution.
+ * See <https://github.com/F33RNI/PetalVault-Android>.
+ * Copyright (C) 2024 Fern Lane
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, version 3.
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.f3rni.petalvault;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Built-in preset Deflate dictionaries for entry payloads. Entries are usually 60-200 bytes of JSON,
+ * so without a dictionary Deflate has nothing to refer to and often makes them larger.
+ * <p>
+ * Dictionaries are referenced by version from the encrypted entry ("d" key), so they must never be changed.
+ * To improve a dictionary, add a new version and point CURRENT to it
+ */
+public class EntryDictionary {
+    // No dictionary (zlib stream)
+    public static final int NONE = 0;
+
+    // Raw Deflate stream with dictionary V1
+    public static final int V1 = 1;
+
+    // Dictionary of new entries
+    public static final int CURRENT = V1;
+
+    // Deflate prefers matches at the end of dictionary, so the most common fragments go last
+    private static final String V1_CONTENT = ""
+            // Usernames and domains
+            + "admin administrator root test info support contact mail email me my "
+            + "@protonmail.com@proton.me@outlook.com@hotmail.com@yahoo.com@icloud.com@yandex.ru@mail.ru@gmail.com"
+            + "amazon.comapple.comdiscord.comdropbox.comebay.comfacebook.cominstagram.comlinkedin.commicrosoft.com"
+            + "netflix.compaypal.comreddit.comspotify.comsteampowered.comtwitter.comx.comyoutube.comgithub.comgoogle.com"
+            + "https://accounts.https://login.https://www.http://www."
+            + ".co.uk.de.fr.ru.io.net.org.com/"
+
+            // Notes
+            + "\"notes\":\"Recovery codes: Security question: PIN: \\n"
+
+            // Keys of index and secret parts, in both orders of JSONObject
+            + "\",\"pass\":\"\",\"notes\":\"\",\"user\":\"\",\"site\":\"\",\"id\":\""
+            + "\"id\":\"\",\"site\":\"\",\"user\":\"\",\"pass\":\"\",\"notes\":\"\"";
+
+    private static final byte[] V1_BYTES = V1_CONTENT.getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * @param version dictionary version (from "d" key of encrypted entry)
+     * @return dictionary bytes or null for NONE. Returned array must not be modified
+     * @throws IllegalArgumentException in case of unknown version (ex. entry from a newer app)
+     */
+    public static byte[] get(int version) {
+        if (version == NONE) return null;
+        if (version == V1) return V1_BYTES;
+        throw new IllegalArgumentException("Unknown entry dictionary: " + version);
+    }
+}
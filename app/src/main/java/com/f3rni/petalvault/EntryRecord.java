@@ -0,0 +1,231 @@
+/**
+ * This file is part of the PetalVault-Android password manager distribution.
+ * See <https://github.com/F33RNI/PetalVault-Android>.
+ * Copyright (C) 2024 Fern Lane
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, version 3.
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.f3rni.petalvault;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Plaintext of entry format v5: sequence of fields, each one is varint tag + varint length + UTF-8 bytes.
+ * Unknown tags are skipped by Reader, so new fields can be added without a new format
+ */
+public class EntryRecord {
+    public static final int TAG_ID = 1;
+    public static final int TAG_SITE = 2;
+    public static final int TAG_USER = 3;
+    public static final int TAG_PASS = 4;
+    public static final int TAG_NOTES = 5;
+
+    // JSON keys by tag
+    private static final String[] KEYS = {null, "id", "site", "user", "pass", "notes"};
+
+    private static final int BUFFER_SIZE_DEFAULT = 256;
+
+    // Buffers larger than this (ex. after huge notes) are not kept between records
+    private static final int BUFFER_SIZE_RETAINED_MAX = 64 * 1024;
+
+    private static final ThreadLocal<Writer> writers = new ThreadLocal<Writer>() {
+        @Override
+        protected Writer initialValue() {
+            return new Writer();
+        }
+    };
+
+    /**
+     * @return empty writer of the current thread. It's content is valid until the next call on the same thread
+     */
+    public static Writer writer() {
+        Writer writer = writers.get();
+        writer.reset();
+        return writer;
+    }
+
+    /**
+     * Converts record into JSON dictionary. Unknown tags are skipped
+     *
+     * @return JSON dictionary with "id", "site", "user", "pass" and "notes" keys (only existing ones)
+     */
+    public static JSONObject toJSON(byte[] data, int offset, int length) throws JSONException {
+        JSONObject json = new JSONObject();
+        Reader reader = new Reader(data, offset, length);
+        while (reader.next())
+            if (reader.tag() > 0 && reader.tag() < KEYS.length) json.put(KEYS[reader.tag()], reader.value());
+        return json;
+    }
+
+    /**
+     * Encodes fields into reusable buffer
+     */
+    public static class Writer {
+        private byte[] buffer = new byte[BUFFER_SIZE_DEFAULT];
+        private int length;
+
+        private Writer() {
+        }
+
+        /**
+         * Removes all fields
+         */
+        public void reset() {
+            if (buffer.length > BUFFER_SIZE_RETAINED_MAX) buffer = new byte[BUFFER_SIZE_DEFAULT];
+            length = 0;
+        }
+
+        /**
+         * Appends field. null and empty values are skipped
+         *
+         * @param tag   field tag (TAG_...)
+         * @param value field value
+         */
+        public void write(int tag, String value) {
+            if (value == null || value.isEmpty()) return;
+            int valueLength = utf8Length(value);
+            ensure(10 + valueLength);
+            writeVarint(tag);
+            writeVarint(valueLength);
+
+            // UTF-8 without intermediate byte array
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c < 0x80) buffer[length++] = (byte) c;
+                else if (c < 0x800) {
+                    buffer[length++] = (byte) (0xC0 | (c >>> 6));
+                    buffer[length++] = (byte) (0x80 | (c & 0x3F));
+                } else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                    buffer[length++] = (byte) (0xF0 | (codePoint >>> 18));
+                    buffer[length++] = (byte) (0x80 | ((codePoint >>> 12) & 0x3F));
+                    buffer[length++] = (byte) (0x80 | ((codePoint >>> 6) & 0x3F));
+                    buffer[length++] = (byte) (0x80 | (codePoint & 0x3F));
+                } else if (Character.isSurrogate(c)) buffer[length++] = '?';
+                else {
+                    buffer[length++] = (byte) (0xE0 | (c >>> 12));
+                    buffer[length++] = (byte) (0x80 | ((c >>> 6) & 0x3F));
+                    buffer[length++] = (byte) (0x80 | (c & 0x3F));
+                }
+            }
+        }
+
+        /**
+         * @return buffer with encoded fields. Valid until the next write
+         */
+        public byte[] buffer() {
+            return buffer;
+        }
+
+        /**
+         * @return number of encoded bytes in buffer()
+         */
+        public int length() {
+            return length;
+        }
+
+        private void writeVarint(int value) {
+            while ((value & ~0x7F) != 0) {
+                buffer[length++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[length++] = (byte) value;
+        }
+
+        private void ensure(int size) {
+            if (buffer.length - length < size) buffer = Arrays.copyOf(buffer, Math.max(length + size, buffer.length * 2));
+        }
+
+        /**
+         * @return number of UTF-8 bytes of value (unpaired surrogates are encoded as '?')
+         */
+        private static int utf8Length(String value) {
+            int utf8Length = 0;
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c < 0x80) utf8Length++;
+                else if (c < 0x800) utf8Length += 2;
+                else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    utf8Length += 4;
+                    i++;
+                } else if (Character.isSurrogate(c)) utf8Length++;
+                else utf8Length += 3;
+            }
+            return utf8Length;
+        }
+    }
+
+    /**
+     * Iterates over encoded fields without copying them
+     */
+    public static class Reader {
+        private final byte[] data;
+        private final int end;
+        private int position, tag, valueOffset, valueLength;
+
+        /**
+         * @param data   buffer with encoded fields. Must not be modified while reading
+         * @param offset offset of the first field
+         * @param length number of encoded bytes
+         */
+        public Reader(byte[] data, int offset, int length) {
+            this.data = data;
+            this.position = offset;
+            this.end = offset + length;
+        }
+
+        /**
+         * Moves to the next field
+         *
+         * @return false if there are no more fields
+         * @throws IllegalArgumentException in case of truncated or malformed data
+         */
+        public boolean next() {
+            if (position >= end) return false;
+            tag = readVarint();
+            valueLength = readVarint();
+            if (valueLength > end - position) throw new IllegalArgumentException("Truncated field " + tag);
+            valueOffset = position;
+            position += valueLength;
+            return true;
+        }
+
+        /**
+         * @return tag of the current field
+         */
+        public int tag() {
+            return tag;
+        }
+
+        /**
+         * @return value of the current field
+         */
+        public String value() {
+            return new String(data, valueOffset, valueLength, StandardCharsets.UTF_8);
+        }
+
+        private int readVarint() {
+            int value = 0;
+            for (int shift = 0; shift < 32; shift += 7) {
+                if (position >= end) throw new IllegalArgumentException("Truncated record");
+                byte b = data[position++];
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    if (value < 0) throw new IllegalArgumentException("Malformed varint");
+                    return value;
+                }
+            }
+            throw new IllegalArgumentException("Malformed varint");
+        }
+    }
+}
@@ -0,0 +1,306 @@
+/**
+ * This file is part of the PetalVault-Android password manager distribution.
+ * See <https://github.com/F33RNI/PetalVault-Android>.
+ * Copyright (C) 2024 Fern Lane
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, version 3.
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.f3rni.petalvault;
+
+import java.text.Normalizer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * In-memory trigram index over normalized site and username of vault entries for substring search.
+ * It holds plaintext, so it must be cleared when vault is closed. Not thread-safe
+ */
+public class EntrySearchIndex {
+    private static final Pattern COMBINING_MARKS = Pattern.compile("\\p{Mn}+");
+
+    // Slot of each entry and entries, normalized sites and usernames by slot (null for free slot)
+    private final HashMap<String, Integer> slots = new HashMap<>();
+    private final ArrayList<VaultEntry> entries = new ArrayList<>();
+    private final ArrayList<String> sites = new ArrayList<>();
+    private final ArrayList<String> usernames = new ArrayList<>();
+    private final ArrayDeque<Integer> freeSlots = new ArrayDeque<>();
+
+    // Open addressing table of sorted slots of entries by trigram (3 chars packed into long).
+    // Trigrams are removed only by clear(), so there are no tombstones
+    private long[] trigramKeys = new long[1024];
+    private Postings[] trigramPostings = new Postings[1024];
+    private int trigramsCount;
+
+    /**
+     * Clears index and adds all entries
+     *
+     * @param entries entries of opened vault
+     */
+    public void rebuild(Collection<VaultEntry> entries) {
+        clear();
+        this.entries.ensureCapacity(entries.size());
+        for (VaultEntry entry : entries)
+            add(entry);
+    }
+
+    /**
+     * Adds entry or updates it if entry with the same ID is indexed
+     */
+    public void add(VaultEntry entry) {
+        if (slots.containsKey(entry.getId())) {
+            update(entry);
+            return;
+        }
+
+        String site = normalize(entry.getSite()), username = normalize(entry.getUsername());
+        Integer slot = freeSlots.poll();
+        if (slot == null) {
+            slot = entries.size();
+            entries.add(entry);
+            sites.add(site);
+            usernames.add(username);
+        } else {
+            entries.set(slot, entry);
+            sites.set(slot, site);
+            usernames.set(slot, username);
+        }
+        slots.put(entry.getId(), slot);
+
+        for (long trigram : trigrams(site, username))
+            getOrCreatePostings(trigram).add(slot);
+    }
+
+    /**
+     * Re-indexes entry after it's site or username was changed
+     */
+    public void update(VaultEntry entry) {
+        Integer slot = slots.get(entry.getId());
+        if (slot == null) {
+            add(entry);
+            return;
+        }
+
+        // Nothing to re-index
+        if (sites.get(slot).equals(normalize(entry.getSite())) && usernames.get(slot).equals(normalize(entry.getUsername()))) {
+            entries.set(slot, entry);
+            return;
+        }
+
+        remove(entry.getId());
+        add(entry);
+    }
+
+    /**
+     * Removes entry from index
+     *
+     * @param id unique ID
+     */
+    public void remove(String id) {
+        Integer slot = slots.remove(id);
+        if (slot == null) return;
+
+        for (long trigram : trigrams(sites.get(slot), usernames.get(slot)))
+            getPostings(trigram).remove(slot);
+
+        entries.set(slot, null);
+        sites.set(slot, null);
+        usernames.set(slot, null);
+        freeSlots.add(slot);
+    }
+
+    public void clear() {
+        slots.clear();
+        entries.clear();
+        sites.clear();
+        usernames.clear();
+        freeSlots.clear();
+        trigramKeys = new long[1024];
+        trigramPostings = new Postings[1024];
+        trigramsCount = 0;
+    }
+
+    public int size() {
+        return slots.size();
+    }
+
+    /**
+     * Searches for entries which site or username contains query (case and diacritics insensitive).
+     * Queries shorter than 3 characters are matched against all entries
+     *
+     * @param query text to search for
+     * @return found entries in no particular order
+     */
+    public List<VaultEntry> search(String query) {
+        String normalized = normalize(query);
+        ArrayList<VaultEntry> found = new ArrayList<>();
+
+        // Short query -> check all entries
+        if (normalized.length() < 3) {
+            for (int slot = 0; slot < entries.size(); slot++)
+                if (entries.get(slot) != null && matches(slot, normalized)) found.add(entries.get(slot));
+            return found;
+        }
+
+        // Candidates have all trigrams of query. Start from the rarest trigram
+        long[] queryTrigrams = trigrams(normalized, "");
+        Postings[] lists = new Postings[queryTrigrams.length];
+        int i = 0;
+        for (long trigram : queryTrigrams) {
+            lists[i] = getPostings(trigram);
+            if (lists[i] == null || lists[i++].size == 0) return found;
+        }
+        Arrays.sort(lists, (a, b) -> Integer.compare(a.size, b.size));
+
+        int[] candidates = Arrays.copyOf(lists[0].slots, lists[0].size);
+        int candidatesCount = candidates.length;
+        for (i = 1; i < lists.length && candidatesCount > 0; i++)
+            candidatesCount = intersect(candidates, candidatesCount, lists[i]);
+
+        // Trigrams may be at different places -> check substring
+        for (i = 0; i < candidatesCount; i++)
+            if (matches(candidates[i], normalized)) found.add(entries.get(candidates[i]));
+        return found;
+    }
+
+    /**
+     * @return slots of trigram or null if it was never indexed
+     */
+    private Postings getPostings(long trigram) {
+        int mask = trigramKeys.length - 1;
+        for (int i = hash(trigram) & mask; trigramPostings[i] != null; i = (i + 1) & mask)
+            if (trigramKeys[i] == trigram) return trigramPostings[i];
+        return null;
+    }
+
+    private Postings getOrCreatePostings(long trigram) {
+        int mask = trigramKeys.length - 1;
+        int i = hash(trigram) & mask;
+        for (; trigramPostings[i] != null; i = (i + 1) & mask)
+            if (trigramKeys[i] == trigram) return trigramPostings[i];
+
+        Postings postings = new Postings();
+        trigramKeys[i] = trigram;
+        trigramPostings[i] = postings;
+
+        // Keep load factor below 0.5
+        if (++trigramsCount * 2 > trigramKeys.length) {
+            long[] keys = trigramKeys;
+            Postings[] values = trigramPostings;
+            trigramKeys = new long[keys.length * 2];
+            trigramPostings = new Postings[keys.length * 2];
+            mask = trigramKeys.length - 1;
+            for (int j = 0; j < keys.length; j++) {
+                if (values[j] == null) continue;
+                int k = hash(keys[j]) & mask;
+                while (trigramPostings[k] != null) k = (k + 1) & mask;
+                trigramKeys[k] = keys[j];
+                trigramPostings[k] = values[j];
+            }
+        }
+        return postings;
+    }
+
+    private static int hash(long trigram) {
+        long hash = trigram * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32));
+    }
+
+    private boolean matches(int slot, String normalizedQuery) {
+        return sites.get(slot).contains(normalizedQuery) || usernames.get(slot).contains(normalizedQuery);
+    }
+
+    /**
+     * Keeps only candidates that are also in postings
+     *
+     * @param candidates sorted slots
+     * @param count      number of candidates
+     * @param postings   slots of trigram
+     * @return number of kept candidates (at the beginning of candidates)
+     */
+    private static int intersect(int[] candidates, int count, Postings postings) {
+        int kept = 0, j = 0;
+        for (int i = 0; i < count && j < postings.size; i++) {
+            while (j < postings.size && postings.slots[j] < candidates[i]) j++;
+            if (j < postings.size && postings.slots[j] == candidates[i]) candidates[kept++] = candidates[i];
+        }
+        return kept;
+    }
+
+    /**
+     * Converts text to lower case without diacritics
+     *
+     * @param text text or null
+     * @return normalized text (empty for null)
+     */
+    static String normalize(String text) {
+        if (text == null) return "";
+
+        // Decompose and remove accents only if there are non-ASCII characters
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) > 0x7F) {
+                text = COMBINING_MARKS.matcher(Normalizer.normalize(text, Normalizer.Form.NFD)).replaceAll("");
+                break;
+            }
+        }
+        return text.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * @return sorted distinct trigrams of both texts
+     */
+    private static long[] trigrams(String first, String second) {
+        long[] trigrams = new long[Math.max(first.length() - 2, 0) + Math.max(second.length() - 2, 0)];
+        int count = addTrigrams(first, trigrams, 0);
+        count = addTrigrams(second, trigrams, count);
+        Arrays.sort(trigrams, 0, count);
+
+        // Remove duplicates
+        int distinct = 0;
+        for (int i = 0; i < count; i++)
+            if (distinct == 0 || trigrams[distinct - 1] != trigrams[i]) trigrams[distinct++] = trigrams[i];
+        return distinct == trigrams.length ? trigrams : Arrays.copyOf(trigrams, distinct);
+    }
+
+    private static int addTrigrams(String text, long[] trigrams, int count) {
+        for (int i = 0; i + 3 <= text.length(); i++)
+            trigrams[count++] = ((long) text.charAt(i) << 32) | ((long) text.charAt(i + 1) << 16) | text.charAt(i + 2);
+        return count;
+    }
+
+    // Sorted slots
+    private static class Postings {
+        private int[] slots = new int[4];
+        private int size;
+
+        void add(int slot) {
+            // Slots are mostly added in ascending order
+            int position = size == 0 || slots[size - 1] < slot ? size : Arrays.binarySearch(slots, 0, size, slot);
+            if (position >= 0 && position < size) return;
+            if (position < 0) position = -position - 1;
+            if (size == slots.length) slots = Arrays.copyOf(slots, size * 2);
+            System.arraycopy(slots, position, slots, position + 1, size - position);
+            slots[position] = slot;
+            size++;
+        }
+
+        void remove(int slot) {
+            int position = Arrays.binarySearch(slots, 0, size, slot);
+            if (position < 0) return;
+            System.arraycopy(slots, position + 1, slots, position, size - position - 1);
+            size--;
+        }
+    }
+}
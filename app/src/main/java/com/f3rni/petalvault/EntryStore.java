@@ -0,0 +1,175 @@
+/**
+ * This file is part of the PetalVault-Android password manager distribution.
+ * See <https://github.com/F33RNI/PetalVault-Android>.
+ * Copyright (C) 2024 Fern Lane
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, version 3.
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.f3rni.petalvault;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.RandomAccess;
+
+/**
+ * Entries of opened vault in display order (top first) with O(1) lookup by ID, insertion at the top or bottom
+ * and removal. Entries are kept in two arrays growing from the middle: top part (reversed) and bottom part,
+ * so each entry has a sequence number that doesn't change until the next compaction. Removed entries leave
+ * holes which are compacted before the next access by position. Not thread-safe
+ */
+public class EntryStore extends AbstractList<VaultEntry> implements RandomAccess {
+    // Entries with sequence numbers -1, -2, ... and 0, 1, ... (null is a hole)
+    private final ArrayList<VaultEntry> top = new ArrayList<>();
+    private ArrayList<VaultEntry> bottom = new ArrayList<>();
+
+    private final HashMap<String, Integer> sequences = new HashMap<>();
+    private int holes;
+
+    /**
+     * @param index position in display order
+     * @return entry at index
+     */
+    @Override
+    public VaultEntry get(int index) {
+        if (index < 0 || index >= sequences.size()) throw new IndexOutOfBoundsException("Index: " + index + ", size: " + sequences.size());
+        compact();
+        return slot(index - top.size());
+    }
+
+    @Override
+    public int size() {
+        return sequences.size();
+    }
+
+    /**
+     * @param id unique ID
+     * @return entry or null if not found
+     */
+    public VaultEntry getById(String id) {
+        Integer sequence = sequences.get(id);
+        return sequence == null ? null : slot(sequence);
+    }
+
+    /**
+     * @param id unique ID
+     * @return position of entry in display order or -1 if not found
+     */
+    public int indexOfId(String id) {
+        if (!sequences.containsKey(id)) return -1;
+        compact();
+        return sequences.get(id) + top.size();
+    }
+
+    public boolean containsId(String id) {
+        return sequences.containsKey(id);
+    }
+
+    /**
+     * Adds entry to the top. Entry with the same ID is removed
+     */
+    public void addFirst(VaultEntry entry) {
+        removeById(entry.getId());
+        top.add(entry);
+        sequences.put(entry.getId(), -top.size());
+        modCount++;
+    }
+
+    /**
+     * Adds entry to the bottom. Entry with the same ID is removed
+     */
+    public void addLast(VaultEntry entry) {
+        removeById(entry.getId());
+        bottom.add(entry);
+        sequences.put(entry.getId(), bottom.size() - 1);
+        modCount++;
+    }
+
+    /**
+     * Adds entries to the bottom keeping their order
+     *
+     * @param entries entries to add
+     * @return true if entries were added
+     */
+    @Override
+    public boolean addAll(Collection<? extends VaultEntry> entries) {
+        bottom.ensureCapacity(bottom.size() + entries.size());
+        for (VaultEntry entry : entries)
+            addLast(entry);
+        return !entries.isEmpty();
+    }
+
+    /**
+     * Replaces entry with the same ID keeping it's position
+     *
+     * @param entry new entry
+     * @return true if replaced, false if there is no entry with this ID
+     */
+    public boolean replace(VaultEntry entry) {
+        Integer sequence = sequences.get(entry.getId());
+        if (sequence == null) return false;
+        if (sequence < 0) top.set(-sequence - 1, entry);
+        else bottom.set(sequence, entry);
+        return true;
+    }
+
+    /**
+     * @param id unique ID
+     * @return removed entry or null if not found
+     */
+    public VaultEntry removeById(String id) {
+        Integer sequence = sequences.remove(id);
+        if (sequence == null) return null;
+        VaultEntry entry = slot(sequence);
+
+        // Shrink if it's the last one of it's part, otherwise leave a hole
+        if (sequence < 0 && sequence == -top.size()) top.remove(top.size() - 1);
+        else if (sequence >= 0 && sequence == bottom.size() - 1) bottom.remove(bottom.size() - 1);
+        else {
+            if (sequence < 0) top.set(-sequence - 1, null);
+            else bottom.set(sequence, null);
+            holes++;
+        }
+        modCount++;
+        return entry;
+    }
+
+    @Override
+    public void clear() {
+        top.clear();
+        bottom.clear();
+        sequences.clear();
+        holes = 0;
+        modCount++;
+    }
+
+    private VaultEntry slot(int sequence) {
+        return sequence < 0 ? top.get(-sequence - 1) : bottom.get(sequence);
+    }
+
+    /**
+     * Moves all entries into bottom part without holes and renumbers them
+     */
+    private void compact() {
+        if (holes == 0) return;
+        ArrayList<VaultEntry> entries = new ArrayList<>(sequences.size());
+        for (int i = top.size() - 1; i >= 0; i--)
+            if (top.get(i) != null) entries.add(top.get(i));
+        for (VaultEntry entry : bottom)
+            if (entry != null) entries.add(entry);
+
+        top.clear();
+        bottom = entries;
+        for (int i = 0; i < entries.size(); i++)
+            sequences.put(entries.get(i).getId(), i);
+        holes = 0;
+    }
+}
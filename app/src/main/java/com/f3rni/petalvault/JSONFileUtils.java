@@ -15,18 +15,33 @@ package com.f3rni.petalvault;
 
 import android.util.Log;
 
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.function.UnaryOperator;
 
 public class JSONFileUtils {
     private static final String TAG = JSONFileUtils.class.getName();
 
+    // Suffix of temp file next to the target file. It's renamed over the target only after being fully written
+    static final String TEMP_SUFFIX = ".tmp";
+
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
     /**
      * Reads a JSON object from a specified file in the app's internal storage.
      *
@@ -37,9 +52,10 @@ public class JSONFileUtils {
         JSONObject jsonObject = new JSONObject();
         if (file.exists() && file.length() > 0) {
             Log.i(TAG, "Trying to read JSON from file " + file.getAbsoluteFile());
-            try (FileInputStream fileInputStream = new FileInputStream(file)) {
+            try (DataInputStream inputStream = new DataInputStream(new FileInputStream(file))) {
+                // read() may return less than requested
                 byte[] buffer = new byte[(int) file.length()];
-                fileInputStream.read(buffer);
+                inputStream.readFully(buffer);
                 String jsonContent = new String(buffer, StandardCharsets.UTF_8);
                 jsonObject = new JSONObject(jsonContent);
             } catch (IOException | JSONException e) {
@@ -50,17 +66,125 @@ public class JSONFileUtils {
     }
 
     /**
-     * Writes a JSON object to a specified file in the app's internal storage.
+     * Atomically writes a JSON object (as compact JSON) to a specified file in the app's internal storage.
+     * JSON is streamed into a temp file, which is synced to the disk and renamed over the target file,
+     * so in case of crash or error the target file keeps it's previous content
      *
      * @param file       file to write the JSON data to
      * @param jsonObject the JSON object to be written to the file
+     * @return true if file was written
+     */
+    public static boolean writeJsonToFile(File file, JSONObject jsonObject) {
+        return writeJsonToFile(file, jsonObject, null);
+    }
+
+    /**
+     * See writeJsonToFile(File, JSONObject)
+     *
+     * @param streamWrapper wraps stream of temp file (for tests) or null
      */
-    public static void writeJsonToFile(File file, JSONObject jsonObject) {
+    static boolean writeJsonToFile(File file, JSONObject jsonObject, UnaryOperator<OutputStream> streamWrapper) {
         Log.i(TAG, "Trying to save JSON as file " + file.getAbsoluteFile());
-        try (FileOutputStream fileOutputStream = new FileOutputStream(file)) {
-            fileOutputStream.write(jsonObject.toString(4).getBytes(StandardCharsets.UTF_8));
+        File tempFile = new File(file.getAbsoluteFile().getParentFile(), file.getName() + TEMP_SUFFIX);
+        try {
+            try (FileOutputStream fileOutputStream = new FileOutputStream(tempFile)) {
+                FileChannel channel = fileOutputStream.getChannel();
+                OutputStream outputStream = Channels.newOutputStream(channel);
+                if (streamWrapper != null) outputStream = streamWrapper.apply(outputStream);
+
+                // Stream compact JSON
+                Writer writer = new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8), WRITE_BUFFER_SIZE);
+                writeJson(writer, jsonObject);
+                writer.flush();
+
+                // Make sure data is on the disk before replacing the target file
+                channel.force(true);
+            }
+
+            // Atomically replace the target file
+            if (!tempFile.renameTo(file)) throw new IOException("Unable to rename " + tempFile.getName() + " to " + file.getName());
+            return true;
         } catch (IOException | JSONException e) {
             Log.w(TAG, "Unable to save JSON to file: " + file.getAbsoluteFile(), e);
+            if (tempFile.exists() && !tempFile.delete()) Log.w(TAG, "Unable to delete " + tempFile.getAbsoluteFile());
+        }
+        return false;
+    }
+
+    /**
+     * Writes value (JSONObject, JSONArray, String, Number, Boolean or JSONObject.NULL) as compact JSON
+     * without building the whole string in memory
+     */
+    public static void writeJson(Writer writer, Object value) throws IOException, JSONException {
+        if (value instanceof JSONObject) {
+            JSONObject jsonObject = (JSONObject) value;
+            writer.write('{');
+            Iterator<String> keys = jsonObject.keys();
+            boolean first = true;
+            while (keys.hasNext()) {
+                String key = keys.next();
+                if (!first) writer.write(',');
+                first = false;
+                writeString(writer, key);
+                writer.write(':');
+                writeJson(writer, jsonObject.get(key));
+            }
+            writer.write('}');
+        } else if (value instanceof JSONArray) {
+            JSONArray jsonArray = (JSONArray) value;
+            writer.write('[');
+            for (int i = 0; i < jsonArray.length(); i++) {
+                if (i != 0) writer.write(',');
+                writeJson(writer, jsonArray.get(i));
+            }
+            writer.write(']');
+        } else if (value instanceof String) writeString(writer, (String) value);
+        else if (value instanceof Number) writer.write(JSONObject.numberToString((Number) value));
+        else if (value instanceof Boolean) writer.write(value.toString());
+        else if (value == null || value == JSONObject.NULL) writer.write("null");
+        else writeString(writer, value.toString());
+    }
+
+    /**
+     * Writes quoted and escaped JSON string
+     */
+    private static void writeString(Writer writer, String string) throws IOException {
+        writer.write('"');
+        int start = 0;
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            if (c >= 0x20 && c != '"' && c != '\\' && c != '\u2028' && c != '\u2029') continue;
+
+            // Flush unescaped part
+            writer.write(string, start, i - start);
+            start = i + 1;
+            switch (c) {
+                case '"':
+                    writer.write("\\\"");
+                    break;
+                case '\\':
+                    writer.write("\\\\");
+                    break;
+                case '\b':
+                    writer.write("\\b");
+                    break;
+                case '\t':
+                    writer.write("\\t");
+                    break;
+                case '\n':
+                    writer.write("\\n");
+                    break;
+                case '\f':
+                    writer.write("\\f");
+                    break;
+                case '\r':
+                    writer.write("\\r");
+                    break;
+                default:
+                    writer.write(String.format("\\u%04x", (int) c));
+            }
         }
+        writer.write(string, start, string.length() - start);
+        writer.write('"');
     }
 }
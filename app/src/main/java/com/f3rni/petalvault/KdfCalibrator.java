@@ -0,0 +1,185 @@
+/**
+ * This file is part of the PetalVault-Android password manager distribution.
+ * See <https://github.com/F33RNI/PetalVault-Android>.
+ * Copyright (C) 2024 Fern Lane
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, version 3.
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.f3rni.petalvault;
+
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Picks KDF parameters for this device by benchmarking it. KDF type is selected by "kdf_type" config key
+ * (scrypt by default, or argon2id).
+ * scrypt: r is fixed at 8, p is the number of lanes that can run concurrently (up to LANES_MAX)
+ * and N is the largest power of 2 that fits target unlock time and memory budget, but not less than N_LANE_MIN.
+ * Every lane costs at least as much as the single lane of legacy vaults, so lanes only add work.
+ * Argon2id: t is fixed at 3, p is the number of cores (up to LANES_MAX)
+ * and m is the largest power of 2 KiB that fits target unlock time and memory budget.
+ * Result is cached in config, because it only depends on the device
+ */
+public class KdfCalibrator {
+    private static final String TAG = KdfCalibrator.class.getName();
+
+    private static final String CONFIG_KEY = "kdf_params";
+    private static final String CONFIG_KEY_TYPE = "kdf_type";
+
+    // Target duration of a single key derivation
+    private static final long TARGET_MILLIS = 1000;
+
+    // Lowest accepted scrypt cost (see KdfParams.fromJSON()). Calibration never goes above N_MAX
+    static final int N_MIN = 16384;
+    static final int N_MAX = 1 << 20;
+
+    // Calibrated cost of each lane is never below cost of legacy vaults (N=65536, p=1)
+    static final int N_LANE_MIN = 65536;
+    static final int R = 8;
+    static final int LANES_MAX = 4;
+
+    // Lowest accepted Argon2id memory M_MIN (16 MiB). Calibration never goes above M_MAX (1 GiB)
+    static final int M_MIN = 16384;
+    static final int M_MAX = 1 << 20;
+    static final int T = 3;
+
+    private static final int N_BENCHMARK = 2048;
+    private static final int M_BENCHMARK = 2048;
+    private static final int BENCHMARK_RUNS = 3;
+
+    /**
+     * Returns cached parameters or calibrates and caches them. Takes up to a few hundred ms on first call
+     *
+     * @param configManager config to cache parameters in
+     * @return KDF parameters for new keys
+     */
+    public static CryptoUtils.KdfParams get(ConfigManager configManager) {
+        String type = configManager.getString(CONFIG_KEY_TYPE, CryptoUtils.KdfParams.TYPE_SCRYPT);
+        if (!type.equals(CryptoUtils.KdfParams.TYPE_ARGON2ID)) type = CryptoUtils.KdfParams.TYPE_SCRYPT;
+
+        // Cached parameters are used only if KDF type wasn't changed since calibration
+        JSONObject cached = configManager.getJSONObject(CONFIG_KEY);
+        if (cached != null) {
+            try {
+                CryptoUtils.KdfParams kdfParams = CryptoUtils.KdfParams.fromJSON(cached);
+                if (kdfParams.type.equals(type)) return kdfParams;
+            } catch (JSONException e) {
+                Log.w(TAG, "Unable to parse cached KDF parameters", e);
+            }
+        }
+
+        CryptoUtils.KdfParams kdfParams = calibrate(type, TARGET_MILLIS, memoryBudget());
+        try {
+            configManager.edit().putJSONObject(CONFIG_KEY, kdfParams.toJSON()).apply();
+        } catch (JSONException e) {
+            Log.w(TAG, "Unable to cache KDF parameters", e);
+        }
+        return kdfParams;
+    }
+
+    /**
+     * Benchmarks KDF on this device
+     *
+     * @param type         KdfParams.TYPE_SCRYPT or KdfParams.TYPE_ARGON2ID
+     * @param targetMillis target duration of a single key derivation
+     * @param memoryBudget maximum memory of KDF in bytes
+     * @return chosen parameters
+     */
+    public static CryptoUtils.KdfParams calibrate(String type, long targetMillis, long memoryBudget) {
+        int cores = Runtime.getRuntime().availableProcessors();
+        int p = Math.max(1, Math.min(LANES_MAX, cores));
+        boolean argon2id = type.equals(CryptoUtils.KdfParams.TYPE_ARGON2ID);
+        CryptoUtils.KdfParams benchmarkParams = argon2id ? CryptoUtils.KdfParams.argon2id(M_BENCHMARK, T, p) : new CryptoUtils.KdfParams(N_BENCHMARK, R, p);
+        byte[] password = CryptoUtils.generateRandom(16);
+        byte[] salt = CryptoUtils.generateRandom(32);
+
+        // Warm up, then take the fastest run
+        benchmarkParams.derive(password, salt, 32);
+        long benchmarkNanos = Long.MAX_VALUE;
+        for (int i = 0; i < BENCHMARK_RUNS; i++) {
+            long timeStarted = System.nanoTime();
+            benchmarkParams.derive(password, salt, 32);
+            benchmarkNanos = Math.min(benchmarkNanos, System.nanoTime() - timeStarted);
+        }
+
+        CryptoUtils.KdfParams kdfParams;
+        if (argon2id) kdfParams = chooseArgon2id(benchmarkNanos, targetMillis * 1000000L, memoryBudget, p);
+        else kdfParams = chooseScrypt(benchmarkNanos, targetMillis * 1000000L, memoryBudget, p, cores);
+        Log.i(TAG, "Calibrated KDF: " + kdfParams.toString() + " (benchmark " + benchmarkNanos / 1000 + " us)");
+        return kdfParams;
+    }
+
+    /**
+     * Chooses scrypt parameters from benchmark result. Time is assumed to grow linearly with N
+     *
+     * @param benchmarkNanos duration of derivation with N_BENCHMARK, R and p
+     * @param targetNanos    target duration of a single key derivation
+     * @param memoryBudget   maximum size of scrypt arena in bytes
+     * @param p              benchmarked number of lanes
+     * @param cores          number of CPU cores
+     * @return chosen parameters
+     */
+    static CryptoUtils.KdfParams chooseScrypt(long benchmarkNanos, long targetNanos, long memoryBudget, int p, int cores) {
+        // Reduce lanes if even N_LANE_MIN doesn't fit memory budget. Lanes are never made cheaper instead
+        while (p > 1 && arenaSize(N_LANE_MIN, p, cores) > memoryBudget) p--;
+
+        int n = N_LANE_MIN;
+        while (n < N_MAX) {
+            int nNext = n * 2;
+            double estimatedNanos = (double) benchmarkNanos * nNext / N_BENCHMARK;
+            if (estimatedNanos > targetNanos || arenaSize(nNext, p, cores) > memoryBudget) break;
+            n = nNext;
+        }
+        return new CryptoUtils.KdfParams(n, R, p);
+    }
+
+    /**
+     * Chooses Argon2id parameters from benchmark result. Time is assumed to grow linearly with m
+     *
+     * @param benchmarkNanos duration of derivation with M_BENCHMARK, T and p
+     * @param targetNanos    target duration of a single key derivation
+     * @param memoryBudget   maximum memory in bytes
+     * @param p              benchmarked number of lanes
+     * @return chosen parameters
+     */
+    static CryptoUtils.KdfParams chooseArgon2id(long benchmarkNanos, long targetNanos, long memoryBudget, int p) {
+        int m = M_MIN;
+        while (m < M_MAX) {
+            int mNext = m * 2;
+            double estimatedNanos = (double) benchmarkNanos * mNext / M_BENCHMARK;
+            if (estimatedNanos > targetNanos || 1024L * mNext > memoryBudget) break;
+            m = mNext;
+        }
+        return CryptoUtils.KdfParams.argon2id(m, T, p);
+    }
+
+    /**
+     * @return maximum memory of KDF in bytes on this device. Stored parameters above it are rejected
+     */
+    static long memoryBudget() {
+        return Runtime.getRuntime().maxMemory() / 4;
+    }
+
+    /**
+     * @param n     scrypt CPU / memory cost
+     * @param r     scrypt block size
+     * @param p     scrypt lanes
+     * @param cores number of CPU cores (lanes that run concurrently)
+     * @return size of scrypt arena in bytes
+     */
+    static long arenaSize(int n, int r, int p, int cores) {
+        return 128L * r * n * Math.min(p, cores);
+    }
+
+    private static long arenaSize(int n, int p, int cores) {
+        return arenaSize(n, R, p, cores);
+    }
+}
@@ -20,6 +20,7 @@ import android.net.Uri;
 import android.os.Bundle;
 import android.util.Log;
 import android.view.LayoutInflater;
+import android.view.View;
 import android.widget.LinearLayout;
 import android.widget.TextView;
 import android.widget.Toast;
@@ -33,25 +34,25 @@ import androidx.core.graphics.Insets;
 import androidx.core.view.ViewCompat;
 import androidx.core.view.WindowInsetsCompat;
 
+import com.google.android.material.progressindicator.LinearProgressIndicator;
 import com.google.android.material.textfield.TextInputEditText;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.File;
+import java.util.List;
 
 public class MainActivity extends AppCompatActivity {
     private static final String TAG = MainActivity.class.getName();
 
-    public static final String CONFIG_FILENAME = "config.json";
-    public static final String VAULTS_DIR = "vaults";
-    public static final String DATA_VERSION = "2.0.0";
     private static final short STAGE_NAME = 0, STAGE_ENABLE_PASSWORD = 1, STAGE_ASK_PASSWORD = 2, STAGE_CONFIRM_PASSWORD = 3, STAGE_NEW_OR_IMPORT = 4;
 
-    private ConfigManager configManager;
+    private VaultRepository vaultRepository;
     private VaultUtils vaultUtils;
+    private VaultEngine vaultEngine;
 
     private LinearLayout vaultsLayout;
+    private LinearProgressIndicator progress;
     private TextInputEditText alertEditText;
     private boolean newVault;
     private String vaultName;
@@ -71,17 +72,14 @@ public class MainActivity extends AppCompatActivity {
             return insets;
         });
 
-        // Read wordlist
-        String[] mnemonicWordlist = getResources().getStringArray(R.array.mnemonic_words);
-
-        // Initialize config manager instance
-        configManager = new ConfigManager(new File(getFilesDir(), CONFIG_FILENAME), DATA_VERSION);
-
-        // Initialize vault instance
-        vaultUtils = new VaultUtils(new File(getFilesDir(), VAULTS_DIR), configManager, mnemonicWordlist);
+        // Bind to shared config, vaults list and vault session
+        vaultRepository = ((PetalVaultApplication) getApplication()).getVaultRepository();
+        vaultUtils = vaultRepository.getVaultUtils();
+        vaultEngine = vaultRepository.getVaultEngine();
 
         // Connect elements
         vaultsLayout = findViewById(R.id.vaultsLayout);
+        progress = findViewById(R.id.progress);
         findViewById(R.id.btnNewVault).setOnClickListener(v -> newOrImport(true));
         findViewById(R.id.btnImportVault).setOnClickListener(v -> newOrImport(false));
 
@@ -90,12 +88,20 @@ public class MainActivity extends AppCompatActivity {
     }
 
     /**
-     * Refresh available vaults on resume
+     * Cancels password check on destroy. Jobs of other activities and background thread are not affected
+     */
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        vaultEngine.cancelJobs(this);
+    }
+
+    /**
+     * Shows available vaults on resume (list is shared and kept up to date, so files are not rescanned)
      */
     @Override
     protected void onResume() {
         super.onResume();
-        configManager.refresh();
         refreshVaults();
     }
 
@@ -107,13 +113,13 @@ public class MainActivity extends AppCompatActivity {
         vaultsLayout.removeAllViews();
         System.gc();
 
-        // Parse
-        vaultUtils.refreshAvailable();
+        // Parse (only once per process)
+        List<VaultUtils.VaultNamePath> vaultNamePaths = vaultRepository.getVaultNamePaths();
 
         // Add each vault as TextView
         LayoutInflater inflater = LayoutInflater.from(this);
-        for (int i = 0; i < vaultUtils.getVaultNamePaths().size(); i++) {
-            final VaultUtils.VaultNamePath vaultNamePath = vaultUtils.getVaultNamePaths().get(i);
+        for (int i = 0; i < vaultNamePaths.size(); i++) {
+            final VaultUtils.VaultNamePath vaultNamePath = vaultNamePaths.get(i);
 
             LinearLayout rowLayout = (LinearLayout) inflater.inflate(R.layout.vaults_row, vaultsLayout, false);
             TextView vaultName = rowLayout.findViewById(R.id.vaultName);
@@ -126,7 +132,7 @@ public class MainActivity extends AppCompatActivity {
         }
 
         // Add "No vaults" entry
-        if (vaultUtils.getVaultNamePaths().isEmpty()) {
+        if (vaultNamePaths.isEmpty()) {
             LinearLayout rowLayout = (LinearLayout) inflater.inflate(R.layout.vaults_row, vaultsLayout, false);
             TextView vaultName = rowLayout.findViewById(R.id.vaultName);
             vaultName.setText(getString(R.string.no_vaults));
@@ -150,16 +156,18 @@ public class MainActivity extends AppCompatActivity {
         if (vault.has("mnemonic_encrypted")) {
             // Build container
             byte[] mnemonicEncryptedBytes, salt1, salt2;
+            CryptoUtils.KdfParams kdfParams;
             try {
                 mnemonicEncryptedBytes = CryptoUtils.base64Decode(vault.getString("mnemonic_encrypted"));
                 salt1 = CryptoUtils.base64Decode(vault.getString("mnemonic_salt_1"));
                 salt2 = CryptoUtils.base64Decode(vault.getString("mnemonic_salt_2"));
+                kdfParams = CryptoUtils.KdfParams.fromJSON(vault.optJSONObject("mnemonic_kdf"));
             } catch (JSONException e) {
                 Log.e(TAG, "Error opening vault", e);
                 Toast.makeText(this, R.string.vault_open_error, Toast.LENGTH_SHORT).show();
                 return;
             }
-            final CryptoUtils.MnemonicEncrypted mnemonicEncrypted = new CryptoUtils.MnemonicEncrypted(mnemonicEncryptedBytes, salt1, salt2);
+            final CryptoUtils.MnemonicEncrypted mnemonicEncrypted = new CryptoUtils.MnemonicEncrypted(mnemonicEncryptedBytes, salt1, salt2, kdfParams);
 
             // Ask for password
             AlertDialog.Builder passwordDialog = getAlertBuilder(true, true, (short) -1);
@@ -167,19 +175,26 @@ public class MainActivity extends AppCompatActivity {
             passwordDialog.setMessage(R.string.vault_open_ask_password_description);
             alertEditText.setText("");
 
-            // Ok button -> decrypt mnemonic and load activity or openVault() again in case of error
+            // Ok button -> decrypt mnemonic in background and load activity or openVault() again in case of error
             passwordDialog.setPositiveButton(R.string.ok, (dialog, which) -> {
-                try {
-                    String[] mnemonic = CryptoUtils.decryptMnemonic(mnemonicEncrypted, String.valueOf(alertEditText.getText()));
-                    openVaultActivity(vaultNamePath, mnemonic, false);
-                    return;
-                } catch (Exception e) {
-                    Log.e(TAG, "Error decrypting mnemonic", e);
-                }
-
-                // Wrong password?
-                Toast.makeText(this, R.string.vault_mnemonic_decrypt_error, Toast.LENGTH_SHORT).show();
-                openVaultAskPassword(vaultNamePath);
+                progress.setVisibility(View.VISIBLE);
+                vaultEngine.decryptMnemonic(this, mnemonicEncrypted, String.valueOf(alertEditText.getText()), new VaultEngine.Callback<String[]>() {
+                    @Override
+                    public void onResult(String[] mnemonic) {
+                        progress.setVisibility(View.GONE);
+                        openVaultActivity(vaultNamePath, mnemonic, false);
+                    }
+
+                    @Override
+                    public void onError(Exception e) {
+                        progress.setVisibility(View.GONE);
+                        Log.e(TAG, "Error decrypting mnemonic", e);
+
+                        // Wrong password?
+                        Toast.makeText(MainActivity.this, R.string.vault_mnemonic_decrypt_error, Toast.LENGTH_SHORT).show();
+                        openVaultAskPassword(vaultNamePath);
+                    }
+                });
             });
 
             // Use mnemonic instead of master password
@@ -361,16 +376,28 @@ public class MainActivity extends AppCompatActivity {
                         }
                     }
 
-                    // Create vault and open it
-                    try {
-                        if (vaultUtils.create(vaultName, vaultMnemonic, vaultPassword1)) {
-                            refreshVaults();
-                            openVaultActivity(vaultUtils.getNamePath(vaultName, null), vaultMnemonic, !newVault);
-                        } else Toast.makeText(this, R.string.vault_create_error, Toast.LENGTH_SHORT).show();
-                    } catch (Exception e) {
-                        Log.e(TAG, "Error creating vault", e);
-                        Toast.makeText(this, e.toString(), Toast.LENGTH_SHORT).show();
-                    }
+                    // Create vault in background and open it
+                    final String name = vaultName;
+                    final String[] mnemonic = vaultMnemonic;
+                    final boolean importAfter = !newVault;
+                    progress.setVisibility(View.VISIBLE);
+                    vaultRepository.create(name, mnemonic, vaultPassword1, new VaultEngine.Callback<Boolean>() {
+                        @Override
+                        public void onResult(Boolean created) {
+                            progress.setVisibility(View.GONE);
+                            if (created) {
+                                refreshVaults();
+                                openVaultActivity(vaultUtils.getNamePath(name, null), mnemonic, importAfter);
+                            } else Toast.makeText(MainActivity.this, R.string.vault_create_error, Toast.LENGTH_SHORT).show();
+                        }
+
+                        @Override
+                        public void onError(Exception e) {
+                            progress.setVisibility(View.GONE);
+                            Log.e(TAG, "Error creating vault", e);
+                            Toast.makeText(MainActivity.this, e.toString(), Toast.LENGTH_SHORT).show();
+                        }
+                    });
 
                     break;
             }
@@ -0,0 +1,221 @@
+/**
+ * This file is part of the PetalVault-Android password manager distribution.
+ * See <https://github.com/F33RNI/PetalVault-Android>.
+ * Copyright (C) 2024 Fern Lane
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, version 3.
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.f3rni.petalvault;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Encrypts and decrypts vault entries on all cores using fork-join. Each entry has it's own IV, so they are independent
+ */
+public class ParallelEntryCrypto {
+    private static final long PROGRESS_INTERVAL_MS = 50;
+
+    // Entries per fork-join leaf. Jobs up to this size are processed on the calling thread
+    private static volatile int parallelThreshold = 64;
+
+    /**
+     * @param threshold minimum number of entries to split between threads (>= 1)
+     */
+    public static void setParallelThreshold(int threshold) {
+        parallelThreshold = Math.max(threshold, 1);
+    }
+
+    public static int getParallelThreshold() {
+        return parallelThreshold;
+    }
+
+    /**
+     * Decrypts entries keeping their order and stops on the first error.
+     * Entries in the current format keep their ciphertext as cache (see VaultEntry.getEncrypted())
+     * and their secret part (password and notes) is decrypted on first access.
+     * Entries in older formats (or with older compression dictionary) are decrypted entirely and stay dirty, so they are upgraded on the next save
+     *
+     * @param entries          array of encrypted entries (with "enc", "iv", optional "v", "sec" and "sec_iv" keys)
+     * @param key              32 bytes key
+     * @param progressListener listener (called on the calling thread) or null
+     * @return decrypted entries in the original order
+     * @throws Exception in case of decryption error
+     * @throws CancellationException if calling thread was interrupted (or by progressListener)
+     */
+    public static ArrayList<VaultEntry> decrypt(JSONArray entries, byte[] key, ProgressListener progressListener) throws Exception {
+        VaultEntry[] decrypted = new VaultEntry[entries.length()];
+        SecretLoader secretLoader = (sec, secIv) -> CryptoUtils.decryptEntryRecord(sec, secIv, EntryDictionary.CURRENT, key);
+        forEach(decrypted.length, parallelThreshold, index -> decrypted[index] = decryptEntry(entries.getJSONObject(index), key, secretLoader), progressListener);
+        return new ArrayList<>(Arrays.asList(decrypted));
+    }
+
+    /**
+     * Decrypts one entry on the calling thread (see decrypt())
+     *
+     * @param entryEncrypted encrypted entry (with "enc", "iv", optional "v", "sec" and "sec_iv" keys)
+     * @param key            32 bytes key
+     * @param secretLoader   decrypts secret part of entry in the current format with the same key
+     * @return decrypted entry
+     */
+    static VaultEntry decryptEntry(JSONObject entryEncrypted, byte[] key, SecretLoader secretLoader) throws Exception {
+        // Current format -> decrypt only index part, secret part is decrypted on demand
+        if (CryptoUtils.isEntryFormatCurrent(entryEncrypted)) {
+            EntryRecord.Reader entryIndex = CryptoUtils.decryptEntryRecord(entryEncrypted.getString("enc"), entryEncrypted.getString("iv"), EntryDictionary.CURRENT, key);
+            VaultEntry entry = new VaultEntry(entryIndex, secretLoader);
+            entry.setEncrypted(entryEncrypted.getString("enc"), entryEncrypted.getString("iv"), entryEncrypted.getString("sec"), entryEncrypted.getString("sec_iv"));
+            return entry;
+        }
+
+        JSONObject entryDecrypted = CryptoUtils.decryptEntry(entryEncrypted, key);
+        if (entryDecrypted == null) throw new RuntimeException("Unable to decrypt entry");
+        return new VaultEntry(entryDecrypted);
+    }
+
+    /**
+     * Encrypts dirty entries (or all of them) and caches ciphertext inside each entry
+     *
+     * @param entries          entries to encrypt
+     * @param key              32 bytes key
+     * @param all              true to encrypt all entries (ex. after key change), false to encrypt only dirty ones
+     * @param progressListener listener (called on the calling thread) or null
+     * @return number of encrypted entries
+     * @throws Exception in case of encryption error
+     * @throws CancellationException if calling thread was interrupted (or by progressListener)
+     */
+    public static int encrypt(List<VaultEntry> entries, byte[] key, boolean all, ProgressListener progressListener) throws Exception {
+        // Collect entries that need encryption
+        ArrayList<VaultEntry> toEncrypt = new ArrayList<>();
+        for (VaultEntry entry : entries)
+            if (all || entry.isDirty()) toEncrypt.add(entry);
+
+        forEach(toEncrypt.size(), parallelThreshold, index -> {
+            VaultEntry entry = toEncrypt.get(index);
+            JSONObject entryEncrypted = CryptoUtils.encryptEntryRecord(entry, key);
+            if (entryEncrypted == null) throw new RuntimeException("Unable to encrypt entry " + entry.getId());
+            entry.setEncrypted(entryEncrypted.getString("enc"), entryEncrypted.getString("iv"), entryEncrypted.getString("sec"), entryEncrypted.getString("sec_iv"));
+        }, progressListener);
+        return toEncrypt.size();
+    }
+
+    /**
+     * Runs job for each index in [0, total) and stops on the first error
+     *
+     * @param total            number of indexes
+     * @param leafSize         number of indexes per fork-join leaf. Jobs up to this size are run on the calling thread
+     * @param job              job to run for each index
+     * @param progressListener listener (called on the calling thread) or null
+     * @throws Exception the first job's error
+     */
+    static void forEach(int total, int leafSize, IndexJob job, ProgressListener progressListener) throws Exception {
+        // Small job -> no need to pay for scheduling
+        if (total <= leafSize) {
+            for (int i = 0; i < total; i++) {
+                job.run(i);
+                if (progressListener != null) progressListener.onProgress(i + 1, total);
+            }
+            return;
+        }
+
+        AtomicBoolean stop = new AtomicBoolean();
+        AtomicInteger done = new AtomicInteger();
+        AtomicReference<Exception> error = new AtomicReference<>();
+        RangeTask task = new RangeTask(job, 0, total, Math.max(leafSize, 1), stop, done, error);
+
+        // Wait for the result on the calling thread to keep progress and interruption in one place
+        ForkJoinPool.commonPool().execute(task);
+        while (true) {
+            try {
+                task.get(PROGRESS_INTERVAL_MS, TimeUnit.MILLISECONDS);
+                break;
+            } catch (TimeoutException e) {
+                if (progressListener != null) {
+                    try {
+                        progressListener.onProgress(done.get(), total);
+                    } catch (RuntimeException listenerException) {
+                        stop.set(true);
+                        throw listenerException;
+                    }
+                }
+            } catch (InterruptedException e) {
+                stop.set(true);
+                Thread.currentThread().interrupt();
+                throw new CancellationException("Operation cancelled");
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof Exception) throw (Exception) e.getCause();
+                throw e;
+            }
+        }
+
+        // Rethrow the first error
+        if (error.get() != null) throw error.get();
+
+        if (progressListener != null) progressListener.onProgress(total, total);
+    }
+
+    interface IndexJob {
+        void run(int index) throws Exception;
+    }
+
+    private static class RangeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final IndexJob job;
+        private final int from, to, leafSize;
+        private final AtomicBoolean stop;
+        private final AtomicInteger done;
+        private final AtomicReference<Exception> error;
+
+        RangeTask(IndexJob job, int from, int to, int leafSize, AtomicBoolean stop, AtomicInteger done, AtomicReference<Exception> error) {
+            this.job = job;
+            this.from = from;
+            this.to = to;
+            this.leafSize = leafSize;
+            this.stop = stop;
+            this.done = done;
+            this.error = error;
+        }
+
+        @Override
+        protected void compute() {
+            // Split in halves
+            if (to - from > leafSize) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new RangeTask(job, from, middle, leafSize, stop, done, error), new RangeTask(job, middle, to, leafSize, stop, done, error));
+                return;
+            }
+
+            // Fail fast: other leaves stop after the first error
+            for (int i = from; i < to; i++) {
+                if (stop.get()) return;
+                try {
+                    job.run(i);
+                } catch (Exception e) {
+                    error.compareAndSet(null, e);
+                    stop.set(true);
+                    return;
+                }
+                done.incrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,45 @@
+/**
+ * This file is part of the PetalVault-Android password manager distribution.
+ * See <https://github.com/F33RNI/PetalVault-Android>.
+ * Copyright (C) 2024 Fern Lane
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, version 3.
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.f3rni.petalvault;
+
+import android.app.Application;
+
+public class PetalVaultApplication extends Application {
+    private VaultRepository vaultRepository;
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+
+        // Read wordlist and initialize shared config, vaults list and vault session
+        vaultRepository = new VaultRepository(getFilesDir(), getResources().getStringArray(R.array.mnemonic_words));
+    }
+
+    /**
+     * Drops KDF arenas when UI is hidden or system is low on memory (ex. while a derivation is running)
+     */
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        if (level >= TRIM_MEMORY_UI_HIDDEN) CryptoUtils.releaseKdfArenas();
+    }
+
+    /**
+     * @return process-wide VaultRepository instance
+     */
+    public VaultRepository getVaultRepository() {
+        return vaultRepository;
+    }
+}
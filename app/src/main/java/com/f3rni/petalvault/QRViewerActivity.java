@@ -100,6 +100,13 @@ public class QRViewerActivity extends AppCompatActivity {
                         if (intent.hasExtra("salt") && indexCurrent == 0)
                             dataTemp.put("salt", intent.getStringExtra("salt"));
 
+                        // Add sync format version and sync root (v2) of the 1st QR
+                        if (intent.hasExtra("root_salt") && indexCurrent == 0) {
+                            dataTemp.put("v", intent.getIntExtra("v", 1));
+                            dataTemp.put("root_salt", intent.getStringExtra("root_salt"));
+                            dataTemp.put("kdf", new JSONObject(intent.getStringExtra("kdf")));
+                        }
+
                         datasTemp.put(indexCurrent, dataTemp);
                     }
 
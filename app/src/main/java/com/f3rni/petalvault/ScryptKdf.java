@@ -0,0 +1,278 @@
+/**
+ * This file is part of the PetalVault-Android password manager distribution.
+ * See <https://github.com/F33RNI/PetalVault-Android>.
+ * Copyright (C) 2024 Fern Lane
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, version 3.
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.f3rni.petalvault;
+
+import org.spongycastle.crypto.digests.SHA256Digest;
+import org.spongycastle.crypto.generators.PKCS5S2ParametersGenerator;
+import org.spongycastle.crypto.params.KeyParameter;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * scrypt (RFC 7914) that reuses a single scratch arena instead of allocating 128 * r * N bytes per call.
+ * Output is bit-exact with SpongyCastle's SCrypt.generate()
+ * <p>
+ * Parallelization lanes (p > 1) are mixed concurrently on the common pool, up to one lane per core.
+ * Derivations are serialized by the arena lock. The arena is zero-filled after each derivation and is kept
+ * only for the next derivation of the same batch (ex. vault key and sync root key): VaultEngine calls
+ * releaseArena() when it has no more jobs and VaultUtils.close() calls it when vault is closed
+ */
+public class ScryptKdf {
+    private static final ReentrantLock arenaLock = new ReentrantLock();
+    private static int[] arenaMemory;
+    private static volatile boolean releaseRequested;
+
+    /**
+     * Derives key using scrypt
+     *
+     * @param password password bytes
+     * @param salt     salt bytes
+     * @param n        CPU / memory cost (power of 2)
+     * @param r        block size
+     * @param p        parallelization
+     * @param dkLen    length of derived key in bytes
+     * @return derived key
+     */
+    public static byte[] generate(byte[] password, byte[] salt, int n, int r, int p, int dkLen) {
+        if (password == null || salt == null) throw new IllegalArgumentException("Password and salt must not be null");
+        if (n <= 1 || (n & (n - 1)) != 0) throw new IllegalArgumentException("Cost parameter N must be > 1 and a power of 2");
+        if (r < 1 || p < 1) throw new IllegalArgumentException("Parameters r and p must be >= 1");
+        if ((long) r * p >= 1 << 30) throw new IllegalArgumentException("Parameters r * p must be < 2^30");
+        if (dkLen < 1) throw new IllegalArgumentException("Derived key length must be >= 1");
+
+        // Lanes are mixed concurrently, each with it's own part of the arena:
+        // V (32 * r * N) | X (32 * r) | Y (32 * r) | salsa state (16)
+        int blockInts = 32 * r;
+        int lanes = Math.min(p, Runtime.getRuntime().availableProcessors());
+        long laneSize = (long) blockInts * (n + 2) + 16;
+        if (laneSize * lanes > Integer.MAX_VALUE - 8) throw new IllegalArgumentException("Parameters N, r and p are too large");
+        int arenaSize = (int) (laneSize * lanes);
+
+        byte[] b = pbkdf2(password, salt, p * 128 * r);
+        try {
+            arenaLock.lock();
+            try {
+                int[] arena = arena(arenaSize);
+                try {
+                    mixParallel(arena, (int) laneSize, lanes, b, r, n, p);
+                } finally {
+                    Arrays.fill(arena, 0, arenaSize, 0);
+                }
+            } finally {
+                arenaLock.unlock();
+
+                // Release was requested while arena was in use
+                if (releaseRequested) releaseArena();
+            }
+            return pbkdf2(password, b, dkLen);
+        } finally {
+            Arrays.fill(b, (byte) 0);
+        }
+    }
+
+    /**
+     * Drops scratch arena (see PetalVaultApplication.onTrimMemory()). Doesn't block: if derivation is running,
+     * arena is dropped right after it
+     */
+    public static void releaseArena() {
+        releaseRequested = true;
+        if (!arenaLock.tryLock()) return;
+        try {
+            releaseLocked();
+        } finally {
+            arenaLock.unlock();
+        }
+    }
+
+    /**
+     * Drops scratch arena. Must be called under arenaLock
+     */
+    private static void releaseLocked() {
+        arenaMemory = null;
+        releaseRequested = false;
+    }
+
+    /**
+     * @return scratch arena with at least size ints. Must be called under arenaLock
+     */
+    private static int[] arena(int size) {
+        if (arenaMemory == null || arenaMemory.length < size) {
+            // Let the old arena be collected before allocating the new one
+            arenaMemory = null;
+            arenaMemory = new int[size];
+        }
+        return arenaMemory;
+    }
+
+    /**
+     * Mixes p blocks of b using lanes workers. Worker 0 runs on the calling thread, others on the common pool
+     */
+    private static void mixParallel(int[] arena, int laneSize, int lanes, byte[] b, int r, int n, int p) {
+        ForkJoinTask<?>[] tasks = new ForkJoinTask<?>[lanes];
+        try {
+            for (int lane = 1; lane < lanes; lane++) {
+                final int laneFinal = lane;
+                tasks[lane] = ForkJoinPool.commonPool().submit(() -> mixLane(arena, laneFinal * laneSize, laneFinal, lanes, b, r, n, p));
+            }
+            mixLane(arena, 0, 0, lanes, b, r, n, p);
+        } finally {
+            // Arena must not be touched by workers after returning
+            for (ForkJoinTask<?> task : tasks)
+                if (task != null) task.quietlyJoin();
+        }
+        for (ForkJoinTask<?> task : tasks)
+            if (task != null && task.isCompletedAbnormally())
+                throw new RuntimeException("Error mixing scrypt lane", task.getException());
+    }
+
+    /**
+     * Mixes blocks lane, lane + lanes, lane + 2 * lanes, ... of b using arena part starting at base
+     */
+    private static void mixLane(int[] arena, int base, int lane, int lanes, byte[] b, int r, int n, int p) {
+        int blockInts = 32 * r;
+        int x = base + blockInts * n;
+        for (int i = lane; i < p; i += lanes) {
+            int offset = i * 128 * r;
+            for (int k = 0; k < blockInts; k++) arena[x + k] = littleEndianToInt(b, offset + k * 4);
+            sMix(arena, base, r, n);
+            for (int k = 0; k < blockInts; k++) intToLittleEndian(arena[x + k], b, offset + k * 4);
+        }
+    }
+
+    /**
+     * ROMix. V starts at base, block right after V is mixed in place
+     */
+    private static void sMix(int[] arena, int base, int r, int n) {
+        int blockInts = 32 * r;
+        int x = base + blockInts * n;
+        int y = x + blockInts;
+        int state = y + blockInts;
+
+        for (int i = 0; i < n; i++) {
+            System.arraycopy(arena, x, arena, base + i * blockInts, blockInts);
+            blockMix(arena, x, y, state, r);
+        }
+
+        int last = x + (2 * r - 1) * 16;
+        for (int i = 0; i < n; i++) {
+            int j = arena[last] & (n - 1);
+            int v = base + j * blockInts;
+            for (int k = 0; k < blockInts; k++) arena[x + k] ^= arena[v + k];
+            blockMix(arena, x, y, state, r);
+        }
+    }
+
+    /**
+     * BlockMix with Salsa20/8. Block at offset b is replaced, y is used as temporary output
+     */
+    private static void blockMix(int[] arena, int b, int y, int state, int r) {
+        System.arraycopy(arena, b + (2 * r - 1) * 16, arena, state, 16);
+
+        for (int i = 0; i < 2 * r; i++) {
+            int block = b + i * 16;
+            for (int k = 0; k < 16; k++) arena[state + k] ^= arena[block + k];
+            salsa20_8(arena, state);
+
+            // Even blocks go to the first half, odd blocks to the second
+            System.arraycopy(arena, state, arena, y + ((i & 1) * r + (i >> 1)) * 16, 16);
+        }
+
+        System.arraycopy(arena, y, arena, b, 32 * r);
+    }
+
+    /**
+     * Salsa20/8 core over 16 ints at offset
+     */
+    private static void salsa20_8(int[] b, int offset) {
+        int x0 = b[offset], x1 = b[offset + 1], x2 = b[offset + 2], x3 = b[offset + 3];
+        int x4 = b[offset + 4], x5 = b[offset + 5], x6 = b[offset + 6], x7 = b[offset + 7];
+        int x8 = b[offset + 8], x9 = b[offset + 9], x10 = b[offset + 10], x11 = b[offset + 11];
+        int x12 = b[offset + 12], x13 = b[offset + 13], x14 = b[offset + 14], x15 = b[offset + 15];
+
+        for (int i = 0; i < 8; i += 2) {
+            // Columns
+            x4 ^= Integer.rotateLeft(x0 + x12, 7);
+            x8 ^= Integer.rotateLeft(x4 + x0, 9);
+            x12 ^= Integer.rotateLeft(x8 + x4, 13);
+            x0 ^= Integer.rotateLeft(x12 + x8, 18);
+            x9 ^= Integer.rotateLeft(x5 + x1, 7);
+            x13 ^= Integer.rotateLeft(x9 + x5, 9);
+            x1 ^= Integer.rotateLeft(x13 + x9, 13);
+            x5 ^= Integer.rotateLeft(x1 + x13, 18);
+            x14 ^= Integer.rotateLeft(x10 + x6, 7);
+            x2 ^= Integer.rotateLeft(x14 + x10, 9);
+            x6 ^= Integer.rotateLeft(x2 + x14, 13);
+            x10 ^= Integer.rotateLeft(x6 + x2, 18);
+            x3 ^= Integer.rotateLeft(x15 + x11, 7);
+            x7 ^= Integer.rotateLeft(x3 + x15, 9);
+            x11 ^= Integer.rotateLeft(x7 + x3, 13);
+            x15 ^= Integer.rotateLeft(x11 + x7, 18);
+
+            // Rows
+            x1 ^= Integer.rotateLeft(x0 + x3, 7);
+            x2 ^= Integer.rotateLeft(x1 + x0, 9);
+            x3 ^= Integer.rotateLeft(x2 + x1, 13);
+            x0 ^= Integer.rotateLeft(x3 + x2, 18);
+            x6 ^= Integer.rotateLeft(x5 + x4, 7);
+            x7 ^= Integer.rotateLeft(x6 + x5, 9);
+            x4 ^= Integer.rotateLeft(x7 + x6, 13);
+            x5 ^= Integer.rotateLeft(x4 + x7, 18);
+            x11 ^= Integer.rotateLeft(x10 + x9, 7);
+            x8 ^= Integer.rotateLeft(x11 + x10, 9);
+            x9 ^= Integer.rotateLeft(x8 + x11, 13);
+            x10 ^= Integer.rotateLeft(x9 + x8, 18);
+            x12 ^= Integer.rotateLeft(x15 + x14, 7);
+            x13 ^= Integer.rotateLeft(x12 + x15, 9);
+            x14 ^= Integer.rotateLeft(x13 + x12, 13);
+            x15 ^= Integer.rotateLeft(x14 + x13, 18);
+        }
+
+        b[offset] += x0;
+        b[offset + 1] += x1;
+        b[offset + 2] += x2;
+        b[offset + 3] += x3;
+        b[offset + 4] += x4;
+        b[offset + 5] += x5;
+        b[offset + 6] += x6;
+        b[offset + 7] += x7;
+        b[offset + 8] += x8;
+        b[offset + 9] += x9;
+        b[offset + 10] += x10;
+        b[offset + 11] += x11;
+        b[offset + 12] += x12;
+        b[offset + 13] += x13;
+        b[offset + 14] += x14;
+        b[offset + 15] += x15;
+    }
+
+    private static byte[] pbkdf2(byte[] password, byte[] salt, int length) {
+        PKCS5S2ParametersGenerator generator = new PKCS5S2ParametersGenerator(new SHA256Digest());
+        generator.init(password, salt, 1);
+        return ((KeyParameter) generator.generateDerivedMacParameters(length * 8)).getKey();
+    }
+
+    private static int littleEndianToInt(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xff) | (bytes[offset + 1] & 0xff) << 8 | (bytes[offset + 2] & 0xff) << 16 | bytes[offset + 3] << 24;
+    }
+
+    private static void intToLittleEndian(int value, byte[] bytes, int offset) {
+        bytes[offset] = (byte) value;
+        bytes[offset + 1] = (byte) (value >>> 8);
+        bytes[offset + 2] = (byte) (value >>> 16);
+        bytes[offset + 3] = (byte) (value >>> 24);
+    }
+}
@@ -13,16 +13,15 @@
 
 package com.f3rni.petalvault;
 
-import static com.f3rni.petalvault.MainActivity.CONFIG_FILENAME;
-import static com.f3rni.petalvault.MainActivity.DATA_VERSION;
-import static com.f3rni.petalvault.MainActivity.VAULTS_DIR;
-
 import android.annotation.SuppressLint;
 import android.app.AlertDialog;
 import android.content.Intent;
 import android.os.Bundle;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.util.Log;
 import android.view.LayoutInflater;
+import android.view.View;
 import android.widget.LinearLayout;
 import android.widget.TextView;
 import android.widget.Toast;
@@ -37,22 +36,30 @@ import androidx.core.view.WindowInsetsCompat;
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 
+import com.google.android.material.progressindicator.LinearProgressIndicator;
 import com.google.android.material.textfield.TextInputEditText;
 import com.journeyapps.barcodescanner.ScanContract;
 import com.journeyapps.barcodescanner.ScanOptions;
 
-import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
 
 public class VaultActivity extends AppCompatActivity {
     private static final String TAG = VaultActivity.class.getName();
 
+    private VaultRepository vaultRepository;
     private VaultUtils vaultUtils;
+    private VaultEngine vaultEngine;
     private EntriesContainerAdapter entriesContainerAdapter;
+    private TextInputEditText filter;
+    private LinearLayout syncDialogLayout;
+    private RecyclerView entries;
+    private LinearProgressIndicator progress;
+    private boolean busy, jobRunning, writing;
+    private final ArrayList<Runnable> afterBusy = new ArrayList<>();
     private String vaultPath, vaultName;
     private List<Boolean> receivedParts;
     private VaultUtils.SyncData syncFromData;
@@ -79,26 +86,49 @@ public class VaultActivity extends AppCompatActivity {
             return;
         }
 
-        // Read wordlist
-        String[] mnemonicWords = getResources().getStringArray(R.array.mnemonic_words);
-
-        // Initialize class instances and read input data
-        ConfigManager configManager = new ConfigManager(new File(getFilesDir(), CONFIG_FILENAME), DATA_VERSION);
-        vaultUtils = new VaultUtils(new File(getFilesDir(), VAULTS_DIR), configManager, mnemonicWords);
-        vaultUtils.refreshAvailable();
+        // Bind to shared vault session and read input data
+        vaultRepository = ((PetalVaultApplication) getApplication()).getVaultRepository();
+        vaultUtils = vaultRepository.getVaultUtils();
+        vaultEngine = vaultRepository.getVaultEngine();
         vaultPath = intent.getStringExtra("relPath");
         vaultName = intent.getStringExtra("name");
 
         // Set title (vault name)
         ((TextView) findViewById(R.id.vaultTitle)).setText(vaultName);
 
-        // Open and decrypt vault
-        if (!vaultUtils.open(vaultPath, intent.getStringArrayExtra("vaultMnemonic"))) {
-            Toast.makeText(this, R.string.vault_open_decrypt_error, Toast.LENGTH_SHORT).show();
-            finish();
-            return;
-        }
+        // Connect progress and entries views
+        progress = findViewById(R.id.progress);
+        entries = findViewById(R.id.entries);
+        entries.setLayoutManager(new LinearLayoutManager(this));
+
+        // Open and decrypt vault in background (or reuse already unlocked one)
+        setBusy(true);
+        vaultRepository.openSession(this, vaultPath, intent.getStringArrayExtra("vaultMnemonic"), this::onProgress, new VaultEngine.Callback<Boolean>() {
+            @Override
+            public void onResult(Boolean opened) {
+                setBusy(false);
+                if (!opened) {
+                    Toast.makeText(VaultActivity.this, R.string.vault_open_decrypt_error, Toast.LENGTH_SHORT).show();
+                    finish();
+                    return;
+                }
+                onOpened(intent.hasExtra("import") && intent.getBooleanExtra("import", false));
+            }
+
+            @Override
+            public void onError(Exception e) {
+                Toast.makeText(VaultActivity.this, R.string.vault_open_decrypt_error, Toast.LENGTH_SHORT).show();
+                finish();
+            }
+        });
+    }
 
+    /**
+     * Connects elements after vault was opened
+     *
+     * @param importAfter true to start sync from / import
+     */
+    private void onOpened(boolean importAfter) {
         // Connect elements
         findViewById(R.id.btnShowMnemonic).setOnClickListener(v -> showMnemonic());
         findViewById(R.id.btnAddEntry).setOnClickListener(v -> addEntry());
@@ -106,15 +136,175 @@ public class VaultActivity extends AppCompatActivity {
         findViewById(R.id.btnDeleteVault).setOnClickListener(v -> delete(false));
         findViewById(R.id.btnSyncExport).setOnClickListener(v -> syncExport());
 
+        // Show state of requested saves
+        vaultEngine.setPendingWritesListener(this::onPendingWritesChanged);
+
         // Create and connect adapter
-        RecyclerView entries = findViewById(R.id.entries);
         entriesContainerAdapter = new EntriesContainerAdapter(vaultUtils.getVaultEntries());
         entriesContainerAdapter.setRowClickListener(this::editEntry);
-        entries.setLayoutManager(new LinearLayoutManager(this));
         entries.setAdapter(entriesContainerAdapter);
 
+        // Filter entries while typing
+        filter = findViewById(R.id.filter);
+        filter.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                runWhenNotBusy(VaultActivity.this::applyFilter);
+            }
+        });
+        applyFilter();
+
         // Import data?
-        if (intent.hasExtra("import") && intent.getBooleanExtra("import", false)) syncFrom(false);
+        if (importAfter) syncFrom(false);
+    }
+
+    /**
+     * Shows or hides progress and blocks user actions while background job is running
+     *
+     * @param jobRunning true if background job is running
+     */
+    private void setBusy(boolean jobRunning) {
+        this.jobRunning = jobRunning;
+        updateBusy();
+    }
+
+    /**
+     * Applies busy state of background job and of requested save being written
+     */
+    private void updateBusy() {
+        boolean busy = jobRunning || writing;
+        this.busy = busy;
+
+        // Reset progress
+        if (busy) {
+            progress.setIndeterminate(true);
+            progress.setVisibility(View.VISIBLE);
+        } else progress.setVisibility(View.GONE);
+
+        // Don't let RecyclerView read entries while they are being modified
+        entries.suppressLayout(busy);
+
+        findViewById(R.id.btnShowMnemonic).setEnabled(!busy);
+        findViewById(R.id.btnAddEntry).setEnabled(!busy);
+        findViewById(R.id.btnRenameVault).setEnabled(!busy);
+        findViewById(R.id.btnDeleteVault).setEnabled(!busy);
+        findViewById(R.id.btnSyncExport).setEnabled(!busy);
+        updateSyncDialog();
+
+        // Apply actions that were postponed while busy
+        while (!this.busy && !afterBusy.isEmpty()) afterBusy.remove(0).run();
+    }
+
+    /**
+     * Enables buttons of sync dialog (if it's shown) only when there is no background job
+     */
+    private void updateSyncDialog() {
+        if (syncDialogLayout == null) return;
+        syncDialogLayout.findViewById(R.id.btnExport).setEnabled(!busy);
+        syncDialogLayout.findViewById(R.id.btnSyncTo).setEnabled(!busy);
+        syncDialogLayout.findViewById(R.id.btnSyncFrom).setEnabled(!busy);
+
+        // Enable delete device button only if there is at least one sync device
+        syncDialogLayout.findViewById(R.id.btnDeleteDevice).setEnabled(!busy && !vaultUtils.getDeviceNames().isEmpty());
+    }
+
+    /**
+     * Shows progress of background job
+     */
+    private void onProgress(int done, int total) {
+        if (!busy) return;
+        progress.setIndeterminate(false);
+        progress.setMax(Math.max(total, 1));
+        progress.setProgressCompat(done, false);
+    }
+
+    /**
+     * Requests save of vault in background. Edits made within VaultEngine.SAVE_DELAY_MS are saved together
+     */
+    private void save() {
+        vaultEngine.requestSave(vaultPath, this::onProgress, new VaultEngine.Callback<Boolean>() {
+            @Override
+            public void onResult(Boolean saved) {
+                if (!saved) Toast.makeText(VaultActivity.this, R.string.vault_save_error, Toast.LENGTH_SHORT).show();
+            }
+
+            @Override
+            public void onError(Exception e) {
+                Toast.makeText(VaultActivity.this, String.valueOf(e), Toast.LENGTH_LONG).show();
+            }
+        });
+    }
+
+    /**
+     * Blocks user actions while requested save is being written and shows that there are unsaved changes
+     */
+    private void onPendingWritesChanged(boolean pending, boolean writing) {
+        this.writing = writing;
+        updateBusy();
+        if (!busy && pending) {
+            progress.setIndeterminate(true);
+            progress.setVisibility(View.VISIBLE);
+        }
+    }
+
+    /**
+     * Shows entries which site or username contains text of filter bar or all entries if it's empty
+     */
+    private void applyFilter() {
+        entriesContainerAdapter.setVaultEntries(vaultUtils.search(String.valueOf(filter.getText())));
+        entriesContainerAdapter.notifyDataSetChanged();
+    }
+
+    /**
+     * @return true if only search results are shown
+     */
+    private boolean isFiltered() {
+        return filter != null && !String.valueOf(filter.getText()).trim().isEmpty();
+    }
+
+    /**
+     * Runs action now or after background job is finished (entries must not be changed while it's running)
+     */
+    private void runWhenNotBusy(Runnable action) {
+        if (busy) afterBusy.add(action);
+        else action.run();
+    }
+
+    /**
+     * Starts QR viewer with sync / export data
+     */
+    private void showSyncQR(VaultUtils.SyncData syncData, int titleID, int descriptionID) {
+        // Check if we have anything to sync
+        if (syncData == null) {
+            Toast.makeText(this, R.string.nothing_to_sync, Toast.LENGTH_SHORT).show();
+            return;
+        }
+
+        // Start QR viewer
+        Intent intent = new Intent(VaultActivity.this, QRViewerActivity.class);
+        intent.putExtra("title", getString(titleID));
+        intent.putExtra("description", getString(descriptionID));
+        intent.putExtra("actions", syncData.actions);
+        intent.putExtra("salt", syncData.salt);
+        if (syncData.version >= 2) {
+            try {
+                intent.putExtra("v", syncData.version);
+                intent.putExtra("root_salt", syncData.rootSalt);
+                intent.putExtra("kdf", syncData.rootKdfParams.toJSON().toString());
+            } catch (JSONException e) {
+                Log.e(TAG, "Unable to put sync root", e);
+                return;
+            }
+        }
+        startActivity(intent);
     }
 
     private void syncExport() {
@@ -129,12 +319,14 @@ public class VaultActivity extends AppCompatActivity {
         dialogInputLayout.findViewById(R.id.btnSyncFrom).setOnClickListener(v -> syncFrom(false));
         dialogInputLayout.findViewById(R.id.btnDeleteDevice).setOnClickListener(v -> deleteDevice(null, false));
 
-        // Enable delete device button only if there is at least one sync device
-        dialogInputLayout.findViewById(R.id.btnDeleteDevice).setEnabled(!vaultUtils.getDeviceNames().isEmpty());
+        // Keep buttons disabled while any job started from this dialog is running
+        syncDialogLayout = dialogInputLayout;
+        updateSyncDialog();
 
         builder.setView(dialogInputLayout);
 
         builder.setNegativeButton(R.string.ok, (dialog, which) -> dialog.dismiss());
+        builder.setOnDismissListener(dialog -> syncDialogLayout = null);
         builder.show();
     }
 
@@ -201,56 +393,44 @@ public class VaultActivity extends AppCompatActivity {
             }
         }
 
-        // Try to build sync data
-        VaultUtils.SyncData syncData = null;
-        try {
-            syncData = vaultUtils.syncTo(deviceName, vaultPath);
-        } catch (Exception e) {
-            Log.e(TAG, "Sync to error", e);
-            Toast.makeText(this, String.valueOf(e), Toast.LENGTH_LONG).show();
-        }
-
-        // Check if we have anything to sync
-        if (syncData == null) {
-            Toast.makeText(this, R.string.nothing_to_sync, Toast.LENGTH_SHORT).show();
-            return;
-        }
+        // Try to build sync data in background
+        setBusy(true);
+        vaultEngine.syncTo(this, deviceName, vaultPath, this::onProgress, new VaultEngine.Callback<VaultUtils.SyncData>() {
+            @Override
+            public void onResult(VaultUtils.SyncData syncData) {
+                setBusy(false);
+                showSyncQR(syncData, R.string.qr_viewer_sync_to_title, R.string.qr_viewer_sync_to_description);
+            }
 
-        // Start QR viewer
-        Intent intent = new Intent(VaultActivity.this, QRViewerActivity.class);
-        intent.putExtra("title", getString(R.string.qr_viewer_sync_to_title));
-        intent.putExtra("description", getString(R.string.qr_viewer_sync_to_description));
-        intent.putExtra("actions", syncData.actions);
-        intent.putExtra("salt", syncData.salt);
-        startActivity(intent);
+            @Override
+            public void onError(Exception e) {
+                setBusy(false);
+                Log.e(TAG, "Sync to error", e);
+                Toast.makeText(VaultActivity.this, String.valueOf(e), Toast.LENGTH_LONG).show();
+            }
+        });
     }
 
     /**
      * Exports current vault
      */
     private void export() {
-        // Try to build sync data
-        VaultUtils.SyncData syncData = null;
-        try {
-            syncData = vaultUtils.syncTo(null, vaultPath);
-        } catch (Exception e) {
-            Log.e(TAG, "Error exporting vault", e);
-            Toast.makeText(this, String.valueOf(e), Toast.LENGTH_LONG).show();
-        }
-
-        // Check if we have anything to sync
-        if (syncData == null) {
-            Toast.makeText(this, R.string.nothing_to_sync, Toast.LENGTH_SHORT).show();
-            return;
-        }
+        // Try to build sync data in background
+        setBusy(true);
+        vaultEngine.syncTo(this, null, vaultPath, this::onProgress, new VaultEngine.Callback<VaultUtils.SyncData>() {
+            @Override
+            public void onResult(VaultUtils.SyncData syncData) {
+                setBusy(false);
+                showSyncQR(syncData, R.string.qr_viewer_export_to_title, R.string.qr_viewer_export_to_description);
+            }
 
-        // Start QR viewer
-        Intent intent = new Intent(VaultActivity.this, QRViewerActivity.class);
-        intent.putExtra("title", getString(R.string.qr_viewer_export_to_title));
-        intent.putExtra("description", getString(R.string.qr_viewer_export_to_description));
-        intent.putExtra("actions", syncData.actions);
-        intent.putExtra("salt", syncData.salt);
-        startActivity(intent);
+            @Override
+            public void onError(Exception e) {
+                setBusy(false);
+                Log.e(TAG, "Error exporting vault", e);
+                Toast.makeText(VaultActivity.this, String.valueOf(e), Toast.LENGTH_LONG).show();
+            }
+        });
     }
 
     @SuppressLint("NotifyDataSetChanged")
@@ -273,18 +453,28 @@ public class VaultActivity extends AppCompatActivity {
             return;
         }
 
-        // Try to sync from / import
-        try {
-            if (vaultUtils.syncFrom(syncFromData, vaultPath)) {
-                Toast.makeText(this, R.string.import_sync_ok, Toast.LENGTH_SHORT).show();
+        // Try to sync from / import in background
+        setBusy(true);
+        vaultEngine.syncFrom(this, syncFromData, vaultPath, this::onProgress, new VaultEngine.Callback<Boolean>() {
+            @Override
+            public void onResult(Boolean synced) {
+                setBusy(false);
 
                 // Update recycler view
-                entriesContainerAdapter.notifyDataSetChanged();
-            } else Toast.makeText(this, R.string.import_sync_error, Toast.LENGTH_SHORT).show();
-        } catch (Exception e) {
-            Log.e(TAG, "Sync from / import error", e);
-            Toast.makeText(this, String.valueOf(e), Toast.LENGTH_LONG).show();
-        }
+                applyFilter();
+
+                if (synced) Toast.makeText(VaultActivity.this, R.string.import_sync_ok, Toast.LENGTH_SHORT).show();
+                else Toast.makeText(VaultActivity.this, R.string.import_sync_error, Toast.LENGTH_SHORT).show();
+            }
+
+            @Override
+            public void onError(Exception e) {
+                setBusy(false);
+                applyFilter();
+                Log.e(TAG, "Sync from / import error", e);
+                Toast.makeText(VaultActivity.this, String.valueOf(e), Toast.LENGTH_LONG).show();
+            }
+        });
     }
 
     /**
@@ -322,20 +512,25 @@ public class VaultActivity extends AppCompatActivity {
             return;
         }
 
-        // Try to delete it
-        try {
-            if (!vaultUtils.deleteDevice(deviceName, vaultPath)) {
-                Toast.makeText(this, R.string.delete_device_error, Toast.LENGTH_SHORT).show();
-                return;
-            }
-        } catch (Exception e) {
-            Log.e(TAG, "Error deleting device", e);
-            Toast.makeText(this, String.valueOf(e), Toast.LENGTH_LONG).show();
-            return;
-        }
+        // Try to delete it in background
+        runWhenNotBusy(() -> {
+            setBusy(true);
+            vaultEngine.deleteDevice(deviceName, vaultPath, new VaultEngine.Callback<Boolean>() {
+                @Override
+                public void onResult(Boolean deleted) {
+                    setBusy(false);
+                    if (deleted) Toast.makeText(VaultActivity.this, R.string.delete_device_ok, Toast.LENGTH_SHORT).show();
+                    else Toast.makeText(VaultActivity.this, R.string.delete_device_error, Toast.LENGTH_SHORT).show();
+                }
 
-        // Show confirmation
-        Toast.makeText(this, R.string.delete_device_ok, Toast.LENGTH_SHORT).show();
+                @Override
+                public void onError(Exception e) {
+                    setBusy(false);
+                    Log.e(TAG, "Error deleting device", e);
+                    Toast.makeText(VaultActivity.this, String.valueOf(e), Toast.LENGTH_LONG).show();
+                }
+            });
+        });
     }
 
     /**
@@ -351,10 +546,11 @@ public class VaultActivity extends AppCompatActivity {
     /**
      * Opens activity to edit / delete entry
      *
-     * @param entryIndex entry index from vaultUtils.getVaultEntries()
+     * @param entryIndex index of shown entry (all entries or search results)
      */
     private void editEntry(int entryIndex) {
-        VaultEntry vaultEntry = vaultUtils.getVaultEntries().get(entryIndex);
+        if (busy) return;
+        VaultEntry vaultEntry = entriesContainerAdapter.getVaultEntry(entryIndex);
         String id = vaultEntry.getId();
         String site = vaultEntry.getSite();
         String user = vaultEntry.getUsername();
@@ -422,24 +618,35 @@ public class VaultActivity extends AppCompatActivity {
         // Exit if empty
         if (nameNew.trim().isEmpty() || nameNew.equals(vaultName)) return;
 
-        // Check if not exists
-        VaultUtils.VaultNamePath vaultNamePathTest = vaultUtils.getNamePath(nameNew, null);
-        if (vaultNamePathTest != null) {
-            Toast.makeText(this, getString(R.string.vault_create_already_exists, nameNew), Toast.LENGTH_SHORT).show();
-            return;
-        }
+        runWhenNotBusy(() -> {
+            // Check if not exists
+            VaultUtils.VaultNamePath vaultNamePathTest = vaultUtils.getNamePath(nameNew, null);
+            if (vaultNamePathTest != null) {
+                Toast.makeText(this, getString(R.string.vault_create_already_exists, nameNew), Toast.LENGTH_SHORT).show();
+                return;
+            }
 
-        // Try to rename
-        try {
-            if (vaultUtils.rename(nameNew, vaultPath)) {
-                vaultName = nameNew;
-                ((TextView) findViewById(R.id.vaultTitle)).setText(nameNew);
-                Toast.makeText(this, R.string.vault_rename_ok, Toast.LENGTH_SHORT).show();
-            } else Toast.makeText(this, R.string.vault_rename_error, Toast.LENGTH_SHORT).show();
-        } catch (Exception e) {
-            Log.e(TAG, "Error renaming vault", e);
-            Toast.makeText(this, String.valueOf(e), Toast.LENGTH_LONG).show();
-        }
+            // Try to rename in background
+            setBusy(true);
+            vaultEngine.rename(nameNew, vaultPath, new VaultEngine.Callback<Boolean>() {
+                @Override
+                public void onResult(Boolean renamed) {
+                    setBusy(false);
+                    if (renamed) {
+                        vaultName = nameNew;
+                        ((TextView) findViewById(R.id.vaultTitle)).setText(nameNew);
+                        Toast.makeText(VaultActivity.this, R.string.vault_rename_ok, Toast.LENGTH_SHORT).show();
+                    } else Toast.makeText(VaultActivity.this, R.string.vault_rename_error, Toast.LENGTH_SHORT).show();
+                }
+
+                @Override
+                public void onError(Exception e) {
+                    setBusy(false);
+                    Log.e(TAG, "Error renaming vault", e);
+                    Toast.makeText(VaultActivity.this, String.valueOf(e), Toast.LENGTH_LONG).show();
+                }
+            });
+        });
     }
 
     /**
@@ -456,120 +663,153 @@ public class VaultActivity extends AppCompatActivity {
             return;
         }
 
-        try {
-            if (vaultUtils.delete(vaultPath)) {
-                Toast.makeText(this, R.string.vault_delete_ok, Toast.LENGTH_SHORT).show();
-                finish();
-            } else Toast.makeText(this, R.string.vault_delete_error, Toast.LENGTH_SHORT).show();
+        // Try to delete in background
+        runWhenNotBusy(() -> {
+            setBusy(true);
+            vaultEngine.delete(vaultPath, new VaultEngine.Callback<Boolean>() {
+                @Override
+                public void onResult(Boolean deleted) {
+                    setBusy(false);
+                    if (deleted) {
+                        Toast.makeText(VaultActivity.this, R.string.vault_delete_ok, Toast.LENGTH_SHORT).show();
+                        finish();
+                    } else Toast.makeText(VaultActivity.this, R.string.vault_delete_error, Toast.LENGTH_SHORT).show();
+                }
 
-        } catch (Exception e) {
-            Log.e(TAG, "Error deleting vault", e);
-            Toast.makeText(this, String.valueOf(e), Toast.LENGTH_LONG).show();
-        }
+                @Override
+                public void onError(Exception e) {
+                    setBusy(false);
+                    Log.e(TAG, "Error deleting vault", e);
+                    Toast.makeText(VaultActivity.this, String.valueOf(e), Toast.LENGTH_LONG).show();
+                }
+            });
+        });
+    }
+
+    /**
+     * Writes requested save without waiting for more edits (onStop() always follows onPause())
+     */
+    @Override
+    protected void onPause() {
+        super.onPause();
+        if (vaultEngine != null) vaultEngine.flush();
     }
 
     /**
-     * Closes vault on destroy
+     * Cancels background jobs of this activity that can still be cancelled and closes vault on destroy.
+     * Vault stays unlocked if activity is recreated because of configuration change
      */
     @Override
     protected void onDestroy() {
         super.onDestroy();
-        vaultUtils.close();
+        if (vaultEngine == null) return;
+        vaultEngine.setPendingWritesListener(null);
+        if (isChangingConfigurations()) vaultEngine.cancelJobs(this);
+        else vaultRepository.closeSession(this);
     }
 
     /**
-     * Add / edit / delete entry callback
+     * Add / edit / delete entry callback. Result is applied after background job (ex. save) is finished
      */
-    @SuppressLint("NotifyDataSetChanged")
     private final ActivityResultLauncher<Intent> vaultEditLauncher = registerForActivityResult(new ActivityResultContracts.StartActivityForResult(), result -> {
-        if (result.getResultCode() == RESULT_OK) {
-            Intent data = result.getData();
-
-            // No data provided
-            if (data == null) return;
-
-            // Extract data
-            String id, site, user, password, notes;
-            if (data.hasExtra("id")) id = data.getStringExtra("id");
-            else id = "";
-            if (data.hasExtra("site")) site = data.getStringExtra("site");
-            else site = "";
-            if (data.hasExtra("user")) user = data.getStringExtra("user");
-            else user = "";
-            if (data.hasExtra("password")) password = data.getStringExtra("password");
-            else password = "";
-            if (data.hasExtra("notes")) notes = data.getStringExtra("notes");
-            else notes = "";
-            boolean delete = data.hasExtra("delete") && data.getBooleanExtra("delete", false);
-
-            // No data provided
-            if (!delete && (site == null || site.isEmpty()) && (user == null || user.isEmpty())) return;
-
-            try {
-                // ID provided (edit or delete)
-                if (id != null && !id.isEmpty()) {
-                    // Search entry index
-                    int entryIndex = vaultUtils.getEntryIndex(id);
-                    if (entryIndex == -1) return;
-
-                    // Delete entry
-                    if (delete) {
-                        Log.i(TAG, "Deleting entry " + id);
-                        vaultUtils.getVaultEntries().remove(entryIndex);
-                        vaultUtils.save(vaultPath);
+        if (result.getResultCode() == RESULT_OK) runWhenNotBusy(() -> onEditResult(result.getData()));
+    });
 
-                        Toast.makeText(this, R.string.entry_deleted, Toast.LENGTH_SHORT).show();
+    /**
+     * Adds / edits / deletes entry and requests save
+     *
+     * @param data result of EditActivity
+     */
+    @SuppressLint("NotifyDataSetChanged")
+    private void onEditResult(Intent data) {
+        // No data provided
+        if (data == null) return;
+
+        // Extract data
+        String id, site, user, password, notes;
+        if (data.hasExtra("id")) id = data.getStringExtra("id");
+        else id = "";
+        if (data.hasExtra("site")) site = data.getStringExtra("site");
+        else site = "";
+        if (data.hasExtra("user")) user = data.getStringExtra("user");
+        else user = "";
+        if (data.hasExtra("password")) password = data.getStringExtra("password");
+        else password = "";
+        if (data.hasExtra("notes")) notes = data.getStringExtra("notes");
+        else notes = "";
+        boolean delete = data.hasExtra("delete") && data.getBooleanExtra("delete", false);
+
+        // No data provided
+        if (!delete && (site == null || site.isEmpty()) && (user == null || user.isEmpty())) return;
 
-                        // Update recycler view
-                        entriesContainerAdapter.notifyDataSetChanged();
-                        return;
-                    }
+        try {
+            // ID provided (edit or delete)
+            if (id != null && !id.isEmpty()) {
+                // Search entry index
+                int entryIndex = vaultUtils.getEntryIndex(id);
+                if (entryIndex == -1) return;
 
-                    // Edit entry
+                // Delete entry
+                if (delete) {
+                    Log.i(TAG, "Deleting entry " + id);
+                    vaultUtils.removeEntry(id);
+                    save();
 
-                    // Exit if nothing changed
-                    if (data.hasExtra("changed") && !data.getBooleanExtra("changed", false)) return;
+                    Toast.makeText(this, R.string.entry_deleted, Toast.LENGTH_SHORT).show();
 
-                    Log.i(TAG, "Editing entry " + id);
+                    // Update recycler view
+                    if (isFiltered()) applyFilter();
+                    else entriesContainerAdapter.notifyItemRemoved(entryIndex);
+                    return;
+                }
 
-                    VaultEntry vaultEntry = vaultUtils.getVaultEntries().get(entryIndex);
+                // Edit entry
 
-                    // Nothing to edit
-                    if ((site == null || site.equals(vaultEntry.getSite())) && (user == null || user.equals(vaultEntry.getSite())) && (password == null || password.equals(vaultEntry.getPassword())) && (notes == null || notes.equals(vaultEntry.getNotes())))
-                        return;
+                // Exit if nothing changed
+                if (data.hasExtra("changed") && !data.getBooleanExtra("changed", false)) return;
 
-                    // Update entry
-                    vaultEntry.setSite(site);
-                    vaultEntry.setUsername(user);
-                    vaultEntry.setPassword(password);
-                    vaultEntry.setNotes(notes);
+                Log.i(TAG, "Editing entry " + id);
 
-                    // Save
-                    vaultUtils.save(vaultPath);
+                VaultEntry vaultEntry = vaultUtils.getVaultEntries().get(entryIndex);
 
-                    // Update recycler view
-                    entriesContainerAdapter.notifyItemChanged(entryIndex);
+                // Nothing to edit
+                if ((site == null || site.equals(vaultEntry.getSite())) && (user == null || user.equals(vaultEntry.getSite())) && (password == null || password.equals(vaultEntry.getPassword())) && (notes == null || notes.equals(vaultEntry.getNotes())))
                     return;
-                }
-
-                // Add entry
 
-                Log.i(TAG, "Adding new entry");
+                // Update entry
+                vaultEntry.setSite(site);
+                vaultEntry.setUsername(user);
+                vaultEntry.setPassword(password);
+                vaultEntry.setNotes(notes);
+                vaultUtils.updateEntry(vaultEntry);
 
-                // Add entry (to the top) and save vault
-                VaultEntry entry = new VaultEntry(null, site, user, password, notes);
-                vaultUtils.getVaultEntries().add(0, entry);
-                vaultUtils.save(vaultPath);
+                // Save
+                save();
 
                 // Update recycler view
-//                entriesContainerAdapter.notifyItemInserted(vaultUtils.getVaultEntries().size() - 1);
-                entriesContainerAdapter.notifyItemInserted(0);
-            } catch (Exception e) {
-                Log.e(TAG, "Error adding / editing / deleting entry", e);
-                Toast.makeText(this, String.valueOf(e), Toast.LENGTH_LONG).show();
+                if (isFiltered()) applyFilter();
+                else entriesContainerAdapter.notifyItemChanged(entryIndex);
+                return;
             }
+
+            // Add entry
+
+            Log.i(TAG, "Adding new entry");
+
+            // Add entry (to the top) and save vault
+            VaultEntry entry = new VaultEntry(null, site, user, password, notes);
+            vaultUtils.addEntry(entry);
+            save();
+
+            // Update recycler view
+//            entriesContainerAdapter.notifyItemInserted(vaultUtils.getVaultEntries().size() - 1);
+            if (isFiltered()) applyFilter();
+            else entriesContainerAdapter.notifyItemInserted(0);
+        } catch (Exception e) {
+            Log.e(TAG, "Error adding / editing / deleting entry", e);
+            Toast.makeText(this, String.valueOf(e), Toast.LENGTH_LONG).show();
         }
-    });
+    }
 
     /**
      * QR scanner (sync from / import) callback
@@ -606,19 +846,8 @@ public class VaultActivity extends AppCompatActivity {
             // Create sync data instance if needed
             if (syncFromData == null) syncFromData = new VaultUtils.SyncData(new ArrayList<>(), null);
 
-            // Extract sync salt
-            if (partialSyncData.has("salt")) {
-                syncFromData.salt = partialSyncData.getString("salt");
-                Log.i(TAG, "Received sync salt");
-            }
-
-            // Extract actions
-            if (partialSyncData.has("acts")) {
-                JSONArray actions = partialSyncData.getJSONArray("acts");
-                for (int i = 0; i < actions.length(); i++)
-                    syncFromData.actions.add(actions.getJSONObject(i).toString().replace("\\/", "/"));
-                Log.i(TAG, "Received " + actions.length() + " actions");
-            }
+            // Extract salt, sync root and actions
+            syncFromData.addPart(partialSyncData);
 
             // Mark this part as received
             Toast.makeText(this, getString(R.string.import_sync_received_part, partIndex + 1, partsTotal), Toast.LENGTH_SHORT).show();
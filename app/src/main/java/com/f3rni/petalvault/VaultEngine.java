@@ -0,0 +1,405 @@
+/**
+ * This file is part of the PetalVault-Android password manager distribution.
+ * See <https://github.com/F33RNI/PetalVault-Android>.
+ * Copyright (C) 2024 Fern Lane
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, version 3.
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.f3rni.petalvault;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs heavy VaultUtils and CryptoUtils calls on a single background thread
+ * and delivers progress and results to the UI thread
+ */
+public class VaultEngine {
+    private static final String TAG = VaultEngine.class.getName();
+
+    private final VaultUtils vaultUtils;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, "VaultEngine"));
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private volatile boolean isShutdown;
+
+    // Jobs that can be cancelled and their owners. Job is removed when it's finished or starts changing vault
+    private final Map<Future<?>, Object> cancellableTasks = new HashMap<>();
+
+    // Job that is running on the background thread
+    private volatile Future<?> runningTask;
+
+    // Submitted and not finished jobs. KDF arenas are released when it drops to 0
+    private final AtomicInteger jobsQueued = new AtomicInteger();
+
+    // Changes requested within this interval are saved together (write-behind)
+    static final long SAVE_DELAY_MS = 1000;
+
+    // Write-behind state. Accessed only from the UI thread
+    private final Runnable delayedSave = this::flush;
+    private String pendingSavePath;
+    private ProgressListener pendingSaveProgressListener;
+    private Callback<Boolean> pendingSaveCallback;
+    private int savesRunning;
+    private PendingWritesListener pendingWritesListener;
+
+    public interface Callback<T> {
+        void onResult(T result);
+
+        void onError(Exception e);
+    }
+
+    /**
+     * Initializes VaultEngine instance
+     *
+     * @param vaultUtils VaultUtils instance. It must not be used outside of this engine while any job is running
+     */
+    VaultEngine(VaultUtils vaultUtils) {
+        this.vaultUtils = vaultUtils;
+    }
+
+    /**
+     * Creates a new vault (see VaultUtils.create())
+     */
+    public Future<Boolean> create(String name, String[] mnemonicWords, String password, Callback<Boolean> callback) {
+        return submit(() -> vaultUtils.create(name, mnemonicWords, password), null, callback, null);
+    }
+
+    /**
+     * Reads and decrypts vault (see VaultUtils.open()) after writing requested save
+     *
+     * @param owner owner of the job to cancel it with cancelJobs()
+     */
+    public Future<Boolean> open(Object owner, String relPath, String[] mnemonicWords, ProgressListener progressListener, Callback<Boolean> callback) {
+        flush();
+        return submit(() -> vaultUtils.open(relPath, mnemonicWords), progressListener, callback, owner);
+    }
+
+    /**
+     * Calls callback with true after all already submitted jobs are finished
+     *
+     * @param owner owner of the job to cancel it with cancelJobs()
+     */
+    public Future<Boolean> whenIdle(Object owner, Callback<Boolean> callback) {
+        return submit(() -> true, null, callback, owner);
+    }
+
+    /**
+     * Saves current vault with encryption of entries (see VaultUtils.save()). Saves are never cancelled.
+     * Vault file is compacted within the same job if it's log or pages file has too many dead records,
+     * so entries are not changed while compaction reads them
+     */
+    public Future<Boolean> save(String relPath, ProgressListener progressListener, Callback<Boolean> callback) {
+        return submit(() -> {
+            boolean saved = vaultUtils.save(relPath);
+            if (saved && vaultUtils.needsCompaction()) compact(relPath);
+            return saved;
+        }, progressListener, callback, null);
+    }
+
+    /**
+     * Rewrites vault file (see VaultUtils.compact()). Errors are only logged, vault will be compacted after the next save.
+     * Called from the background thread
+     */
+    private void compact(String relPath) {
+        try {
+            if (!vaultUtils.compact(relPath)) Log.w(TAG, "Unable to compact vault " + relPath);
+        } catch (Exception e) {
+            Log.e(TAG, "Error compacting vault " + relPath, e);
+        }
+    }
+
+    /**
+     * Marks vault as changed and saves it after SAVE_DELAY_MS unless another save is requested during this time,
+     * so bursts of edits cost one save. Must be called from the UI thread
+     *
+     * @param relPath          relative path of current vault
+     * @param progressListener listener to call on the UI thread while saving or null
+     * @param callback         callback of the save that includes this change or null
+     */
+    public void requestSave(String relPath, ProgressListener progressListener, Callback<Boolean> callback) {
+        if (isShutdown) return;
+
+        // Different vault -> write previous changes now
+        if (pendingSavePath != null && !pendingSavePath.equals(relPath)) flush();
+
+        pendingSavePath = relPath;
+        pendingSaveProgressListener = progressListener;
+        pendingSaveCallback = callback;
+        mainHandler.removeCallbacks(delayedSave);
+        mainHandler.postDelayed(delayedSave, SAVE_DELAY_MS);
+        notifyPendingWrites();
+    }
+
+    /**
+     * Starts requested save (see requestSave()) without waiting. Call from onPause() and before any job that
+     * relies on saved vault. Must be called from the UI thread
+     *
+     * @return save's future or null if there are no pending changes
+     */
+    public Future<Boolean> flush() {
+        mainHandler.removeCallbacks(delayedSave);
+        if (pendingSavePath == null) return null;
+        String relPath = pendingSavePath;
+        Callback<Boolean> callback = pendingSaveCallback;
+        ProgressListener progressListener = pendingSaveProgressListener;
+        pendingSavePath = null;
+        pendingSaveProgressListener = null;
+        pendingSaveCallback = null;
+
+        savesRunning++;
+        notifyPendingWrites();
+        return save(relPath, progressListener, new Callback<Boolean>() {
+            @Override
+            public void onResult(Boolean saved) {
+                onSaveFinished();
+                if (callback != null) callback.onResult(saved);
+            }
+
+            @Override
+            public void onError(Exception e) {
+                onSaveFinished();
+                if (callback != null) callback.onError(e);
+            }
+        });
+    }
+
+    /**
+     * @return true if there are changes that are not written yet. Must be called from the UI thread
+     */
+    public boolean hasPendingWrites() {
+        return pendingSavePath != null || savesRunning > 0;
+    }
+
+    /**
+     * Sets listener of write-behind state and calls it with current state. Must be called from the UI thread
+     *
+     * @param pendingWritesListener listener to call on the UI thread or null
+     */
+    public void setPendingWritesListener(PendingWritesListener pendingWritesListener) {
+        this.pendingWritesListener = pendingWritesListener;
+        if (hasPendingWrites()) notifyPendingWrites();
+    }
+
+    private void onSaveFinished() {
+        savesRunning--;
+        notifyPendingWrites();
+    }
+
+    private void notifyPendingWrites() {
+        if (pendingWritesListener != null) pendingWritesListener.onPendingWritesChanged(hasPendingWrites(), savesRunning > 0);
+    }
+
+    /**
+     * Exports / syncs data to device (see VaultUtils.syncTo()) after writing requested save.
+     * Job can't be cancelled after it starts changing vault
+     *
+     * @param owner owner of the job to cancel it with cancelJobs()
+     */
+    public Future<VaultUtils.SyncData> syncTo(Object owner, String deviceName, String vaultPath, ProgressListener progressListener, Callback<VaultUtils.SyncData> callback) {
+        flush();
+        return submit(() -> vaultUtils.syncTo(deviceName, vaultPath, this::startChanges), progressListener, callback, owner);
+    }
+
+    /**
+     * Syncs vault (see VaultUtils.syncFrom()) after writing requested save.
+     * Job can't be cancelled after it starts applying actions
+     *
+     * @param owner owner of the job to cancel it with cancelJobs()
+     */
+    public Future<Boolean> syncFrom(Object owner, VaultUtils.SyncData syncData, String vaultPath, ProgressListener progressListener, Callback<Boolean> callback) {
+        flush();
+        return submit(() -> vaultUtils.syncFrom(syncData, vaultPath, this::startChanges), progressListener, callback, owner);
+    }
+
+    /**
+     * Deletes sync device and saves vault (see VaultUtils.deleteDevice()) after writing requested save. Never cancelled
+     */
+    public Future<Boolean> deleteDevice(String deviceName, String vaultPath, Callback<Boolean> callback) {
+        flush();
+        return submit(() -> vaultUtils.deleteDevice(deviceName, vaultPath), null, callback, null);
+    }
+
+    /**
+     * Renames and saves vault (see VaultUtils.rename()) after writing requested save. Never cancelled
+     */
+    public Future<Boolean> rename(String nameNew, String vaultPath, Callback<Boolean> callback) {
+        flush();
+        return submit(() -> vaultUtils.rename(nameNew, vaultPath), null, callback, null);
+    }
+
+    /**
+     * Deletes and closes vault (see VaultUtils.delete()) after writing requested save. Never cancelled
+     */
+    public Future<Boolean> delete(String vaultPath, Callback<Boolean> callback) {
+        flush();
+        return submit(() -> vaultUtils.delete(vaultPath), null, callback, null);
+    }
+
+    /**
+     * Decrypts mnemonic with master password (see CryptoUtils.decryptMnemonic())
+     *
+     * @param owner owner of the job to cancel it with cancelJobs()
+     */
+    public Future<String[]> decryptMnemonic(Object owner, CryptoUtils.MnemonicEncrypted mnemonicEncrypted, String masterPassword, Callback<String[]> callback) {
+        return submit(() -> CryptoUtils.decryptMnemonic(mnemonicEncrypted, masterPassword), null, callback, owner);
+    }
+
+    /**
+     * Cancels running and pending jobs of owner that can still be cancelled. Their callbacks are not called
+     *
+     * @param owner owner that was passed when jobs were submitted or null to cancel jobs of all owners
+     */
+    public void cancelJobs(Object owner) {
+        synchronized (cancellableTasks) {
+            Iterator<Map.Entry<Future<?>, Object>> iterator = cancellableTasks.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<Future<?>, Object> task = iterator.next();
+                if (owner != null && task.getValue() != owner) continue;
+                task.getKey().cancel(true);
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Makes running job not cancellable before it changes vault. Called from the background thread
+     *
+     * @throws CancellationException if job was already cancelled
+     */
+    private void startChanges() {
+        synchronized (cancellableTasks) {
+            cancellableTasks.remove(runningTask);
+            if (runningTask.isCancelled()) throw new CancellationException("Operation cancelled");
+        }
+    }
+
+    /**
+     * Closes vault (see VaultUtils.close()) after writing requested save. Never cancelled, thread keeps running
+     */
+    public Future<Boolean> close() {
+        flush();
+        return submit(() -> {
+            vaultUtils.close();
+            return true;
+        }, null, null, null);
+    }
+
+    /**
+     * Cancels all jobs that can still be cancelled, closes vault after the rest and stops background thread.
+     * Requested save is started immediately
+     */
+    public void shutdown() {
+        flush();
+        pendingWritesListener = null;
+        isShutdown = true;
+        cancelJobs(null);
+        executor.execute(vaultUtils::close);
+        executor.shutdown();
+    }
+
+    /**
+     * Submits job to the background thread
+     *
+     * @param job              job to run
+     * @param progressListener listener to call on the UI thread or null
+     * @param callback         callback to call on the UI thread or null
+     * @param owner            owner to cancel job with cancelJobs() or null if job is never cancelled
+     * @return job's future
+     */
+    private <T> Future<T> submit(Callable<T> job, ProgressListener progressListener, Callback<T> callback, Object owner) {
+        FutureTask<T> task = new FutureTask<T>(() -> {
+            vaultUtils.setProgressListener(progressListener == null ? null : new MainThreadProgressListener(progressListener));
+            try {
+                return job.call();
+            } finally {
+                vaultUtils.setProgressListener(null);
+            }
+        }) {
+            @Override
+            public void run() {
+                runningTask = this;
+                try {
+                    super.run();
+                } finally {
+                    // Batch of jobs is finished -> don't keep KDF arenas until the next unlock or sync
+                    if (jobsQueued.decrementAndGet() == 0) CryptoUtils.releaseKdfArenas();
+                }
+            }
+
+            @Override
+            protected void done() {
+                synchronized (cancellableTasks) {
+                    cancellableTasks.remove(this);
+                }
+                if (isCancelled() || callback == null) return;
+                try {
+                    T result = get();
+                    mainHandler.post(() -> {
+                        if (!isShutdown) callback.onResult(result);
+                    });
+                } catch (ExecutionException e) {
+                    Log.e(TAG, "Background job error", e.getCause());
+                    Exception cause = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                    mainHandler.post(() -> {
+                        if (!isShutdown) callback.onError(cause);
+                    });
+                } catch (InterruptedException e) {
+                    Log.w(TAG, "Interrupted while getting result", e);
+                }
+            }
+        };
+
+        if (owner != null) {
+            synchronized (cancellableTasks) {
+                cancellableTasks.put(task, owner);
+            }
+        }
+        jobsQueued.incrementAndGet();
+        try {
+            executor.execute(task);
+        } catch (RuntimeException e) {
+            jobsQueued.decrementAndGet();
+            throw e;
+        }
+        return task;
+    }
+
+    // Posts progress to the UI thread only when percentage changes
+    private class MainThreadProgressListener implements ProgressListener {
+        private final ProgressListener progressListener;
+        private int lastPercent = -1;
+
+        MainThreadProgressListener(ProgressListener progressListener) {
+            this.progressListener = progressListener;
+        }
+
+        @Override
+        public void onProgress(int done, int total) {
+            int percent = total > 0 ? (int) (100L * done / total) : 100;
+            if (percent == lastPercent) return;
+            lastPercent = percent;
+            mainHandler.post(() -> {
+                if (!isShutdown) progressListener.onProgress(done, total);
+            });
+        }
+    }
+}
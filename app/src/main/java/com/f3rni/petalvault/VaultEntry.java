@@ -23,6 +23,14 @@ public class VaultEntry {
     private String password;
     private String notes;
 
+    // Cached ciphertext of this entry (in the current entry format): index part and secret part.
+    // Valid only while entry is not dirty
+    private String enc, iv, sec, secIv;
+    private boolean dirty = true;
+
+    // Decrypts secret part (password and notes) on first access. null if it's already decrypted
+    private SecretLoader secretLoader;
+
     /**
      * Initializes entry from strings
      *
@@ -59,10 +67,33 @@ public class VaultEntry {
         else this.notes = "";
     }
 
+    /**
+     * Initializes entry from record of it's index part (id, site, user). Password and notes are decrypted
+     * from cached ciphertext (see setEncrypted()) on first access
+     *
+     * @throws IllegalArgumentException if record has no id
+     */
+    public VaultEntry(EntryRecord.Reader index, SecretLoader secretLoader) {
+        String id = null;
+        site = "";
+        username = "";
+        while (index.next()) {
+            if (index.tag() == EntryRecord.TAG_ID) id = index.value();
+            else if (index.tag() == EntryRecord.TAG_SITE) site = index.value();
+            else if (index.tag() == EntryRecord.TAG_USER) username = index.value();
+        }
+        if (id == null) throw new IllegalArgumentException("No id field");
+        this.id = id;
+        password = "";
+        notes = "";
+        this.secretLoader = secretLoader;
+    }
+
     /**
      * @return entry as JSON (with id, site, username, password and notes keys only if they are not empty)
      */
     public JSONObject getAsJSON() throws JSONException {
+        loadSecret();
         JSONObject entry = new JSONObject();
         entry.put("id", id);
 
@@ -73,13 +104,98 @@ public class VaultEntry {
         return entry;
     }
 
+    /**
+     * Writes index part (id, site, user) of entry as binary record
+     */
+    public void writeIndex(EntryRecord.Writer writer) {
+        writer.write(EntryRecord.TAG_ID, id);
+        writer.write(EntryRecord.TAG_SITE, site);
+        writer.write(EntryRecord.TAG_USER, username);
+    }
+
+    /**
+     * Writes secret part (password, notes) of entry as binary record
+     */
+    public void writeSecret(EntryRecord.Writer writer) {
+        loadSecret();
+        writer.write(EntryRecord.TAG_PASS, password);
+        writer.write(EntryRecord.TAG_NOTES, notes);
+    }
+
+    /**
+     * @return cached encrypted entry (with "v", "d", "enc", "iv", "sec" and "sec_iv" keys)
+     * or null if entry was changed since last encryption
+     */
+    public JSONObject getEncrypted() throws JSONException {
+        if (dirty || enc == null || iv == null || sec == null || secIv == null) return null;
+        JSONObject encrypted = new JSONObject();
+        encrypted.put("v", CryptoUtils.ENTRY_VERSION);
+        encrypted.put("d", EntryDictionary.CURRENT);
+        encrypted.put("enc", enc);
+        encrypted.put("iv", iv);
+        encrypted.put("sec", sec);
+        encrypted.put("sec_iv", secIv);
+        return encrypted;
+    }
+
+    /**
+     * Caches ciphertext (in the current entry format with current compression dictionary) of the current entry content and clears dirty flag
+     */
+    public void setEncrypted(String enc, String iv, String sec, String secIv) {
+        this.enc = enc;
+        this.iv = iv;
+        this.sec = sec;
+        this.secIv = secIv;
+        dirty = false;
+    }
+
+    /**
+     * @return true if password and notes are decrypted
+     */
+    public synchronized boolean isSecretLoaded() {
+        return secretLoader == null;
+    }
+
+    /**
+     * Decrypts password and notes if they were not decrypted yet
+     *
+     * @throws IllegalStateException in case of decryption error (ex. vault was closed)
+     */
+    private synchronized void loadSecret() {
+        if (secretLoader == null) return;
+        try {
+            EntryRecord.Reader secret = secretLoader.loadSecret(sec, secIv);
+            while (secret.next()) {
+                if (secret.tag() == EntryRecord.TAG_PASS) password = secret.value();
+                else if (secret.tag() == EntryRecord.TAG_NOTES) notes = secret.value();
+            }
+            secretLoader = null;
+        } catch (Exception e) {
+            throw new IllegalStateException("Unable to decrypt secret of entry " + id, e);
+        }
+    }
+
+    /**
+     * Marks entry as changed, so it will be encrypted on the next save
+     */
+    public void markDirty() {
+        dirty = true;
+    }
+
+    /**
+     * @return true if entry was changed since last encryption
+     */
+    public boolean isDirty() {
+        return dirty;
+    }
+
     /**
      * @return true if current entry is equal to entry
      */
     public boolean equals(VaultEntry entry) {
         if (entry == null) return false;
 
-        return entry.getId().equals(id) && entry.getSite().equals(site) && entry.getUsername().equals(username) && entry.getPassword().equals(password) && entry.getNotes().equals(notes);
+        return entry.getId().equals(id) && entry.getSite().equals(site) && entry.getUsername().equals(username) && entry.getPassword().equals(getPassword()) && entry.getNotes().equals(getNotes());
     }
 
     public String getId() {
@@ -95,26 +211,34 @@ public class VaultEntry {
     }
 
     public String getPassword() {
+        loadSecret();
         return password;
     }
 
     public String getNotes() {
+        loadSecret();
         return notes;
     }
 
     public void setSite(String site) {
         this.site = site;
+        dirty = true;
     }
 
     public void setUsername(String username) {
         this.username = username;
+        dirty = true;
     }
 
     public void setPassword(String password) {
+        loadSecret();
         this.password = password;
+        dirty = true;
     }
 
     public void setNotes(String notes) {
+        loadSecret();
         this.notes = notes;
+        dirty = true;
     }
 }
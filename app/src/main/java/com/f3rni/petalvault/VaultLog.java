@@ -0,0 +1,219 @@
+/**
+ * This file is part of the PetalVault-Android password manager distribution.
+ * See <https://github.com/F33RNI/PetalVault-Android>.
+ * Copyright (C) 2024 Fern Lane
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, version 3.
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.f3rni.petalvault;
+
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of changes of vault entries, stored next to the vault file (vault file name + ".log").
+ * Each record is [payload length: int][CRC32 of payload: int][payload], where payload is operation byte and
+ * compact JSON (UTF-8). The first record holds id of the vault file ("log_id" key) the log belongs to,
+ * so log left after rewriting the vault file is ignored
+ */
+public class VaultLog {
+    private static final String TAG = VaultLog.class.getName();
+
+    static final String SUFFIX = ".log";
+
+    static final byte OP_HEADER = 0;
+    static final byte OP_PUT = 1;
+    static final byte OP_DELETE = 2;
+
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final int MAX_PAYLOAD_SIZE = 16 * 1024 * 1024;
+
+    public static class Record {
+        public final byte op;
+        public final JSONObject data;
+
+        public Record(byte op, JSONObject data) {
+            this.op = op;
+            this.data = data;
+        }
+    }
+
+    private final File file;
+    private int recordsCount;
+
+    /**
+     * @param vaultFile vault file this log belongs to
+     */
+    public VaultLog(File vaultFile) {
+        file = new File(vaultFile.getAbsoluteFile().getParentFile(), vaultFile.getName() + SUFFIX);
+    }
+
+    /**
+     * Reads all records of the log. Torn or corrupted tail (ex. after crash during append) is truncated.
+     * Log that belongs to a different vault file is deleted
+     *
+     * @param logId "log_id" of vault file
+     * @return put and delete records in order of appending (empty if there is no log)
+     */
+    public ArrayList<Record> read(String logId) throws IOException {
+        ArrayList<Record> records = new ArrayList<>();
+        recordsCount = 0;
+        if (!file.exists()) return records;
+
+        boolean stale = false;
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            FileChannel channel = randomAccessFile.getChannel();
+            DataInputStream inputStream = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+            long validLength = 0;
+            boolean torn = false;
+            CRC32 crc32 = new CRC32();
+            while (validLength < channel.size()) {
+                Record record = null;
+                int length = 0;
+                try {
+                    length = inputStream.readInt();
+                    int crc = inputStream.readInt();
+                    if (length > 0 && length <= MAX_PAYLOAD_SIZE) {
+                        byte[] payload = new byte[length];
+                        inputStream.readFully(payload);
+                        crc32.reset();
+                        crc32.update(payload, 0, length);
+                        if ((int) crc32.getValue() == crc)
+                            record = new Record(payload[0], new JSONObject(new String(payload, 1, length - 1, StandardCharsets.UTF_8)));
+                    }
+                } catch (EOFException | JSONException e) {
+                    Log.w(TAG, "Unable to parse record", e);
+                }
+                if (record == null) {
+                    torn = true;
+                    Log.w(TAG, "Torn or corrupted record at " + validLength + " of " + file.getName());
+                    break;
+                }
+
+                // The first record must be header of the current vault file
+                if (validLength == 0 && (record.op != OP_HEADER || !record.data.optString("log_id").equals(logId))) {
+                    stale = true;
+                    break;
+                }
+                validLength += RECORD_HEADER_SIZE + length;
+                if (record.op == OP_PUT || record.op == OP_DELETE) records.add(record);
+            }
+
+            // Recover from crash during append
+            if (torn && validLength > 0) {
+                Log.w(TAG, "Truncating " + file.getName() + " from " + channel.size() + " to " + validLength + " bytes");
+                channel.truncate(validLength);
+                channel.force(true);
+            } else if (torn) stale = true;
+        }
+
+        if (stale) {
+            Log.w(TAG, "Deleting log that doesn't belong to the vault file: " + file.getName());
+            records.clear();
+            delete();
+            return records;
+        }
+
+        recordsCount = records.size();
+        return records;
+    }
+
+    /**
+     * Appends records and syncs them to the disk. Nothing is appended in case of error
+     *
+     * @param logId   "log_id" of vault file (written if log doesn't exist)
+     * @param records put and delete records
+     */
+    public void append(String logId, List<Record> records) throws IOException, JSONException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        if (!file.exists() || file.length() == 0) {
+            JSONObject header = new JSONObject();
+            header.put("log_id", logId);
+            writeRecord(buffer, new Record(OP_HEADER, header));
+        }
+        for (Record record : records) writeRecord(buffer, record);
+
+        try (FileOutputStream outputStream = new FileOutputStream(file, true)) {
+            FileChannel channel = outputStream.getChannel();
+            long length = channel.size();
+            try {
+                ByteBuffer byteBuffer = ByteBuffer.wrap(buffer.toByteArray());
+                while (byteBuffer.hasRemaining()) channel.write(byteBuffer);
+                channel.force(false);
+            } catch (IOException e) {
+                // Remove partially written records
+                channel.truncate(length);
+                throw e;
+            }
+        }
+        recordsCount += records.size();
+    }
+
+    /**
+     * Writes record with it's length and checksum
+     */
+    private static void writeRecord(ByteArrayOutputStream buffer, Record record) throws IOException, JSONException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        payload.write(record.op);
+        Writer writer = new OutputStreamWriter(payload, StandardCharsets.UTF_8);
+        JSONFileUtils.writeJson(writer, record.data);
+        writer.flush();
+        if (payload.size() > MAX_PAYLOAD_SIZE) throw new IOException("Record is too large: " + payload.size());
+
+        CRC32 crc32 = new CRC32();
+        crc32.update(payload.toByteArray(), 0, payload.size());
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        header.putInt(payload.size());
+        header.putInt((int) crc32.getValue());
+        buffer.write(header.array());
+        payload.writeTo(buffer);
+    }
+
+    /**
+     * Deletes log file
+     *
+     * @return true if there is no log file anymore
+     */
+    public boolean delete() {
+        recordsCount = 0;
+        return !file.exists() || file.delete();
+    }
+
+    /**
+     * @return number of put and delete records (after read() or append())
+     */
+    public int getRecordsCount() {
+        return recordsCount;
+    }
+
+    public File getFile() {
+        return file;
+    }
+}
@@ -0,0 +1,117 @@
+/**
+ * This file is part of the PetalVault-Android password manager distribution.
+ * See <https://github.com/F33RNI/PetalVault-Android>.
+ * Copyright (C) 2024 Fern Lane
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, version 3.
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.f3rni.petalvault;
+
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+
+/**
+ * Cached headers of vault files (name, version, salt presence, number of entries), so the list of vaults
+ * can be built without reading them. Each record is valid only while size and modification time of it's vault
+ * file are the same as at the time of caching
+ */
+public class VaultManifest {
+    private static final String TAG = VaultManifest.class.getName();
+
+    static final String FILENAME = "manifest.json";
+    private static final int VERSION = 1;
+
+    private final File file;
+    private JSONObject vaults;
+    private boolean changed;
+
+    /**
+     * Loads manifest from vaultsDir (or creates an empty one)
+     */
+    public VaultManifest(File vaultsDir) {
+        file = new File(vaultsDir, FILENAME);
+        JSONObject manifest = JSONFileUtils.readJsonFromFile(file);
+        vaults = manifest.optInt("v") == VERSION ? manifest.optJSONObject("vaults") : null;
+        if (vaults == null) vaults = new JSONObject();
+    }
+
+    /**
+     * @param relPath   path of vault, relative to vaultsDir
+     * @param vaultFile vault file
+     * @return cached record (with "name", "version", "salt" and "entries" keys) or null if there is no record
+     * or vault file was changed since caching
+     */
+    public JSONObject get(String relPath, File vaultFile) {
+        JSONObject record = vaults.optJSONObject(relPath);
+        if (record == null) return null;
+        if (record.optLong("size", -1) != vaultFile.length() || record.optLong("mtime", -1) != vaultFile.lastModified())
+            return null;
+        return record;
+    }
+
+    /**
+     * Caches header of vault file. Call after vault file was written
+     *
+     * @param relPath      path of vault, relative to vaultsDir
+     * @param vaultFile    vault file
+     * @param header       vault without entries (only name, version and master_salt are used)
+     * @param entriesCount number of entries
+     */
+    public void put(String relPath, File vaultFile, JSONObject header, int entriesCount) {
+        try {
+            JSONObject record = new JSONObject();
+            record.put("name", header.opt("name"));
+            record.put("version", header.opt("version"));
+            record.put("salt", header.has("master_salt"));
+            record.put("entries", entriesCount);
+            record.put("size", vaultFile.length());
+            record.put("mtime", vaultFile.lastModified());
+            vaults.put(relPath, record);
+            changed = true;
+        } catch (JSONException e) {
+            Log.w(TAG, "Unable to cache header of " + relPath, e);
+        }
+    }
+
+    /**
+     * Removes records of vaults that are not in relPaths
+     */
+    public void retain(Collection<String> relPaths) {
+        ArrayList<String> removed = new ArrayList<>();
+        Iterator<String> keys = vaults.keys();
+        while (keys.hasNext()) {
+            String relPath = keys.next();
+            if (!relPaths.contains(relPath)) removed.add(relPath);
+        }
+        for (String relPath : removed) vaults.remove(relPath);
+        if (!removed.isEmpty()) changed = true;
+    }
+
+    /**
+     * Atomically writes manifest if it was changed
+     */
+    public void save() {
+        if (!changed) return;
+        try {
+            JSONObject manifest = new JSONObject();
+            manifest.put("v", VERSION);
+            manifest.put("vaults", vaults);
+            if (JSONFileUtils.writeJsonToFile(file, manifest)) changed = false;
+        } catch (JSONException e) {
+            Log.w(TAG, "Unable to save manifest", e);
+        }
+    }
+}
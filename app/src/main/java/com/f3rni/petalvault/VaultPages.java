@@ -0,0 +1,415 @@
+/**
+ * This file is part of the PetalVault-Android password manager distribution.
+ * See <https://github.com/F33RNI/PetalVault-Android>.
+ * Copyright (C) 2024 Fern Lane
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, version 3.
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.f3rni.petalvault;
+
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Paged storage of vault entries. Entries are grouped into pages, each page is compressed and encrypted as a whole
+ * and stored in pages file next to the vault file. Vault header keeps page table ("pages" key with pages file name,
+ * offset, length, IV and number of entries of each page in order of entries).
+ * Changed pages are appended to the pages file and become visible only after the vault header with the new page table
+ * is written, so editing one entry writes one page and the header. Pages that are not in the table anymore
+ * are removed by compaction, which writes all pages into a new pages file
+ */
+public class VaultPages {
+    private static final String TAG = VaultPages.class.getName();
+
+    static final String SUFFIX = ".pages";
+
+    // Entries per page after compaction. Pages are split when they grow beyond twice this size
+    static final int PAGE_SIZE = 256;
+
+    // Pages file is compacted when less than this part of it is referenced by page table
+    private static final float COMPACT_LIVE_RATIO = 0.5f;
+    private static final long COMPACT_MIN_SIZE = 64 * 1024;
+
+    // Smaller pages files are read with positional reads instead of memory mapping
+    private static final long MAP_MIN_SIZE = 1024 * 1024;
+
+    static class Page {
+        final long offset;
+        final int length;
+        final byte[] iv;
+        final int count;
+
+        // IDs of entries in this page. Known after read() or write()
+        final ArrayList<String> ids = new ArrayList<>();
+
+        Page(long offset, int length, byte[] iv, int count) {
+            this.offset = offset;
+            this.length = length;
+            this.iv = iv;
+            this.count = count;
+        }
+    }
+
+    private final File dir;
+    private final String vaultFileName;
+    private String fileName;
+    private ArrayList<Page> pages = new ArrayList<>();
+
+    // Result of write() that becomes current after commit()
+    private String pendingFileName;
+    private ArrayList<Page> pendingPages;
+    private long pendingFileLength;
+
+    /**
+     * Initializes empty storage (without pages file)
+     *
+     * @param vaultFile vault file this storage belongs to
+     */
+    public VaultPages(File vaultFile) {
+        dir = vaultFile.getAbsoluteFile().getParentFile();
+        vaultFileName = vaultFile.getName();
+    }
+
+    /**
+     * Initializes storage from page table
+     *
+     * @param vaultFile vault file this storage belongs to
+     * @param pagesJSON "pages" key of vault header
+     */
+    public VaultPages(File vaultFile, JSONObject pagesJSON) throws JSONException {
+        this(vaultFile);
+        fileName = pagesJSON.getString("file");
+        if (!isPagesFileName(fileName)) throw new JSONException("Wrong pages file name: " + fileName);
+        JSONArray table = pagesJSON.getJSONArray("table");
+        for (int i = 0; i < table.length(); i++) {
+            JSONArray page = table.getJSONArray(i);
+            pages.add(new Page(page.getLong(0), page.getInt(1), CryptoUtils.base64Decode(page.getString(2)), page.getInt(3)));
+        }
+    }
+
+    /**
+     * Reads and decrypts all pages in parallel (see ParallelEntryCrypto.decrypt() for entries formats)
+     *
+     * @param key              data key (32 bytes)
+     * @param progressListener listener (called on the calling thread with number of pages) or null
+     * @return decrypted entries in order of page table
+     */
+    public ArrayList<VaultEntry> read(byte[] key, ProgressListener progressListener) throws Exception {
+        ArrayList<VaultEntry> entries = new ArrayList<>();
+        if (fileName == null) return entries;
+
+        VaultEntry[][] pageEntries = new VaultEntry[pages.size()][];
+        SecretLoader secretLoader = (sec, secIv) -> CryptoUtils.decryptEntryRecord(sec, secIv, EntryDictionary.CURRENT, key);
+        try (RandomAccessFile file = new RandomAccessFile(new File(dir, fileName), "r")) {
+            FileChannel channel = file.getChannel();
+            ByteBuffer mapped = channel.size() >= MAP_MIN_SIZE ? channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()) : null;
+
+            // Each page is read and decrypted by one thread
+            ParallelEntryCrypto.forEach(pages.size(), 1, index -> {
+                Page page = pages.get(index);
+                byte[] pageEncrypted = mapped != null ? readPage(mapped, page) : readPage(channel, page);
+                EntryCodec codec = EntryCodec.get();
+                int length = codec.decrypt(pageEncrypted, 0, pageEncrypted.length, key, page.iv);
+                JSONArray entriesEncrypted = new JSONArray(new String(codec.buffer(), 0, length, StandardCharsets.UTF_8));
+                if (entriesEncrypted.length() != page.count) throw new RuntimeException("Wrong number of entries in page " + index);
+
+                VaultEntry[] decrypted = new VaultEntry[entriesEncrypted.length()];
+                page.ids.clear();
+                for (int i = 0; i < decrypted.length; i++) {
+                    decrypted[i] = ParallelEntryCrypto.decryptEntry(entriesEncrypted.getJSONObject(i), key, secretLoader);
+                    page.ids.add(decrypted[i].getId());
+                }
+                pageEntries[index] = decrypted;
+            }, progressListener);
+        }
+
+        for (VaultEntry[] decrypted : pageEntries)
+            for (VaultEntry entry : decrypted) entries.add(entry);
+        return entries;
+    }
+
+    /**
+     * Reads page from memory mapped pages file
+     */
+    private static byte[] readPage(ByteBuffer mapped, Page page) throws IOException {
+        if (page.offset + page.length > mapped.capacity()) throw new EOFException("Page is out of pages file");
+        byte[] pageEncrypted = new byte[page.length];
+        ByteBuffer buffer = mapped.duplicate();
+        buffer.position((int) page.offset);
+        buffer.get(pageEncrypted);
+        return pageEncrypted;
+    }
+
+    /**
+     * Reads page with positional reads (doesn't change position of channel, so it's safe to call from many threads)
+     */
+    static byte[] readPage(FileChannel channel, Page page) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(page.length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, page.offset + buffer.position()) < 0) throw new EOFException("Page is out of pages file");
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Appends pages with changed entries to the pages file (or writes all pages into a new pages file).
+     * Page table is changed only after commit()
+     *
+     * @param entries    all encrypted entries (see VaultEntry.getEncrypted())
+     * @param changedIds IDs of entries that were changed since the last write
+     * @param key        data key (32 bytes)
+     * @param rewrite    true to write all pages into a new pages file (ex. after key change or for compaction)
+     * @return new page table to save in vault header as "pages" key
+     */
+    public JSONObject write(List<VaultEntry> entries, Set<String> changedIds, byte[] key, boolean rewrite) throws Exception {
+        boolean newFile = rewrite || fileName == null;
+        String targetName = newFile ? newFileName() : fileName;
+
+        // Page of each entry: it's current page or page of the next (previous for the last ones) entry for new entries
+        int[] sources = new int[entries.size()];
+        HashMap<String, Integer> pageOf = new HashMap<>();
+        if (!newFile) {
+            for (int i = 0; i < pages.size(); i++)
+                for (String id : pages.get(i).ids) pageOf.put(id, i);
+        }
+        int source = -1;
+        for (int i = entries.size() - 1; i >= 0; i--) {
+            Integer page = pageOf.get(entries.get(i).getId());
+            if (page != null) source = page;
+            sources[i] = source;
+        }
+        for (int i = 1; i < sources.length; i++)
+            if (sources[i] == -1) sources[i] = sources[i - 1];
+
+        ArrayList<Page> newPages = new ArrayList<>();
+        HashSet<Integer> usedSources = new HashSet<>();
+        int pagesWritten = 0;
+        File target = new File(dir, targetName);
+        try (RandomAccessFile file = new RandomAccessFile(target, "rw")) {
+            FileChannel channel = file.getChannel();
+            long fileLength = channel.size();
+            long position = fileLength;
+            try {
+                int start = 0;
+                while (start < entries.size()) {
+                    // Entries of the same page (splitting too large pages)
+                    int end = start + 1;
+                    while (end < entries.size() && sources[end] == sources[start]) end++;
+                    if (end - start > 2 * PAGE_SIZE || sources[start] == -1) end = Math.min(end, start + PAGE_SIZE);
+                    List<VaultEntry> pageEntries = entries.subList(start, end);
+                    source = sources[start];
+                    start = end;
+
+                    // Keep unchanged page
+                    if (source != -1 && usedSources.add(source) && isUnchanged(pages.get(source), pageEntries, changedIds)) {
+                        newPages.add(pages.get(source));
+                        continue;
+                    }
+
+                    Page page = writePage(channel, position, pageEntries, key);
+                    newPages.add(page);
+                    position += page.length;
+                    pagesWritten++;
+                }
+                channel.force(false);
+            } catch (Exception e) {
+                rollback(target, newFile, fileLength);
+                throw e;
+            }
+            pendingFileLength = fileLength;
+        }
+
+        pendingFileName = targetName;
+        pendingPages = newPages;
+        Log.i(TAG, "Written " + pagesWritten + " of " + newPages.size() + " pages into " + targetName);
+        return toJSON(targetName, newPages);
+    }
+
+    /**
+     * @return true if page has the same entries in the same order and none of them was changed
+     */
+    private static boolean isUnchanged(Page page, List<VaultEntry> entries, Set<String> changedIds) {
+        if (page.ids.size() != entries.size()) return false;
+        for (int i = 0; i < entries.size(); i++) {
+            String id = entries.get(i).getId();
+            if (!id.equals(page.ids.get(i)) || changedIds.contains(id)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Compresses, encrypts and writes page at position
+     */
+    private static Page writePage(FileChannel channel, long position, List<VaultEntry> entries, byte[] key) throws Exception {
+        // Page content is JSON array of encrypted entries
+        ByteArrayOutputStream pageStream = new ByteArrayOutputStream();
+        Writer writer = new OutputStreamWriter(pageStream, StandardCharsets.UTF_8);
+        writer.write('[');
+        for (int i = 0; i < entries.size(); i++) {
+            JSONObject entryEncrypted = entries.get(i).getEncrypted();
+            if (entryEncrypted == null) throw new IllegalStateException("Entry " + entries.get(i).getId() + " is not encrypted");
+            if (i != 0) writer.write(',');
+            JSONFileUtils.writeJson(writer, entryEncrypted);
+        }
+        writer.write(']');
+        writer.flush();
+
+        byte[] iv = CryptoUtils.generateRandom(EntryCodec.GCM_IV_LENGTH);
+        EntryCodec codec = EntryCodec.get();
+        int length = codec.encrypt(pageStream.toByteArray(), pageStream.size(), key, iv);
+        ByteBuffer buffer = ByteBuffer.wrap(codec.buffer(), 0, length);
+        while (buffer.hasRemaining()) channel.write(buffer, position + buffer.position());
+
+        Page page = new Page(position, length, iv, entries.size());
+        for (VaultEntry entry : entries) page.ids.add(entry.getId());
+        return page;
+    }
+
+    /**
+     * Makes result of the last write() current. Call after vault header with the new page table was written.
+     * Previous pages files of this vault are deleted
+     */
+    public void commit() {
+        if (pendingPages == null) return;
+        fileName = pendingFileName;
+        pages = pendingPages;
+        pendingFileName = null;
+        pendingPages = null;
+        deleteFiles(fileName);
+    }
+
+    /**
+     * Discards result of the last write() (ex. if vault header was not written)
+     */
+    public void rollback() {
+        if (pendingPages == null) return;
+        rollback(new File(dir, pendingFileName), !pendingFileName.equals(fileName), pendingFileLength);
+        pendingFileName = null;
+        pendingPages = null;
+    }
+
+    /**
+     * Deletes new pages file or truncates appended pages
+     */
+    private static void rollback(File target, boolean newFile, long fileLength) {
+        if (newFile) {
+            if (!target.delete()) Log.w(TAG, "Unable to delete " + target.getName());
+            return;
+        }
+        try (RandomAccessFile file = new RandomAccessFile(target, "rw")) {
+            file.setLength(fileLength);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to truncate " + target.getName(), e);
+        }
+    }
+
+    /**
+     * @return true if most of the pages file is not referenced by page table or pages are too fragmented
+     */
+    public boolean needsCompaction() {
+        if (fileName == null) return false;
+        long live = 0;
+        int entries = 0;
+        for (Page page : pages) {
+            live += page.length;
+            entries += page.count;
+        }
+        long size = new File(dir, fileName).length();
+        return (size >= COMPACT_MIN_SIZE && live < size * COMPACT_LIVE_RATIO) || pages.size() > 2 * (entries / PAGE_SIZE + 1);
+    }
+
+    /**
+     * Deletes all pages files of the vault (ex. after switching vault back to entries inside vault file)
+     */
+    public void delete() {
+        deleteFiles(null);
+        fileName = null;
+        pages = new ArrayList<>();
+    }
+
+    /**
+     * Deletes pages files of this vault except keepFileName
+     */
+    private void deleteFiles(String keepFileName) {
+        File[] files = dir.listFiles((file, name) -> isPagesFileName(name) && !name.equals(keepFileName));
+        if (files == null) return;
+        for (File file : files)
+            if (!file.delete()) Log.w(TAG, "Unable to delete " + file.getName());
+    }
+
+    /**
+     * @return true if name is a name of pages file of this vault
+     */
+    private boolean isPagesFileName(String name) {
+        return Pattern.matches(Pattern.quote(vaultFileName) + "\\.[0-9a-f]{16}" + Pattern.quote(SUFFIX), name);
+    }
+
+    /**
+     * @return random name of a new pages file
+     */
+    private String newFileName() {
+        StringBuilder name = new StringBuilder(vaultFileName).append('.');
+        for (byte b : CryptoUtils.generateRandom(8)) name.append(String.format("%02x", b & 0xFF));
+        return name.append(SUFFIX).toString();
+    }
+
+    /**
+     * @return page table as JSON
+     */
+    private static JSONObject toJSON(String fileName, List<Page> pages) throws JSONException {
+        JSONArray table = new JSONArray();
+        for (Page page : pages) {
+            JSONArray pageJSON = new JSONArray();
+            pageJSON.put(page.offset);
+            pageJSON.put(page.length);
+            pageJSON.put(CryptoUtils.base64Encode(page.iv));
+            pageJSON.put(page.count);
+            table.put(pageJSON);
+        }
+        JSONObject pagesJSON = new JSONObject();
+        pagesJSON.put("file", fileName);
+        pagesJSON.put("table", table);
+        return pagesJSON;
+    }
+
+    /**
+     * @return number of pages in page table
+     */
+    public int getPagesCount() {
+        return pages.size();
+    }
+
+    /**
+     * @return current pages file or null if there are no pages yet
+     */
+    public File getFile() {
+        return fileName == null ? null : new File(dir, fileName);
+    }
+}
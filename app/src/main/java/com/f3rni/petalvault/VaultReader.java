@@ -0,0 +1,251 @@
+/**
+ * This file is part of the PetalVault-Android password manager distribution.
+ * See <https://github.com/F33RNI/PetalVault-Android>.
+ * Copyright (C) 2024 Fern Lane
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, version 3.
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.f3rni.petalvault;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Streaming reader of vault files. Reads top-level keys and entries one value at a time,
+ * so memory use is proportional to the largest entry instead of the whole file.
+ * Each value is parsed with org.json, so it's JSON semantics are the same as of JSONObject
+ */
+public class VaultReader implements Closeable {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final String ENTRIES_KEY = "entries";
+
+    private final Reader reader;
+    private final StringBuilder value = new StringBuilder();
+    private int pushedBack = -2;
+    private boolean objectStarted, arrayStarted, inEntries, entriesEnded;
+
+    /**
+     * Header of vault: all top-level keys except entries
+     */
+    public static class Header {
+        public final JSONObject vault;
+
+        // Number of entries or -1 if vault has no "entries" key
+        public final int entriesCount;
+
+        Header(JSONObject vault, int entriesCount) {
+            this.vault = vault;
+            this.entriesCount = entriesCount;
+        }
+    }
+
+    public VaultReader(File file) throws IOException {
+        this(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+    }
+
+    public VaultReader(Reader reader) {
+        this.reader = new BufferedReader(reader, BUFFER_SIZE);
+    }
+
+    /**
+     * Reads all top-level keys except entries. Entries are skipped (and counted) without parsing
+     *
+     * @return header of vault
+     */
+    public Header readHeader() throws IOException, JSONException {
+        JSONObject vault = new JSONObject();
+        int entriesCount = -1;
+        String key;
+        while ((key = nextKey()) != null) {
+            if (key.equals(ENTRIES_KEY)) {
+                entriesCount = 0;
+                beginArray();
+                while (nextArrayValue(false)) entriesCount++;
+            } else {
+                readValue(nextNonWhitespace(), true);
+                vault.put(key, new JSONTokener(value.toString()).nextValue());
+            }
+        }
+        return new Header(vault, entriesCount);
+    }
+
+    /**
+     * Skips top-level keys until entries
+     *
+     * @return false if vault has no "entries" key
+     */
+    public boolean beginEntries() throws IOException, JSONException {
+        String key;
+        while ((key = nextKey()) != null) {
+            if (key.equals(ENTRIES_KEY)) {
+                beginArray();
+                inEntries = true;
+                return true;
+            }
+            readValue(nextNonWhitespace(), false);
+        }
+        return false;
+    }
+
+    /**
+     * @return next encrypted entry or null if there are no more entries. Call beginEntries() first
+     */
+    public JSONObject nextEntry() throws IOException, JSONException {
+        if (!inEntries) throw new IllegalStateException("beginEntries() was not called");
+        if (entriesEnded || !nextArrayValue(true)) {
+            entriesEnded = true;
+            return null;
+        }
+        return new JSONObject(value.toString());
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    /**
+     * @return next top-level key (positioned before it's value) or null at the end of vault object
+     */
+    private String nextKey() throws IOException, JSONException {
+        int c = nextNonWhitespace();
+
+        // Start of vault object
+        if (!objectStarted) {
+            if (c != '{') throw new JSONException("Vault must be a JSON object");
+            objectStarted = true;
+            c = nextNonWhitespace();
+            if (c == '}') return null;
+        } else {
+            if (c == '}') return null;
+            if (c != ',') throw new JSONException("Expected ',' or '}', got " + describe(c));
+            c = nextNonWhitespace();
+        }
+
+        if (c != '"') throw new JSONException("Expected key, got " + describe(c));
+        readValue(c, true);
+        String key = (String) new JSONTokener(value.toString()).nextValue();
+        if (nextNonWhitespace() != ':') throw new JSONException("Expected ':' after " + key);
+        return key;
+    }
+
+    private void beginArray() throws IOException, JSONException {
+        int c = nextNonWhitespace();
+        if (c != '[') throw new JSONException("Expected array, got " + describe(c));
+        arrayStarted = false;
+    }
+
+    /**
+     * Reads next value of the current array
+     *
+     * @param capture true to keep value text in value buffer
+     * @return false at the end of array
+     */
+    private boolean nextArrayValue(boolean capture) throws IOException, JSONException {
+        int c = nextNonWhitespace();
+        if (c == ']') return false;
+        if (arrayStarted) {
+            if (c != ',') throw new JSONException("Expected ',' or ']', got " + describe(c));
+            c = nextNonWhitespace();
+        }
+        arrayStarted = true;
+        readValue(c, capture);
+        return true;
+    }
+
+    /**
+     * Reads text of value starting with c
+     *
+     * @param capture true to keep value text in value buffer, false to skip it
+     */
+    private void readValue(int c, boolean capture) throws IOException, JSONException {
+        value.setLength(0);
+        if (c == '"') {
+            readString(capture);
+            return;
+        }
+
+        if (c == '{' || c == '[') {
+            if (capture) value.append((char) c);
+            int depth = 1;
+            while (depth > 0) {
+                c = nextChar();
+                if (c == '"') {
+                    readString(capture);
+                    continue;
+                }
+                if (c == '{' || c == '[') depth++;
+                else if (c == '}' || c == ']') depth--;
+                if (capture) value.append((char) c);
+            }
+            return;
+        }
+
+        // Number, true, false, null
+        if (c == ',' || c == '}' || c == ']' || c == ':') throw new JSONException("Expected value, got " + describe(c));
+        while (true) {
+            if (capture) value.append((char) c);
+            c = reader.read();
+            if (c == -1 || c == ',' || c == '}' || c == ']' || Character.isWhitespace(c)) {
+                pushedBack = c;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Reads string after opening quote (with quotes and escapes)
+     */
+    private void readString(boolean capture) throws IOException, JSONException {
+        if (capture) value.append('"');
+        while (true) {
+            int c = nextChar();
+            if (capture) value.append((char) c);
+            if (c == '"') return;
+            if (c == '\\') {
+                c = nextChar();
+                if (capture) value.append((char) c);
+            }
+        }
+    }
+
+    private int nextNonWhitespace() throws IOException, JSONException {
+        int c;
+        do c = nextChar(); while (Character.isWhitespace(c));
+        return c;
+    }
+
+    /**
+     * @return next char
+     * @throws JSONException at the end of file
+     */
+    private int nextChar() throws IOException, JSONException {
+        int c;
+        if (pushedBack != -2) {
+            c = pushedBack;
+            pushedBack = -2;
+        } else c = reader.read();
+        if (c == -1) throw new JSONException("Unexpected end of vault file");
+        return c;
+    }
+
+    private static String describe(int c) {
+        return "'" + (char) c + "'";
+    }
+}
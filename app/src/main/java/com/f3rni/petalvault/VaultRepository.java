@@ -0,0 +1,155 @@
+/**
+ * This file is part of the PetalVault-Android password manager distribution.
+ * See <https://github.com/F33RNI/PetalVault-Android>.
+ * Copyright (C) 2024 Fern Lane
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, version 3.
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.f3rni.petalvault;
+
+import android.util.Log;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Future;
+
+/**
+ * Process-wide owner of config, list of vaults and at most one unlocked vault session,
+ * so activities share them instead of re-reading config and re-decrypting the vault.
+ * Must be used from the UI thread
+ */
+public class VaultRepository {
+    private static final String TAG = VaultRepository.class.getName();
+
+    public static final String CONFIG_FILENAME = "config.json";
+    public static final String VAULTS_DIR = "vaults";
+    public static final String DATA_VERSION = "3.0.0";
+
+    private final ConfigManager configManager;
+    private final VaultUtils vaultUtils;
+    private final VaultEngine vaultEngine;
+    private boolean vaultsListed;
+
+    // Relative path of unlocked vault or null
+    private String sessionPath;
+
+    /**
+     * Initializes VaultRepository instance. Files are read lazily
+     *
+     * @param filesDir         app's internal storage directory
+     * @param mnemonicWordlist BIP-39 wordlist
+     */
+    VaultRepository(File filesDir, String[] mnemonicWordlist) {
+        configManager = new ConfigManager(new File(filesDir, CONFIG_FILENAME), DATA_VERSION);
+        vaultUtils = new VaultUtils(new File(filesDir, VAULTS_DIR), configManager, mnemonicWordlist);
+        vaultEngine = new VaultEngine(vaultUtils);
+    }
+
+    public ConfigManager getConfigManager() {
+        return configManager;
+    }
+
+    /**
+     * @return VaultUtils instance. It must not be used while any job of getVaultEngine() is running
+     */
+    public VaultUtils getVaultUtils() {
+        return vaultUtils;
+    }
+
+    public VaultEngine getVaultEngine() {
+        return vaultEngine;
+    }
+
+    /**
+     * Returns available vaults. Vaults directory is scanned only once, after that the list is kept
+     * up to date by VaultUtils itself (create / rename / delete)
+     *
+     * @return list of vault names and relative paths
+     */
+    public List<VaultUtils.VaultNamePath> getVaultNamePaths() {
+        if (!vaultsListed) refreshVaults();
+        return vaultUtils.getVaultNamePaths();
+    }
+
+    /**
+     * Rescans vaults directory
+     */
+    public void refreshVaults() {
+        vaultUtils.refreshAvailable();
+        vaultsListed = true;
+    }
+
+    /**
+     * Creates a new vault in background (see VaultEngine.create()). Created vault becomes current session
+     */
+    public Future<Boolean> create(String name, String[] mnemonicWords, String password, VaultEngine.Callback<Boolean> callback) {
+        sessionPath = null;
+        return vaultEngine.create(name, mnemonicWords, password, new VaultEngine.Callback<Boolean>() {
+            @Override
+            public void onResult(Boolean created) {
+                if (created) {
+                    VaultUtils.VaultNamePath vaultNamePath = vaultUtils.getNamePath(name, null);
+                    if (vaultNamePath != null) sessionPath = vaultNamePath.relPath;
+                }
+                callback.onResult(created);
+            }
+
+            @Override
+            public void onError(Exception e) {
+                callback.onError(e);
+            }
+        });
+    }
+
+    /**
+     * Opens vault session. If the same vault is already unlocked with the same mnemonic (ex. right after creating it
+     * or after activity was recreated) it's reused and callback is called after jobs that are still running on it
+     * (ex. sync of the previous activity). Otherwise, current session is closed and vault is decrypted in background
+     * (see VaultEngine.open())
+     *
+     * @param owner            owner of the jobs to cancel them with VaultEngine.cancelJobs() or closeSession()
+     * @param relPath          path to .json, relative to vaults directory
+     * @param mnemonicWords    mnemonic phrase of the vault
+     * @param progressListener listener to call on the UI thread or null
+     * @param callback         callback to call on the UI thread
+     */
+    public void openSession(Object owner, String relPath, String[] mnemonicWords, ProgressListener progressListener, VaultEngine.Callback<Boolean> callback) {
+        if (relPath.equals(sessionPath) && Arrays.equals(mnemonicWords, vaultUtils.getMnemonic().getMnemonicArray())) {
+            Log.i(TAG, "Reusing unlocked vault " + relPath);
+            vaultEngine.whenIdle(owner, callback);
+            return;
+        }
+
+        sessionPath = null;
+        vaultEngine.open(owner, relPath, mnemonicWords, progressListener, new VaultEngine.Callback<Boolean>() {
+            @Override
+            public void onResult(Boolean opened) {
+                if (opened) sessionPath = relPath;
+                callback.onResult(opened);
+            }
+
+            @Override
+            public void onError(Exception e) {
+                callback.onError(e);
+            }
+        });
+    }
+
+    /**
+     * Cancels jobs of owner that can still be cancelled, writes requested save and locks vault after the rest
+     *
+     * @param owner owner that was passed to openSession()
+     */
+    public void closeSession(Object owner) {
+        sessionPath = null;
+        vaultEngine.cancelJobs(owner);
+        vaultEngine.close();
+    }
+}
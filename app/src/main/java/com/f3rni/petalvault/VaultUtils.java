@@ -20,24 +20,72 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.CancellationException;
 
 public class VaultUtils {
     private static final String TAG = VaultUtils.class.getName();
 
     private static final String NOT_SAFE_FILENAME_REGEX = "[^a-zA-Z0-9._\\- ]";
 
+    // Sync format. v1: sync key is derived with scrypt from sync salt. v2: with HKDF from sync root key and sync salt
+    public static final int SYNC_VERSION = 2;
+    private static final String SUBKEY_CONTEXT_SYNC = "PetalVault sync";
+    private static final String SUBKEY_CONTEXT_DEVICE = "PetalVault device";
+
+    // Number of entries read from file before decrypting them
+    private static final int DECRYPT_BATCH_SIZE = 1024;
+
+    // Config key to override saving of changed entries into append-only log (see VaultLog) instead of rewriting
+    // vault file. Enabled by default
+    public static final String CONFIG_KEY_LOG = "vault_log";
+
+    // Config key to override storing of entries in encrypted pages (see VaultPages), so only pages with changed
+    // entries are written. By default, vault is paged when it has at least PAGES_MIN_ENTRIES entries
+    // and stays paged until it has less than half of that
+    public static final String CONFIG_KEY_PAGES = "vault_pages";
+    static final int PAGES_MIN_ENTRIES = 10000;
+
+    // Vault file is rewritten (compacted) when at least LOG_COMPACT_RATIO of all records in it and in it's log
+    // are replaced or deleted entries, and log has at least LOG_COMPACT_MIN_RECORDS records
+    private static final float LOG_COMPACT_RATIO = 0.5f;
+    private static final int LOG_COMPACT_MIN_RECORDS = 32;
+
     private final File vaultsDir;
     private final ConfigManager configManager;
 
     private JSONObject vault = new JSONObject();
     private final ArrayList<VaultNamePath> vaultNamePaths = new ArrayList<>();
     private final Mnemonic mnemonic;
-    private final ArrayList<VaultEntry> vaultEntries = new ArrayList<>();
+    private final EntryStore vaultEntries = new EntryStore();
+    private final List<VaultEntry> vaultEntriesView = Collections.unmodifiableList(vaultEntries);
+
+    // Plaintext index of sites and usernames. Exists only while vault is opened
+    private final EntrySearchIndex searchIndex = new EntrySearchIndex();
     private CryptoUtils.MasterKey masterKey;
+    private byte[] dataKey;
+    private ProgressListener progressListener;
+    private VaultManifest manifest;
+
+    // Pages (for paged vault) and log of the opened vault file, it's path and the state of vault that is written:
+    // header, entry IDs (in order) and number of entries in vault file itself
+    private VaultPages vaultPages;
+    private VaultLog vaultLog;
+    private String writtenPath;
+    private String writtenHeader;
+    private final ArrayList<String> writtenIds = new ArrayList<>();
+    private int writtenSnapshotSize;
+
+    // Sync root keys by root salt and KDF parameters. Derived once per session
+    private final HashMap<String, byte[]> syncRootKeys = new HashMap<>();
 
     VaultUtils(File vaultsDir, ConfigManager configManager, String[] wordlist) {
         this.vaultsDir = vaultsDir;
@@ -47,34 +95,56 @@ public class VaultUtils {
     }
 
     /**
-     * Parses names and paths of available vaults and saves them into vaultNamePaths
+     * Parses names and paths of available vaults and saves them into vaultNamePaths.
+     * Vault files are read only if they were changed since they were cached in manifest
      */
     public void refreshAvailable() {
         vaultNamePaths.clear();
 
-        JSONArray vaults = (JSONArray) configManager.get("vaults", new JSONArray());
+        JSONArray vaults = configManager.getJSONArray("vaults");
         if (vaults.length() == 0) {
             Log.w(TAG, "No vaults available");
             return;
         }
 
+        VaultManifest manifest = getManifest();
+        ArrayList<String> vaultPaths = new ArrayList<>();
         for (int i = 0; i < vaults.length(); i++) {
             try {
                 String vaultPath = vaults.getString(i);
-
-                // Read vault
-                JSONObject vaultTemp = read(vaultPath);
+                vaultPaths.add(vaultPath);
+                File vaultFile = new File(vaultsDir, vaultPath);
+
+                // Read header of new or changed vault and cache it
+                JSONObject record = manifest.get(vaultPath, vaultFile);
+                if (record == null) {
+                    Log.i(TAG, "Reading header of vault " + vaultPath);
+                    try (VaultReader reader = new VaultReader(vaultFile)) {
+                        VaultReader.Header header = reader.readHeader();
+                        manifest.put(vaultPath, vaultFile, header.vault, header.entriesCount);
+                    } catch (IOException | JSONException e) {
+                        Log.w(TAG, "Unable to read vault " + vaultPath, e);
+                        continue;
+                    }
+                    record = manifest.get(vaultPath, vaultFile);
+                    if (record == null) continue;
+                }
 
                 // Check
-                if (vaultTemp == null) continue;
+                if (!isSupported(record.has("name"), record.optBoolean("salt"), record.optString("version", null)))
+                    continue;
 
                 // Extract name and add to the array list
-                vaultNamePaths.add(new VaultNamePath(vaultTemp.getString("name"), vaultPath));
+                vaultNamePaths.add(new VaultNamePath(record.getString("name"), vaultPath));
             } catch (JSONException e) {
                 Log.w(TAG, "Unable to parse vault", e);
             }
         }
 
+        // Forget removed vaults
+        manifest.retain(vaultPaths);
+        if (vaultsDir.exists()) manifest.save();
+
         Log.i(TAG, "Available vaults: " + vaultNamePaths.size());
     }
 
@@ -88,16 +158,17 @@ public class VaultUtils {
 
         // Set name and version
         vault.put("name", name);
-        vault.put("version", configManager.get("version", "2.0.0"));
+        vault.put("version", configManager.getString("version", "3.0.0"));
 
         // Encrypt mnemonic if needed
         if (password != null && !password.isEmpty()) {
-            CryptoUtils.MnemonicEncrypted mnemonicEncrypted = CryptoUtils.encryptMnemonic(mnemonicWords, password);
+            CryptoUtils.MnemonicEncrypted mnemonicEncrypted = CryptoUtils.encryptMnemonic(mnemonicWords, password, KdfCalibrator.get(configManager));
             if (mnemonicEncrypted == null) throw new RuntimeException("Mnemonic is null");
 
             vault.put("mnemonic_encrypted", CryptoUtils.base64Encode(mnemonicEncrypted.mnemonicEncrypted));
             vault.put("mnemonic_salt_1", CryptoUtils.base64Encode(mnemonicEncrypted.salt1));
             vault.put("mnemonic_salt_2", CryptoUtils.base64Encode(mnemonicEncrypted.salt2));
+            vault.put("mnemonic_kdf", mnemonicEncrypted.kdfParams.toJSON());
         }
 
         // Save it
@@ -105,32 +176,69 @@ public class VaultUtils {
     }
 
     /**
-     * Reads vault from relPath and checks for required keys
+     * Reads vault (without entries) from relPath and checks for required keys
      *
      * @param relPath path to .json, relative to vaultsDir
-     * @return vault as JSONObject or null in case of error
+     * @return vault as JSONObject (without "entries" key) or null in case of error
      */
     public JSONObject read(String relPath) {
+        VaultReader.Header header = readHeader(relPath);
+        return header == null ? null : header.vault;
+    }
+
+    /**
+     * Streams vault header (all keys except entries) from relPath and checks for required keys
+     *
+     * @param relPath path to .json, relative to vaultsDir
+     * @return vault header or null in case of error
+     */
+    private VaultReader.Header readHeader(String relPath) {
         Log.i(TAG, "Reading vault from: " + relPath);
-        try {
+        try (VaultReader reader = new VaultReader(new File(vaultsDir, relPath))) {
             // Read vault
-            JSONObject vaultTemp = JSONFileUtils.readJsonFromFile(new File(vaultsDir, relPath));
-
-            // Name and master salt are required
-            if (!vaultTemp.has("name") || !vaultTemp.has("master_salt")) return null;
-
-            // Check version
-            short versionMajorVault = Short.parseShort(vaultTemp.getString("version").split("\\.")[0].trim());
-            short versionMajorApp = Short.parseShort(((String) configManager.get("version", "2.0.0")).split("\\.")[0].trim());
-            if (!vaultTemp.has("version") || versionMajorVault < 2 || versionMajorVault > versionMajorApp) return null;
+            VaultReader.Header header = reader.readHeader();
+            JSONObject vaultTemp = header.vault;
+            if (!isSupported(vaultTemp.has("name"), vaultTemp.has("master_salt"), vaultTemp.optString("version", null)))
+                return null;
 
-            return vaultTemp;
+            return header;
         } catch (Exception e) {
             Log.e(TAG, "Error opening vault", e);
         }
         return null;
     }
 
+    /**
+     * Checks for required keys and version of vault
+     *
+     * @param hasName true if vault has name
+     * @param hasSalt true if vault has master salt
+     * @param version vault version or null
+     * @return true if vault can be opened by this app
+     */
+    private boolean isSupported(boolean hasName, boolean hasSalt, String version) {
+        // Name and master salt are required
+        if (!hasName || !hasSalt || version == null) return false;
+
+        // Check version
+        try {
+            short versionMajorVault = Short.parseShort(version.split("\\.")[0].trim());
+            short versionMajorApp = Short.parseShort(configManager.getString("version", "3.0.0").split("\\.")[0].trim());
+            return versionMajorVault >= 2 && versionMajorVault <= versionMajorApp;
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "Wrong vault version: " + version, e);
+        }
+        return false;
+    }
+
+    /**
+     * @return manifest of vaultsDir (loaded on first call)
+     */
+    private VaultManifest getManifest() {
+        if (manifest == null) manifest = new VaultManifest(vaultsDir);
+        return manifest;
+    }
+
     /**
      * Reads and decrypts vault
      *
@@ -142,40 +250,77 @@ public class VaultUtils {
         // Close current vault
         close();
 
-        // Try to read
-        vault = read(relPath);
-        if (vault == null) {
-            vault = new JSONObject();
+        // Try to read header
+        VaultReader.Header header = readHeader(relPath);
+        if (header == null) {
             close();
             return false;
         }
+        vault = header.vault;
 
         try {
             // Build mnemonic
             mnemonic.fromMnemonic(mnemonicWords);
 
-            // Build master key
-            masterKey = CryptoUtils.entropyToMasterKey(mnemonic.getEntropy(), CryptoUtils.base64Decode(vault.getString("master_salt")));
-
-            // Decrypt entries
-            if (vault.has("entries")) {
-                JSONArray entries = vault.getJSONArray("entries");
-                for (int i = 0; i < entries.length(); i++) {
-                    // Extract and decrypt entry
-                    JSONObject entryEncrypted = entries.getJSONObject(i);
-                    JSONObject entryDecrypted = CryptoUtils.decryptEntry(entryEncrypted, masterKey.masterKey);
-                    if (entryDecrypted == null) throw new RuntimeException("Entry is null");
+            // Build master key (the only scrypt run until the next key rotation)
+            CryptoUtils.KdfParams kdfParams = CryptoUtils.KdfParams.fromJSON(vault.optJSONObject("master_kdf"));
+            masterKey = CryptoUtils.entropyToMasterKey(mnemonic.getEntropy(), CryptoUtils.base64Decode(vault.getString("master_salt")), kdfParams);
 
-                    // Add to array list
-                    vaultEntries.add(new VaultEntry(entryDecrypted));
-                }
+            // v3: unwrap data key. v2: entries are encrypted with master key itself
+            boolean migrate = !vault.has("data_key");
+            if (migrate) dataKey = masterKey.masterKey;
+            else {
+                CryptoUtils.KeyEncrypted dataKeyEncrypted = new CryptoUtils.KeyEncrypted(CryptoUtils.base64Decode(vault.getString("data_key")), CryptoUtils.base64Decode(vault.getString("data_key_iv")));
+                dataKey = CryptoUtils.unwrapKey(dataKeyEncrypted, masterKey.masterKey);
+            }
 
-                Log.i(TAG, "Decrypted " + entries.length() + " entries");
+            // Paged vault -> read and decrypt pages in parallel
+            File vaultFile = new File(vaultsDir, relPath);
+            if (vault.has("pages")) {
+                vaultPages = new VaultPages(vaultFile, vault.getJSONObject("pages"));
+                vault.remove("pages");
+                vaultEntries.addAll(vaultPages.read(dataKey, this::reportProgress));
+            }
 
-                // Seems OK
-                return true;
+            // Stream entries from file and decrypt them by batches (in parallel for large vaults)
+            else if (header.entriesCount >= 0) {
+                try (VaultReader reader = new VaultReader(vaultFile)) {
+                    if (!reader.beginEntries()) throw new RuntimeException("No entries");
+                    while (true) {
+                        JSONArray batch = new JSONArray();
+                        JSONObject entryEncrypted;
+                        while (batch.length() < DECRYPT_BATCH_SIZE && (entryEncrypted = reader.nextEntry()) != null)
+                            batch.put(entryEncrypted);
+                        if (batch.length() == 0) break;
+
+                        int decrypted = vaultEntries.size();
+                        vaultEntries.addAll(ParallelEntryCrypto.decrypt(batch, dataKey, (done, total) -> reportProgress(decrypted + done, header.entriesCount)));
+                    }
+                }
+            } else throw new RuntimeException("No entries");
+
+            Log.i(TAG, "Decrypted " + vaultEntries.size() + " entries");
+
+            // Apply changes from the log of this vault file
+            int snapshotSize = vaultEntries.size();
+            VaultLog log = new VaultLog(vaultFile);
+            if (vault.has("log_id")) replayLog(log, vault.getString("log_id"));
+            vaultLog = log;
+            writtenPath = relPath;
+            setWritten(snapshotSize);
+
+            // Index sites and usernames for search
+            searchIndex.rebuild(vaultEntries);
+
+            // Migrate v2 vault -> generate data key, wrap it with existing master key and re-encrypt entries
+            if (migrate) {
+                Log.i(TAG, "Migrating vault to the data key format");
+                dataKey = CryptoUtils.generateRandom(32);
+                if (!save(relPath)) throw new RuntimeException("Unable to migrate vault");
             }
 
+            // Seems OK
+            return true;
         } catch (Exception e) {
             Log.e(TAG, "Error reading vault", e);
             close();
@@ -184,13 +329,48 @@ public class VaultUtils {
     }
 
     /**
-     * Saves current vault
+     * Applies changes from the log of vault file to the decrypted entries. Replaced entries keep their positions,
+     * new entries are added to the top
      *
-     * @param relPath existing path or null to create a new one
-     * @return true if saved successfully
+     * @param log   log of the opened vault file
+     * @param logId "log_id" of the opened vault file
      */
-    public boolean save(String relPath) throws JSONException {
-        return save(relPath, true);
+    private void replayLog(VaultLog log, String logId) throws Exception {
+        ArrayList<VaultLog.Record> records = log.read(logId);
+        if (records.isEmpty()) return;
+
+        // Decrypt all put records at once
+        JSONArray puts = new JSONArray();
+        for (VaultLog.Record record : records)
+            if (record.op == VaultLog.OP_PUT) puts.put(record.data);
+        ArrayList<VaultEntry> putEntries = ParallelEntryCrypto.decrypt(puts, dataKey, null);
+
+        int putIndex = 0;
+        for (VaultLog.Record record : records) {
+            if (record.op == VaultLog.OP_PUT) {
+                VaultEntry entry = putEntries.get(putIndex++);
+                if (!vaultEntries.replace(entry)) vaultEntries.addFirst(entry);
+            } else {
+                JSONObject index = CryptoUtils.decryptEntryIndex(record.data, dataKey);
+                if (index == null) throw new RuntimeException("Unable to decrypt deleted entry id");
+                vaultEntries.removeById(index.getString("id"));
+            }
+        }
+
+        Log.i(TAG, "Applied " + records.size() + " records from " + log.getFile().getName());
+    }
+
+    /**
+     * Remembers current header and entry IDs as written to the vault file and it's log
+     *
+     * @param snapshotSize number of entries in the vault file itself
+     */
+    private void setWritten(int snapshotSize) {
+        writtenHeader = vault.toString();
+        writtenIds.clear();
+        for (VaultEntry entry : vaultEntries)
+            writtenIds.add(entry.getId());
+        writtenSnapshotSize = snapshotSize;
     }
 
     /**
@@ -201,6 +381,18 @@ public class VaultUtils {
      * @return actions, sync salt
      */
     public SyncData syncTo(String deviceName, String vaultPath) throws JSONException, RuntimeException {
+        return syncTo(deviceName, vaultPath, null);
+    }
+
+    /**
+     * Exports / syncs data to device
+     *
+     * @param deviceName    name of existing device / new device or null to just export
+     * @param vaultPath     relative path of current vault (for saving)
+     * @param beforeChanges called before vault is changed (may throw CancellationException to stop) or null
+     * @return actions, sync salt
+     */
+    public SyncData syncTo(String deviceName, String vaultPath, Runnable beforeChanges) throws JSONException, RuntimeException {
         // Ignore if no vault was opened or no entries
         if (!vault.has("name") || vaultPath == null || vaultPath.isEmpty() || vaultEntries.isEmpty()) return null;
 
@@ -214,75 +406,73 @@ public class VaultUtils {
         if (deviceName != null && !deviceName.isEmpty()) {
             devices = getDevices();
 
-            // New device
-            if (!devices.has(deviceName)) devices.put(deviceName, new JSONObject());
+            // Existing or new device (it's added to devices only after sync data is built)
+            deviceEntriesAndSalt = devices.has(deviceName) ? devices.getJSONObject(deviceName) : new JSONObject();
 
             // Extract entries and salt
-            deviceEntriesAndSalt = devices.getJSONObject(deviceName);
             if (deviceEntriesAndSalt.has("entries")) deviceEntries = deviceEntriesAndSalt.getJSONArray("entries");
             if (deviceEntriesAndSalt.has("salt"))
                 deviceSalt = CryptoUtils.base64Decode(deviceEntriesAndSalt.getString("salt"));
         }
 
-        // Build device key from it's salt and main mnemonic
-        if (deviceSalt != null)
-            deviceMasterKey = CryptoUtils.entropyToMasterKey(mnemonic.getEntropy(), deviceSalt).masterKey;
+        // Build device key from it's salt and sync root key (v2) or main mnemonic (v1)
+        if (deviceSalt != null) {
+            if (deviceEntriesAndSalt.optInt("v", 1) >= 2) {
+                byte[] deviceRootKey = getSyncRootKey(deviceEntriesAndSalt.getString("root_salt"), CryptoUtils.KdfParams.syncRootFromJSON(deviceEntriesAndSalt.getJSONObject("kdf")));
+                deviceMasterKey = CryptoUtils.deriveSubkey(deviceRootKey, deviceSalt, SUBKEY_CONTEXT_DEVICE);
+            } else deviceMasterKey = CryptoUtils.entropyToMasterKey(mnemonic.getEntropy(), deviceSalt).masterKey;
+        }
 
         // Decrypt all device entries
         ArrayList<VaultEntry> deviceEntriesDecrypted = new ArrayList<>();
         if (deviceEntries != null && deviceMasterKey != null) {
-            for (int i = 0; i < deviceEntries.length(); i++) {
-                JSONObject deviceEntry = deviceEntries.getJSONObject(i);
-                JSONObject deviceEntryDecryptedJSON = CryptoUtils.decryptEntry(deviceEntry, deviceMasterKey);
-                if (deviceEntryDecryptedJSON == null) throw new RuntimeException("Unable to decrypt device entry");
-                VaultEntry deviceEntryDecrypted = new VaultEntry(deviceEntryDecryptedJSON);
-                deviceEntriesDecrypted.add(deviceEntryDecrypted);
+            try {
+                deviceEntriesDecrypted = ParallelEntryCrypto.decrypt(deviceEntries, deviceMasterKey, this::reportProgress);
+            } catch (CancellationException | JSONException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new RuntimeException("Unable to decrypt device entry", e);
             }
         }
 
-        // Build array lists of IDs
-        ArrayList<String> entryIds = new ArrayList<>();
-        for (VaultEntry entry : vaultEntries)
-            entryIds.add(entry.getId());
-        ArrayList<String> deviceEntryIds = new ArrayList<>();
+        // Index device entries by IDs
+        HashMap<String, VaultEntry> deviceEntriesById = new HashMap<>();
         for (VaultEntry entry : deviceEntriesDecrypted)
-            deviceEntryIds.add(entry.getId());
+            deviceEntriesById.put(entry.getId(), entry);
 
         ArrayList<String> syncActions = new ArrayList<>();
 
         // Build array of sync actions starting from delete entries
-        for (String id : deviceEntryIds) {
-            if (!entryIds.contains(id)) {
+        for (VaultEntry deviceEntry : deviceEntriesDecrypted) {
+            if (!vaultEntries.containsId(deviceEntry.getId())) {
                 JSONObject action = new JSONObject();
                 action.put("act", "delete");
-                action.put("id", id);
+                action.put("id", deviceEntry.getId());
                 syncActions.add(action.toString().replace("\\/", "/"));
             }
         }
 
-        // Generate master sync key from vault's mnemonic
-        CryptoUtils.MasterKey syncKey = CryptoUtils.entropyToMasterKey(mnemonic.getEntropy(), null);
-        String syncSaltBase64 = CryptoUtils.base64Encode(syncKey.salt);
-
-        // Revers vault's entry IDs because we need to keep order on new device
-        Collections.reverse(entryIds);
-
-        // Add non-existing entries actions and sync actions (from bottom to top)
-        for (String id : entryIds) {
-            VaultEntry entry = getEntryByID(id);
-            VaultEntry deviceEntry = getEntryByID(id, deviceEntriesDecrypted);
-
-            // Just in case
-            if (entry == null) {
-                Log.w(TAG, "Unable to find entry by ID: " + id);
-                continue;
-            }
+        // Generate sync key and device key from sync root key of this vault (or a new one) and new sync salt
+        boolean newRoot = !vault.has("sync_root_salt");
+        String rootSaltBase64 = newRoot ? CryptoUtils.base64Encode(CryptoUtils.generateRandom(32)) : vault.getString("sync_root_salt");
+        CryptoUtils.KdfParams rootKdfParams = newRoot ? CryptoUtils.KDF_LEGACY : CryptoUtils.KdfParams.syncRootFromJSON(vault.getJSONObject("sync_kdf"));
+        byte[] rootKey = getSyncRootKey(rootSaltBase64, rootKdfParams);
+        byte[] syncSalt = CryptoUtils.generateRandom(32);
+        byte[] syncKey = CryptoUtils.deriveSubkey(rootKey, syncSalt, SUBKEY_CONTEXT_SYNC);
+        String syncSaltBase64 = CryptoUtils.base64Encode(syncSalt);
+
+        // Add non-existing entries actions and sync actions (from bottom to top, to keep order on new device)
+        int progress = 0;
+        for (int i = vaultEntries.size() - 1; i >= 0; i--) {
+            reportProgress(++progress, vaultEntries.size());
+            VaultEntry entry = vaultEntries.get(i);
+            VaultEntry deviceEntry = deviceEntriesById.get(entry.getId());
 
             // Nothing to sync
             if (deviceEntry != null && deviceEntry.equals(entry)) continue;
 
             // Encrypt
-            JSONObject encryptedEntry = CryptoUtils.encryptEntry(entry.getAsJSON(), syncKey.masterKey);
+            JSONObject encryptedEntry = CryptoUtils.encryptEntry(entry.getAsJSON(), syncKey);
             if (encryptedEntry == null) throw new RuntimeException("Unable to encrypt entry");
 
             //"add" action in case of new entry, "sync" if exists
@@ -296,27 +486,58 @@ public class VaultUtils {
             return null;
         }
 
+        // Vault is changed only after this point
+        if (beforeChanges != null) beforeChanges.run();
+        if (newRoot) {
+            vault.put("sync_root_salt", rootSaltBase64);
+            vault.put("sync_kdf", rootKdfParams.toJSON());
+        }
+
         if (deviceName != null && !deviceName.isEmpty()) {
             // Remove previous entries
             if (deviceEntriesAndSalt.has("entries")) deviceEntriesAndSalt.remove("entries");
 
             // Encrypt and add entries to device
+            byte[] newDeviceKey = CryptoUtils.deriveSubkey(rootKey, syncSalt, SUBKEY_CONTEXT_DEVICE);
             JSONArray deviceEntriesEncrypted = new JSONArray();
-            for (VaultEntry entry : vaultEntries)
-                deviceEntriesEncrypted.put(CryptoUtils.encryptEntry(entry.getAsJSON(), syncKey.masterKey));
+            for (int i = 0; i < vaultEntries.size(); i++) {
+                deviceEntriesEncrypted.put(CryptoUtils.encryptEntry(vaultEntries.get(i).getAsJSON(), newDeviceKey));
+                reportProgress(i + 1, vaultEntries.size());
+            }
             deviceEntriesAndSalt.put("entries", deviceEntriesEncrypted);
 
-            // Add salt
+            // Add salt and sync root
+            deviceEntriesAndSalt.put("v", SYNC_VERSION);
             deviceEntriesAndSalt.put("salt", syncSaltBase64);
+            deviceEntriesAndSalt.put("root_salt", rootSaltBase64);
+            deviceEntriesAndSalt.put("kdf", rootKdfParams.toJSON());
 
             // Add devices
+            devices.put(deviceName, deviceEntriesAndSalt);
             vault.put("devices", devices);
 
-            // Save without re-encrypting
-            if (!save(vaultPath, false)) return null;
+            // Save (device entries only)
+            if (!save(vaultPath)) return null;
         }
 
-        return new SyncData(syncActions, syncSaltBase64);
+        return new SyncData(syncActions, syncSaltBase64, rootSaltBase64, rootKdfParams);
+    }
+
+    /**
+     * Derives sync root key from mnemonic or returns cached one
+     *
+     * @param rootSaltBase64 salt of root key as base64
+     * @param kdfParams      KDF parameters of root key
+     * @return 32 bytes root key
+     */
+    private byte[] getSyncRootKey(String rootSaltBase64, CryptoUtils.KdfParams kdfParams) {
+        String cacheKey = rootSaltBase64 + " " + kdfParams;
+        byte[] rootKey = syncRootKeys.get(cacheKey);
+        if (rootKey == null) {
+            rootKey = CryptoUtils.entropyToMasterKey(mnemonic.getEntropy(), CryptoUtils.base64Decode(rootSaltBase64), kdfParams).masterKey;
+            syncRootKeys.put(cacheKey, rootKey);
+        }
+        return rootKey;
     }
 
     /**
@@ -327,14 +548,45 @@ public class VaultUtils {
      * @return true if synced successfully
      */
     public boolean syncFrom(SyncData syncData, String vaultPath) throws JSONException, RuntimeException {
+        return syncFrom(syncData, vaultPath, null);
+    }
+
+    /**
+     * Syncs vault
+     *
+     * @param syncData      sync salt and actions
+     * @param vaultPath     where to save vault (relative path)
+     * @param beforeChanges called after sync key is derived and before actions are applied
+     *                      (may throw CancellationException to stop) or null
+     * @return true if synced successfully
+     */
+    public boolean syncFrom(SyncData syncData, String vaultPath, Runnable beforeChanges) throws JSONException, RuntimeException {
         // Exit if no data
         if (syncData == null || syncData.salt == null || syncData.actions == null || syncData.actions.isEmpty())
             return false;
 
         // Build sync key
-        byte[] syncKey = CryptoUtils.entropyToMasterKey(mnemonic.getEntropy(), CryptoUtils.base64Decode(syncData.salt)).masterKey;
+        if (syncData.version > SYNC_VERSION)
+            throw new RuntimeException("Unsupported sync format version: " + syncData.version);
+        byte[] syncKey;
+        if (syncData.version >= 2) {
+            if (syncData.rootSalt == null || syncData.rootKdfParams == null) return false;
+
+            // Sync roots are created only with KDF_LEGACY. Anything else is not derived
+            if (!CryptoUtils.KDF_LEGACY.equals(syncData.rootKdfParams)) {
+                Log.w(TAG, "Unsupported sync root KDF parameters: " + syncData.rootKdfParams);
+                return false;
+            }
+            byte[] rootKey = getSyncRootKey(syncData.rootSalt, syncData.rootKdfParams);
+            syncKey = CryptoUtils.deriveSubkey(rootKey, CryptoUtils.base64Decode(syncData.salt), SUBKEY_CONTEXT_SYNC);
+        } else
+            syncKey = CryptoUtils.entropyToMasterKey(mnemonic.getEntropy(), CryptoUtils.base64Decode(syncData.salt)).masterKey;
+
+        // Vault is changed only after this point
+        if (beforeChanges != null) beforeChanges.run();
 
         for (int i = 0; i < syncData.actions.size(); i++) {
+            reportProgress(i, syncData.actions.size());
             JSONObject actionData = new JSONObject(syncData.actions.get(i));
             String action = actionData.getString("act");
             Log.i(TAG, "Action: " + action);
@@ -342,17 +594,16 @@ public class VaultUtils {
             // Delete entry
             if (action.equals("delete") && actionData.has("id")) {
                 String id = actionData.getString("id");
-                VaultEntry entryToDelete = getEntryByID(id);
-                if (entryToDelete == null) continue;
-
-                Log.i(TAG, "Deleting entry " + id);
-                vaultEntries.remove(entryToDelete);
+                if (vaultEntries.removeById(id) != null) Log.i(TAG, "Deleting entry " + id);
+                searchIndex.remove(id);
                 continue;
             }
 
             // Add or sync
             if ((action.equals("add") || action.equals("sync")) && actionData.has("enc") && actionData.has("iv")) {
                 JSONObject entryEncrypted = new JSONObject();
+                if (actionData.has("v")) entryEncrypted.put("v", actionData.getInt("v"));
+                if (actionData.has("d")) entryEncrypted.put("d", actionData.getInt("d"));
                 entryEncrypted.put("enc", actionData.getString("enc"));
                 entryEncrypted.put("iv", actionData.getString("iv"));
 
@@ -374,7 +625,7 @@ public class VaultUtils {
                 else notes = null;
 
                 // Search for it
-                VaultEntry entry = getEntryByID(id);
+                VaultEntry entry = vaultEntries.getById(id);
 
                 // Sync
                 if (entry != null) {
@@ -382,6 +633,7 @@ public class VaultUtils {
                     if (user != null) entry.setUsername(user);
                     if (pass != null) entry.setPassword(pass);
                     if (notes != null) entry.setNotes(notes);
+                    searchIndex.update(entry);
                 }
 
                 // Add
@@ -391,7 +643,8 @@ public class VaultUtils {
                     if (pass == null) pass = "";
                     if (notes == null) notes = "";
                     entry = new VaultEntry(id, site, user, pass, notes);
-                    vaultEntries.add(0, entry);
+                    vaultEntries.addFirst(entry);
+                    searchIndex.add(entry);
                 }
             }
         }
@@ -400,21 +653,99 @@ public class VaultUtils {
         return save(vaultPath);
     }
 
+    /**
+     * Rotates master key and data key and saves vault with re-encrypted entries.
+     * This is the only save path that runs scrypt
+     *
+     * @param relPath existing path or null to create a new one
+     * @return true if saved successfully
+     */
+    public boolean rotate(String relPath) throws JSONException {
+        // Ignore if no vault was opened
+        if (!vault.has("name")) return false;
+
+        masterKey = null;
+        dataKey = null;
+        return save(relPath);
+    }
+
+    /**
+     * Saves current vault. If pages are enabled (see CONFIG_KEY_PAGES), only pages with changed entries
+     * and vault header are written. Otherwise, if log is enabled (see CONFIG_KEY_LOG) and only entries were changed,
+     * changes are appended to the log of vault file instead of rewriting it
+     *
+     * @param relPath existing path or null to create a new one
+     * @return true if saved successfully
+     */
+    public boolean save(String relPath) throws JSONException {
+        return save(relPath, false);
+    }
+
+    /**
+     * Rewrites vault file with all entries (or all pages into a new pages file) and deletes it's log
+     *
+     * @param relPath path of the opened vault
+     * @return true if compacted successfully
+     */
+    public boolean compact(String relPath) throws JSONException {
+        if (relPath == null || !relPath.equals(writtenPath)) return false;
+        return save(relPath, true);
+    }
+
+    /**
+     * @return true if most of the records in vault file and it's log (or most of the pages file) are replaced
+     * or deleted entries and vault file should be compacted (see compact())
+     */
+    public boolean needsCompaction() {
+        if (vaultPages != null) return vaultPages.needsCompaction();
+        if (vaultLog == null || vaultLog.getRecordsCount() < LOG_COMPACT_MIN_RECORDS) return false;
+        int records = writtenSnapshotSize + vaultLog.getRecordsCount();
+        return records - writtenIds.size() >= records * LOG_COMPACT_RATIO;
+    }
+
+    /**
+     * @return true if saving of changed entries into the log is enabled (see CONFIG_KEY_LOG)
+     */
+    private boolean isLogEnabled() {
+        return configManager.getBoolean(CONFIG_KEY_LOG, true);
+    }
+
+    /**
+     * @return true if entries of current vault must be stored in pages (see CONFIG_KEY_PAGES)
+     */
+    private boolean isPagesEnabled() {
+        int minEntries = vaultPages != null ? PAGES_MIN_ENTRIES / 2 : PAGES_MIN_ENTRIES;
+        return configManager.getBoolean(CONFIG_KEY_PAGES, vaultEntries.size() >= minEntries);
+    }
+
     /**
      * Saves current vault
      *
-     * @param relPath   existing path or null to create a new one
-     * @param reEncrypt true to rotate encryption, false to not. NOTE: New entries will not be saved if false!
+     * @param relPath existing path or null to create a new one
+     * @param rewrite true to always rewrite vault file (or all pages), false to write only changes if possible
      * @return true if saved successfully
      */
-    public boolean save(String relPath, boolean reEncrypt) throws JSONException {
+    private boolean save(String relPath, boolean rewrite) throws JSONException {
         // Ignore if no vault was opened
         if (!vault.has("name")) return false;
 
-        // Generate new master key
-        if (reEncrypt) {
-            masterKey = CryptoUtils.entropyToMasterKey(mnemonic.getEntropy(), null);
+        // New vault or key rotation -> generate new master key and data key
+        boolean newKeys = masterKey == null || dataKey == null;
+        if (newKeys) {
+            masterKey = CryptoUtils.entropyToMasterKey(mnemonic.getEntropy(), null, KdfCalibrator.get(configManager));
+            dataKey = CryptoUtils.generateRandom(32);
+        }
+
+        // Wrap data key with master key (new keys or migration from v2). Cached ciphertexts are invalid after that
+        boolean keyChanged = newKeys || !vault.has("data_key");
+        if (keyChanged) {
+            CryptoUtils.KeyEncrypted dataKeyEncrypted = CryptoUtils.wrapKey(dataKey, masterKey.masterKey);
+            if (dataKeyEncrypted == null) return false;
             vault.put("master_salt", CryptoUtils.base64Encode(masterKey.salt));
+            vault.put("master_kdf", masterKey.kdfParams.toJSON());
+            vault.put("data_key", CryptoUtils.base64Encode(dataKeyEncrypted.keyEncrypted));
+            vault.put("data_key_iv", CryptoUtils.base64Encode(dataKeyEncrypted.iv));
+            vault.put("version", configManager.getString("version", "3.0.0"));
         }
 
         // Create VAULTS_DIR if needed
@@ -440,41 +771,181 @@ public class VaultUtils {
             relPath = filenameSafe.toString();
         }
 
-        // Save entries
-        if (reEncrypt) {
-            // Remove encrypted entries because we need to rotate master key
-            vault.remove("entries");
+        // Changed entries can be appended to the log only if header wasn't changed since the last write
+        boolean paged = isPagesEnabled();
+        boolean appendToLog = !paged && !rewrite && !keyChanged && isLogEnabled() && relPath.equals(writtenPath) && vault.has("log_id") && vault.toString().equals(writtenHeader);
+        ArrayList<VaultEntry> changedEntries = new ArrayList<>();
+        if (paged || appendToLog) {
+            for (VaultEntry entry : vaultEntries)
+                if (entry.isDirty()) changedEntries.add(entry);
+        }
+
+        // Encrypt only changed entries (in parallel) and reuse cached ciphertexts for the rest
+        try {
+            int encrypted = ParallelEntryCrypto.encrypt(vaultEntries, dataKey, keyChanged, this::reportProgress);
+            Log.i(TAG, "Encrypted " + encrypted + " of " + vaultEntries.size() + " entries");
+        } catch (CancellationException e) {
+            throw e;
+        } catch (Exception e) {
+            Log.e(TAG, "Error encrypting entries", e);
+            return false;
+        }
 
-            // Encrypt each entry
+        File vaultFile = new File(vaultsDir, relPath);
+        boolean appended = false;
+        if (paged) {
+            if (!writePages(relPath, vaultFile, changedEntries, rewrite || keyChanged)) return false;
+        } else if (appendToLog) {
+            try {
+                appended = appendToLog(changedEntries);
+            } catch (Exception e) {
+                Log.w(TAG, "Unable to append changes to the log. Rewriting vault file", e);
+            }
+        }
+
+        if (!paged && !appended) {
+            // Entries are not kept in vault after open(), so they are added only for writing.
+            // New log id makes log of the previous vault file invalid
             JSONArray entriesEncrypted = new JSONArray();
-            for (int i = 0; i < vaultEntries.size(); i++) {
-                try {
-                    JSONObject entryJSON = vaultEntries.get(i).getAsJSON();
-                    entriesEncrypted.put(CryptoUtils.encryptEntry(entryJSON, masterKey.masterKey));
-                } catch (Exception e) {
-                    Log.w(TAG, "Error encrypting entry", e);
+            for (VaultEntry entry : vaultEntries) {
+                JSONObject entryEncrypted = entry.getEncrypted();
+                if (entryEncrypted == null) {
+                    Log.e(TAG, "Entry " + entry.getId() + " was changed after encryption");
+                    return false;
                 }
+                entriesEncrypted.put(entryEncrypted);
             }
-            Log.i(TAG, "Encrypted " + entriesEncrypted.length() + " entries");
             vault.put("entries", entriesEncrypted);
+            vault.put("log_id", CryptoUtils.base64Encode(CryptoUtils.generateRandom(16)));
+
+            // Finally, save file (previous file stays untouched in case of error)
+            boolean written = JSONFileUtils.writeJsonToFile(vaultFile, vault);
+            vault.remove("entries");
+            if (!written) return false;
+
+            // Delete log of the previous vault file and pages if vault was paged
+            VaultLog log = new VaultLog(vaultFile);
+            if (!log.delete()) Log.w(TAG, "Unable to delete " + log.getFile().getName());
+            new VaultPages(vaultFile).delete();
+            vaultPages = null;
+            vaultLog = log;
+            writtenPath = relPath;
+            setWritten(vaultEntries.size());
         }
 
-        // Finally, save file
-        JSONFileUtils.writeJsonToFile(new File(vaultsDir, relPath), vault);
+        // Cache header, so the list of vaults is built without reading this file
+        VaultManifest manifest = getManifest();
+        manifest.put(relPath, vaultFile, vault, vaultEntries.size());
+        manifest.save();
 
         // Add to the existing vaults if not exists
         if (getNamePath(vaultName, relPath) == null) {
             vaultNamePaths.add(new VaultNamePath(vaultName, relPath));
-            JSONArray vaultPaths = (JSONArray) configManager.get("vaults", new JSONArray());
+            JSONArray vaultPaths = configManager.getJSONArray("vaults");
             vaultPaths.put(relPath);
-            configManager.set("vaults", vaultPaths);
+            configManager.edit().putJSONArray("vaults", vaultPaths).commit();
         }
 
         return true;
     }
 
     /**
-     * Renames vault and saves it without re-encrypting
+     * Writes pages with changed entries and vault header with the new page table
+     *
+     * @param relPath        path of vault
+     * @param vaultFile      vault file
+     * @param changedEntries entries that were dirty before encryption
+     * @param rewrite        true to write all pages into a new pages file
+     * @return true if written successfully
+     */
+    private boolean writePages(String relPath, File vaultFile, List<VaultEntry> changedEntries, boolean rewrite) throws JSONException {
+        VaultPages pages = vaultPages != null && relPath.equals(writtenPath) ? vaultPages : new VaultPages(vaultFile);
+        HashSet<String> changedIds = new HashSet<>();
+        for (VaultEntry entry : changedEntries)
+            changedIds.add(entry.getId());
+        try {
+            vault.put("pages", pages.write(vaultEntries, changedIds, dataKey, rewrite));
+        } catch (Exception e) {
+            Log.e(TAG, "Error writing pages", e);
+            return false;
+        }
+
+        // Page table is the only entries storage of paged vault
+        vault.remove("log_id");
+        boolean written = JSONFileUtils.writeJsonToFile(vaultFile, vault);
+        vault.remove("pages");
+        if (!written) {
+            pages.rollback();
+            return false;
+        }
+        pages.commit();
+
+        VaultLog log = new VaultLog(vaultFile);
+        if (!log.delete()) Log.w(TAG, "Unable to delete " + log.getFile().getName());
+        vaultPages = pages;
+        vaultLog = log;
+        writtenPath = relPath;
+        setWritten(vaultEntries.size());
+        return true;
+    }
+
+    /**
+     * Appends changed, new and deleted entries to the log of the opened vault file
+     *
+     * @param changedEntries entries that were dirty before encryption
+     * @return false if order of entries can't be reproduced by the log (vault file must be rewritten)
+     */
+    private boolean appendToLog(List<VaultEntry> changedEntries) throws Exception {
+        HashSet<String> written = new HashSet<>(writtenIds);
+        HashSet<String> ids = new HashSet<>();
+        for (VaultEntry entry : vaultEntries)
+            ids.add(entry.getId());
+
+        // New entries must be on top and the rest must keep their order (see replayLog())
+        int added = 0;
+        while (added < vaultEntries.size() && !written.contains(vaultEntries.get(added).getId())) added++;
+        int position = added;
+        for (String id : writtenIds) {
+            if (!ids.contains(id)) continue;
+            if (position >= vaultEntries.size() || !vaultEntries.get(position).getId().equals(id)) return false;
+            position++;
+        }
+        if (position != vaultEntries.size()) return false;
+
+        // Deleted entries, changed entries and new entries from bottom to top
+        ArrayList<VaultLog.Record> records = new ArrayList<>();
+        for (String id : writtenIds) {
+            if (ids.contains(id)) continue;
+            JSONObject idEncrypted = CryptoUtils.encryptEntryId(id, dataKey);
+            if (idEncrypted == null) throw new RuntimeException("Unable to encrypt entry id");
+            records.add(new VaultLog.Record(VaultLog.OP_DELETE, idEncrypted));
+        }
+        for (VaultEntry entry : changedEntries)
+            if (written.contains(entry.getId()))
+                records.add(new VaultLog.Record(VaultLog.OP_PUT, requireEncrypted(entry)));
+        for (int i = added - 1; i >= 0; i--)
+            records.add(new VaultLog.Record(VaultLog.OP_PUT, requireEncrypted(vaultEntries.get(i))));
+
+        if (!records.isEmpty()) {
+            vaultLog.append(vault.getString("log_id"), records);
+            Log.i(TAG, "Appended " + records.size() + " records to " + vaultLog.getFile().getName());
+        }
+        setWritten(writtenSnapshotSize);
+        return true;
+    }
+
+    /**
+     * @return cached ciphertext of entry
+     * @throws IllegalStateException if entry was changed after encryption
+     */
+    private static JSONObject requireEncrypted(VaultEntry entry) throws JSONException {
+        JSONObject entryEncrypted = entry.getEncrypted();
+        if (entryEncrypted == null) throw new IllegalStateException("Entry " + entry.getId() + " was changed after encryption");
+        return entryEncrypted;
+    }
+
+    /**
+     * Renames vault and saves it
      *
      * @param nameNew   new name
      * @param vaultPath relative path
@@ -494,22 +965,8 @@ public class VaultUtils {
         // Update in vaultNamePaths
         namePath.name = nameNew;
 
-        // Save
-        if (!save(vaultPath, false)) return false;
-
-        // Update in config
-        JSONArray vaultPaths = (JSONArray) configManager.get("vaults", new JSONArray());
-        for (int i = 0; i < vaultPaths.length(); i++) {
-            String vaultPath_ = vaultPaths.getString(i);
-            if (vaultPath_.equals(vaultPath)) {
-                vaultPaths.put(i, vaultPath);
-                break;
-            }
-        }
-        configManager.set("vaults", vaultPaths);
-
-        // Seems OK
-        return true;
+        // Save (path stays the same, so config is not changed)
+        return save(vaultPath);
     }
 
     /**
@@ -528,7 +985,7 @@ public class VaultUtils {
         vaultNamePaths.remove(namePath);
 
         // Delete from config
-        JSONArray vaultPaths = (JSONArray) configManager.get("vaults", new JSONArray());
+        JSONArray vaultPaths = configManager.getJSONArray("vaults");
         for (int i = 0; i < vaultPaths.length(); i++) {
             String vaultPath_ = vaultPaths.getString(i);
             if (vaultPath_.equals(vaultPath)) {
@@ -536,7 +993,7 @@ public class VaultUtils {
                 break;
             }
         }
-        configManager.set("vaults", vaultPaths);
+        configManager.edit().putJSONArray("vaults", vaultPaths).commit();
 
         // Finally, close vault
         close();
@@ -559,7 +1016,21 @@ public class VaultUtils {
         // Reset private variables
         mnemonic.generateRandom();
         vaultEntries.clear();
+        searchIndex.clear();
+        vaultPages = null;
+        vaultLog = null;
+        writtenPath = null;
+        writtenHeader = null;
+        writtenIds.clear();
+        writtenSnapshotSize = 0;
         masterKey = null;
+        if (dataKey != null) Arrays.fill(dataKey, (byte) 0);
+        dataKey = null;
+        for (byte[] rootKey : syncRootKeys.values()) Arrays.fill(rootKey, (byte) 0);
+        syncRootKeys.clear();
+        EntryCodec.clearKeys();
+        CryptoPipeline.clearKeys();
+        CryptoUtils.releaseKdfArenas();
 
         // Run garbage collector
         System.gc();
@@ -592,13 +1063,7 @@ public class VaultUtils {
      */
     public int getEntryIndex(String id) {
         if (id == null || id.isEmpty()) return -1;
-
-        for (int i = 0; i < vaultEntries.size(); i++) {
-            VaultEntry vaultEntry = vaultEntries.get(i);
-            if (vaultEntry.getId().equals(id)) return i;
-        }
-
-        return -1;
+        return vaultEntries.indexOfId(id);
     }
 
     /**
@@ -608,25 +1073,52 @@ public class VaultUtils {
      * @return entry from vaultEntries or null if not found
      */
     public VaultEntry getEntryByID(String id) {
-        return getEntryByID(id, vaultEntries);
+        if (id == null || id.isEmpty()) return null;
+        return vaultEntries.getById(id);
     }
 
     /**
-     * Searches for entry from entries by it's ID
+     * Adds entry to the top of vaultEntries. Call save() to save it
      *
-     * @param id      unique ID
-     * @param entries entries to use instead of vaultEntries
-     * @return entry from entries or null if not found
+     * @param entry new entry
      */
-    public VaultEntry getEntryByID(String id, ArrayList<VaultEntry> entries) {
-        if (id == null || id.isEmpty()) return null;
+    public void addEntry(VaultEntry entry) {
+        vaultEntries.addFirst(entry);
+        searchIndex.add(entry);
+    }
 
-        for (int i = 0; i < entries.size(); i++) {
-            VaultEntry vaultEntry = entries.get(i);
-            if (vaultEntry.getId().equals(id)) return vaultEntry;
-        }
+    /**
+     * Updates search index after site or username of entry was changed. Call save() to save changes
+     *
+     * @param entry entry from vaultEntries
+     */
+    public void updateEntry(VaultEntry entry) {
+        searchIndex.update(entry);
+    }
 
-        return null;
+    /**
+     * Removes entry from vaultEntries by it's ID. Call save() to save changes
+     *
+     * @param id unique ID
+     * @return true if entry was removed
+     */
+    public boolean removeEntry(String id) {
+        if (id == null || id.isEmpty()) return false;
+        searchIndex.remove(id);
+        return vaultEntries.removeById(id) != null;
+    }
+
+    /**
+     * Searches for entries which site or username contains query (case and diacritics insensitive)
+     *
+     * @param query text to search for
+     * @return found entries in the order of vaultEntries or all entries if query is empty
+     */
+    public List<VaultEntry> search(String query) {
+        if (query == null || query.trim().isEmpty()) return vaultEntriesView;
+        List<VaultEntry> found = searchIndex.search(query.trim());
+        found.sort(Comparator.comparingInt(entry -> vaultEntries.indexOfId(entry.getId())));
+        return Collections.unmodifiableList(found);
     }
 
     /**
@@ -640,9 +1132,9 @@ public class VaultUtils {
         JSONObject devices = getDevices();
         if (!devices.has(deviceName)) return false;
 
-        // Delete and save without re-encrypting
+        // Delete and save (only changed entries are encrypted)
         devices.remove(deviceName);
-        return save(vaultPath, false);
+        return save(vaultPath);
     }
 
     /**
@@ -670,6 +1162,27 @@ public class VaultUtils {
         return deviceList;
     }
 
+    /**
+     * Sets listener for long operations (open, save, syncTo, syncFrom)
+     *
+     * @param progressListener listener or null to disable reporting
+     */
+    public void setProgressListener(ProgressListener progressListener) {
+        this.progressListener = progressListener;
+    }
+
+    /**
+     * Reports progress to the listener and stops current operation if thread was interrupted
+     *
+     * @param done  number of processed entries
+     * @param total total number of entries
+     * @throws CancellationException if current thread was interrupted
+     */
+    private void reportProgress(int done, int total) {
+        if (Thread.currentThread().isInterrupted()) throw new CancellationException("Operation cancelled");
+        if (progressListener != null) progressListener.onProgress(done, total);
+    }
+
     /**
      * @return available vaults. Call refreshAvailable() to refresh this
      */
@@ -678,9 +1191,17 @@ public class VaultUtils {
     }
 
     /**
-     * @return available entries. Call save() to save them
+     * @return read-only view of available entries (top first). Use addEntry() / removeEntry() to change the list
+     * and save() to save changes
      */
-    public ArrayList<VaultEntry> getVaultEntries() {
+    public List<VaultEntry> getVaultEntries() {
+        return vaultEntriesView;
+    }
+
+    /**
+     * @return modifiable entries (for tests)
+     */
+    EntryStore getEntryStore() {
         return vaultEntries;
     }
 
@@ -701,14 +1222,52 @@ public class VaultUtils {
         }
     }
 
-    // Utility class for storing sync actions as JSON->String and sync salt
+    // Utility class for storing sync actions as JSON->String, sync salt and sync root (v2)
     public static class SyncData {
         public final ArrayList<String> actions;
         public String salt;
+        public int version = 1;
+        public String rootSalt;
+        public CryptoUtils.KdfParams rootKdfParams;
 
         public SyncData(ArrayList<String> actions, String salt) {
             this.actions = actions;
             this.salt = salt;
         }
+
+        public SyncData(ArrayList<String> actions, String salt, String rootSalt, CryptoUtils.KdfParams rootKdfParams) {
+            this(actions, salt);
+            this.version = SYNC_VERSION;
+            this.rootSalt = rootSalt;
+            this.rootKdfParams = rootKdfParams;
+        }
+
+        /**
+         * Adds salt, sync root and actions from one scanned QR code
+         *
+         * @param partialSyncData QR code content as JSON
+         * @throws JSONException if data can't be parsed or sync root KDF parameters are not supported
+         */
+        public void addPart(JSONObject partialSyncData) throws JSONException {
+            // Extract sync salt
+            if (partialSyncData.has("salt")) {
+                salt = partialSyncData.getString("salt");
+                Log.i(TAG, "Received sync salt");
+            }
+
+            // Extract sync format version and sync root (v2)
+            if (partialSyncData.has("v")) version = partialSyncData.getInt("v");
+            if (partialSyncData.has("root_salt")) rootSalt = partialSyncData.getString("root_salt");
+            if (partialSyncData.has("kdf"))
+                rootKdfParams = CryptoUtils.KdfParams.syncRootFromJSON(partialSyncData.getJSONObject("kdf"));
+
+            // Extract actions
+            if (partialSyncData.has("acts")) {
+                JSONArray acts = partialSyncData.getJSONArray("acts");
+                for (int i = 0; i < acts.length(); i++)
+                    actions.add(acts.getJSONObject(i).toString().replace("\\/", "/"));
+                Log.i(TAG, "Received " + acts.length() + " actions");
+            }
+        }
     }
 }
@@ -0,0 +1,123 @@
+package com.f3rni.petalvault;
+
+import static org.junit.Assert.*;
+
+import org.junit.Assume;
+import org.junit.Test;
+import org.spongycastle.util.encoders.Hex;
+
+import java.util.Arrays;
+
+public class Argon2KdfTest {
+    private static byte[] filled(int length, int value) {
+        byte[] bytes = new byte[length];
+        Arrays.fill(bytes, (byte) value);
+        return bytes;
+    }
+
+    private static String rfc9106(int type) {
+        return Hex.toHexString(Argon2Kdf.generate(type, filled(32, 1), filled(16, 2), filled(8, 3), filled(12, 4), 32, 3, 4, 32));
+    }
+
+    @Test
+    public void generate_matchesRfc9106Vectors() {
+        assertEquals("512b391b6f1162975371d30919734294f868e3be3984f3c1a13a4db9fabe4acb", rfc9106(Argon2Kdf.TYPE_D));
+        assertEquals("c814d9d1dc7f37aa13f0d77f2494bda1c8de6b016dd388d29952a4c4672b6ce8", rfc9106(Argon2Kdf.TYPE_I));
+        assertEquals("0d640df58d78766c08c037a34a8b53c9d01ef0452d75b65eb52520e96b01e659", rfc9106(Argon2Kdf.TYPE_ID));
+    }
+
+    @Test
+    public void generate_isDeterministicAcrossLanes() {
+        byte[] password = CryptoUtils.generateRandom(16);
+        byte[] salt = CryptoUtils.generateRandom(32);
+        byte[] derived = Argon2Kdf.generate(password, salt, 4096, 2, 4, 32);
+        assertArrayEquals(derived, Argon2Kdf.generate(password, salt, 4096, 2, 4, 32));
+        assertFalse(Arrays.equals(derived, Argon2Kdf.generate(password, salt, 4096, 2, 2, 32)));
+
+        // Long output uses chained H'
+        assertEquals(100, Argon2Kdf.generate(password, salt, 64, 1, 1, 100).length);
+    }
+
+    @Test
+    public void kdfParams_roundTripsThroughJSON() throws Exception {
+        CryptoUtils.KdfParams argon2id = CryptoUtils.KdfParams.argon2id(65536, 3, 4);
+        CryptoUtils.KdfParams parsed = CryptoUtils.KdfParams.fromJSON(argon2id.toJSON());
+        assertEquals(CryptoUtils.KdfParams.TYPE_ARGON2ID, parsed.type);
+        assertEquals(65536, parsed.m);
+        assertEquals(3, parsed.t);
+        assertEquals(4, parsed.p);
+
+        // Headers written before KDF type was added
+        parsed = CryptoUtils.KdfParams.fromJSON(new org.json.JSONObject("{\"n\":16384,\"r\":8,\"p\":4}"));
+        assertEquals(CryptoUtils.KdfParams.TYPE_SCRYPT, parsed.type);
+        assertEquals(16384, parsed.n);
+    }
+
+    @Test
+    public void kdfParams_rejectsOutOfBounds() throws Exception {
+        String[] rejected = {"{\"n\":1073741824,\"r\":8,\"p\":1}", "{\"n\":65535,\"r\":8,\"p\":1}", "{\"n\":1024,\"r\":8,\"p\":1}", "{\"n\":65536,\"r\":1024,\"p\":1}", "{\"n\":65536,\"r\":8,\"p\":64}", "{\"type\":\"argon2id\",\"m\":16777216,\"t\":3,\"p\":4}", "{\"type\":\"argon2id\",\"m\":65536,\"t\":100000,\"p\":4}", "{\"type\":\"argon2id\",\"m\":65536,\"t\":3,\"p\":0}"};
+        for (String json : rejected) {
+            try {
+                CryptoUtils.KdfParams.fromJSON(new org.json.JSONObject(json));
+                fail(json);
+            } catch (org.json.JSONException ignored) {
+            }
+        }
+        assertEquals(CryptoUtils.KDF_LEGACY.n, CryptoUtils.KdfParams.fromJSON(CryptoUtils.KDF_LEGACY.toJSON()).n);
+
+        // Smallest costs above memory budget
+        int n = KdfCalibrator.N_MIN;
+        while (128L * KdfCalibrator.R * n <= KdfCalibrator.memoryBudget()) n *= 2;
+        int m = KdfCalibrator.M_MIN;
+        while (1024L * m <= KdfCalibrator.memoryBudget()) m *= 2;
+        for (CryptoUtils.KdfParams kdfParams : new CryptoUtils.KdfParams[]{new CryptoUtils.KdfParams(n, KdfCalibrator.R, 1), CryptoUtils.KdfParams.argon2id(m, 1, 1)}) {
+            try {
+                CryptoUtils.KdfParams.fromJSON(kdfParams.toJSON());
+                fail(kdfParams.toString());
+            } catch (org.json.JSONException ignored) {
+            }
+        }
+        assertEquals(n / 2, CryptoUtils.KdfParams.fromJSON(new CryptoUtils.KdfParams(n / 2, KdfCalibrator.R, 1).toJSON()).n);
+
+        // Sync root accepts only legacy parameters
+        assertEquals(CryptoUtils.KDF_LEGACY, CryptoUtils.KdfParams.syncRootFromJSON(CryptoUtils.KDF_LEGACY.toJSON()));
+        try {
+            CryptoUtils.KdfParams.syncRootFromJSON(new CryptoUtils.KdfParams(131072, 8, 1).toJSON());
+            fail();
+        } catch (org.json.JSONException ignored) {
+        }
+    }
+
+    /**
+     * Compares Argon2id with scrypt as chosen by KdfCalibrator (N_LANE_MIN per lane, 64 MiB per lane)
+     * and with calibrated parameters of this device. Run with ./gradlew test -Pbenchmark=true
+     */
+    @Test
+    public void benchmark_argon2idVsScrypt() {
+        Assume.assumeTrue(Boolean.getBoolean("benchmark"));
+
+        int lanes = Math.max(1, Math.min(KdfCalibrator.LANES_MAX, Runtime.getRuntime().availableProcessors()));
+        CryptoUtils.KdfParams[] candidates = {
+                CryptoUtils.KDF_LEGACY,
+                new CryptoUtils.KdfParams(KdfCalibrator.N_LANE_MIN, KdfCalibrator.R, lanes),
+                CryptoUtils.KdfParams.argon2id(65536, 1, 1),
+                CryptoUtils.KdfParams.argon2id(65536, 1, lanes),
+                CryptoUtils.KdfParams.argon2id(65536, 3, lanes),
+                KdfCalibrator.calibrate(CryptoUtils.KdfParams.TYPE_SCRYPT, 1000, KdfCalibrator.memoryBudget()),
+                KdfCalibrator.calibrate(CryptoUtils.KdfParams.TYPE_ARGON2ID, 1000, KdfCalibrator.memoryBudget()),
+        };
+
+        byte[] password = CryptoUtils.generateRandom(16);
+        byte[] salt = CryptoUtils.generateRandom(32);
+        for (CryptoUtils.KdfParams kdfParams : candidates) {
+            kdfParams.derive(password, salt, 32);
+            long best = Long.MAX_VALUE;
+            for (int i = 0; i < 3; i++) {
+                long timeStarted = System.nanoTime();
+                kdfParams.derive(password, salt, 32);
+                best = Math.min(best, System.nanoTime() - timeStarted);
+            }
+            System.out.println(kdfParams + ": " + best / 1000000 + " ms");
+        }
+    }
+}
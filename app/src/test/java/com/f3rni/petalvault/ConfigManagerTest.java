@@ -0,0 +1,108 @@
+package com.f3rni.petalvault;
+
+import static org.junit.Assert.*;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+
+public class ConfigManagerTest {
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void typedGetters_returnDefaultsForMissingOrWrongType() throws Exception {
+        File file = new File(temporaryFolder.getRoot(), "config.json");
+        ConfigManager configManager = new ConfigManager(file, "3.0.0");
+        assertEquals("3.0.0", configManager.getString("version", null));
+        assertEquals("default", configManager.getString("missing", "default"));
+        assertTrue(configManager.getBoolean("missing", true));
+        assertNull(configManager.getJSONObject("missing"));
+        assertEquals(0, configManager.getJSONArray("missing").length());
+
+        configManager.edit().putString("flag", "yes").commit();
+        assertFalse(configManager.getBoolean("flag", false));
+        assertNull(configManager.getJSONObject("flag"));
+    }
+
+    @Test
+    public void commit_writesAllChangesAtOnce() throws Exception {
+        File file = new File(temporaryFolder.getRoot(), "config.json");
+        ConfigManager configManager = new ConfigManager(file, "3.0.0");
+
+        ConfigManager.Editor editor = configManager.edit()
+                .putBoolean("a", true)
+                .putString("b", "value")
+                .putJSONArray("c", new JSONArray().put("x.json"));
+
+        // Nothing is visible before commit
+        assertFalse(configManager.getBoolean("a", false));
+        assertFalse(file.exists());
+
+        assertTrue(editor.commit());
+        JSONObject written = JSONFileUtils.readJsonFromFile(file);
+        assertTrue(written.getBoolean("a"));
+        assertEquals("value", written.getString("b"));
+        assertEquals("x.json", written.getJSONArray("c").getString(0));
+
+        // Remove
+        configManager.edit().remove("a").commit();
+        assertFalse(JSONFileUtils.readJsonFromFile(file).has("a"));
+        assertFalse(configManager.getBoolean("a", false));
+    }
+
+    @Test
+    public void apply_writesLatestSnapshotInBackground() throws Exception {
+        File file = new File(temporaryFolder.getRoot(), "config.json");
+        ConfigManager configManager = new ConfigManager(file, "3.0.0");
+        for (int i = 0; i < 100; i++) configManager.edit().putString("counter", String.valueOf(i)).apply();
+
+        // Visible immediately
+        assertEquals("99", configManager.getString("counter", null));
+
+        configManager.waitForWrites();
+        assertEquals("99", JSONFileUtils.readJsonFromFile(file).getString("counter"));
+        assertEquals("99", new ConfigManager(file, "3.0.0").getString("counter", null));
+    }
+
+    @Test
+    public void getters_returnCopies() throws Exception {
+        File file = new File(temporaryFolder.getRoot(), "config.json");
+        ConfigManager configManager = new ConfigManager(file, "3.0.0");
+        JSONArray vaults = new JSONArray().put("a.json");
+        configManager.edit().putJSONArray("vaults", vaults).putJSONObject("kdf", new JSONObject().put("n", 1)).commit();
+
+        // Changing source or returned values doesn't change config
+        vaults.put("b.json");
+        configManager.getJSONArray("vaults").put("c.json");
+        configManager.getJSONObject("kdf").put("n", 2);
+        assertEquals(1, configManager.getJSONArray("vaults").length());
+        assertEquals(1, configManager.getJSONObject("kdf").getInt("n"));
+    }
+
+    @Test
+    public void refresh_readsOnlyChangedFile() throws Exception {
+        File file = new File(temporaryFolder.getRoot(), "config.json");
+        ConfigManager configManager = new ConfigManager(file, "3.0.0");
+        configManager.edit().putString("key", "a").commit();
+
+        // Unchanged file -> snapshot is kept
+        configManager.refresh();
+        assertEquals("a", configManager.getString("key", null));
+
+        // Changed by someone else
+        try (FileOutputStream outputStream = new FileOutputStream(file)) {
+            outputStream.write("{\"key\":\"changed\"}".getBytes(StandardCharsets.UTF_8));
+        }
+        assertTrue(file.setLastModified(file.lastModified() + 10000));
+        configManager.refresh();
+        assertEquals("changed", configManager.getString("key", null));
+        assertEquals("3.0.0", configManager.getString("version", null));
+    }
+}
@@ -0,0 +1,120 @@
+package com.f3rni.petalvault;
+
+import static org.junit.Assert.*;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Random;
+
+public class CryptoPipelineTest {
+    // Bytes allocated while streaming BULK_SIZE bytes. Pipeline buffers are fixed-size, so this doesn't depend on input size
+    private static final long BULK_ALLOCATION_BUDGET_BYTES = 1024 * 1024;
+    private static final int BULK_SIZE = 32 * 1024 * 1024;
+
+    @Test
+    public void pipeline_matchesCodec() throws Exception {
+        byte[] key = CryptoUtils.generateRandom(32);
+        Random random = new Random(1);
+        CryptoPipeline pipeline = new CryptoPipeline();
+        EntryCodec codec = EntryCodec.get();
+
+        for (int size : new int[]{0, 1, 2, 3, 4, 100, 8191, 100000}) {
+            // Partly compressible data
+            byte[] data = new byte[size];
+            for (int i = 0; i < size; i++) data[i] = (byte) (i % 7 == 0 ? random.nextInt() : 'a' + i % 13);
+
+            for (int dictionary : new int[]{EntryDictionary.NONE, EntryDictionary.CURRENT}) {
+                byte[] iv = CryptoUtils.generateRandom(EntryCodec.GCM_IV_LENGTH);
+
+                // Written in uneven parts
+                StringBuilder out = new StringBuilder();
+                pipeline.begin(key, iv, dictionary, out);
+                for (int offset = 0; offset < size; ) {
+                    int length = Math.min(size - offset, 1 + random.nextInt(5000));
+                    pipeline.write(data, offset, length);
+                    offset += length;
+                }
+                pipeline.finish();
+
+                byte[] encrypted = CryptoUtils.base64Decode(out.toString());
+                int length = codec.decrypt(encrypted, 0, encrypted.length, key, iv, dictionary);
+                assertArrayEquals("Size " + size, data, Arrays.copyOf(codec.buffer(), length));
+
+                // Same as codec + base64
+                byte[] iv2 = CryptoUtils.generateRandom(EntryCodec.GCM_IV_LENGTH);
+                length = codec.encrypt(data, size, key, iv2, dictionary);
+                assertEquals(CryptoUtils.base64Encode(Arrays.copyOf(codec.buffer(), length)), pipeline.encryptToBase64(data, size, key, iv2, dictionary));
+            }
+        }
+    }
+
+    @Test
+    public void pipeline_streamsInBoundedMemory() throws Exception {
+        Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threadMXBean.isThreadAllocatedMemorySupported());
+        threadMXBean.setThreadAllocatedMemoryEnabled(true);
+
+        byte[] key = CryptoUtils.generateRandom(32);
+        byte[] chunk = CryptoUtils.generateRandom(64 * 1024);
+        CountingAppendable out = new CountingAppendable();
+        CryptoPipeline pipeline = new CryptoPipeline();
+
+        long threadId = Thread.currentThread().getId();
+        long allocatedBefore = threadMXBean.getThreadAllocatedBytes(threadId);
+        pipeline.begin(key, CryptoUtils.generateRandom(EntryCodec.GCM_IV_LENGTH), EntryDictionary.NONE, out);
+        for (int written = 0; written < BULK_SIZE; written += chunk.length) pipeline.write(chunk, 0, chunk.length);
+        pipeline.finish();
+        long allocated = threadMXBean.getThreadAllocatedBytes(threadId) - allocatedBefore;
+
+        // Random data doesn't compress: base64 of data + deflate overhead + tag
+        assertTrue(out.length > BULK_SIZE / 3 * 4);
+        assertEquals(0, out.length % 4);
+        assertTrue("Allocated " + allocated + " bytes", allocated < BULK_ALLOCATION_BUDGET_BYTES);
+    }
+
+    @Test
+    public void clearKeys_wipesKeyOfThreadPipeline() throws Exception {
+        byte[] key = CryptoUtils.generateRandom(32);
+        byte[] data = "data".getBytes();
+        CryptoPipeline pipeline = CryptoPipeline.get();
+        pipeline.encryptToBase64(data, data.length, key, CryptoUtils.generateRandom(EntryCodec.GCM_IV_LENGTH), EntryDictionary.NONE);
+
+        java.lang.reflect.Field keyField = CryptoPipeline.class.getDeclaredField("key");
+        keyField.setAccessible(true);
+        assertArrayEquals(key, (byte[]) keyField.get(pipeline));
+        CryptoPipeline.clearKeys();
+        assertArrayEquals(new byte[32], (byte[]) keyField.get(pipeline));
+
+        // Key is cached again on the next call
+        byte[] iv = CryptoUtils.generateRandom(EntryCodec.GCM_IV_LENGTH);
+        String encrypted = pipeline.encryptToBase64(data, data.length, key, iv, EntryDictionary.NONE);
+        int length = EntryCodec.get().encrypt(data, data.length, key, iv);
+        assertEquals(CryptoUtils.base64Encode(Arrays.copyOf(EntryCodec.get().buffer(), length)), encrypted);
+    }
+
+    private static class CountingAppendable implements Appendable {
+        private long length;
+
+        @Override
+        public Appendable append(CharSequence csq) {
+            length += csq.length();
+            return this;
+        }
+
+        @Override
+        public Appendable append(CharSequence csq, int start, int end) {
+            length += end - start;
+            return this;
+        }
+
+        @Override
+        public Appendable append(char c) {
+            length++;
+            return this;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.f3rni.petalvault;
+
+import static org.junit.Assert.*;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+public class EntryRecordTest {
+    @Test
+    public void record_roundTrips() throws Exception {
+        String notes = "\u00dcn\u00efc\u00f6d\u00e9, \u043a\u0438\u0440\u0438\u043b\u043b\u0438\u0446\u0430, \u6f22\u5b57 and emoji \ud83d\udd11\n" + new String(new char[300]).replace('\0', 'x');
+        EntryRecord.Writer writer = EntryRecord.writer();
+        writer.write(EntryRecord.TAG_ID, "q1w2e3r4t5y6");
+        writer.write(EntryRecord.TAG_SITE, "");
+        writer.write(EntryRecord.TAG_USER, "user@example.com");
+        writer.write(EntryRecord.TAG_NOTES, notes);
+
+        EntryRecord.Reader reader = new EntryRecord.Reader(writer.buffer(), 0, writer.length());
+        assertTrue(reader.next());
+        assertEquals(EntryRecord.TAG_ID, reader.tag());
+        assertEquals("q1w2e3r4t5y6", reader.value());
+
+        // Empty values are skipped
+        assertTrue(reader.next());
+        assertEquals(EntryRecord.TAG_USER, reader.tag());
+        assertEquals("user@example.com", reader.value());
+
+        // Hand-written UTF-8 matches the JDK, 2 bytes length
+        assertTrue(reader.next());
+        assertEquals(EntryRecord.TAG_NOTES, reader.tag());
+        assertEquals(notes, reader.value());
+        byte[] notesBytes = notes.getBytes(StandardCharsets.UTF_8);
+        assertArrayEquals(notesBytes, Arrays.copyOfRange(writer.buffer(), writer.length() - notesBytes.length, writer.length()));
+        assertFalse(reader.next());
+
+        JSONObject json = EntryRecord.toJSON(writer.buffer(), 0, writer.length());
+        assertEquals("user@example.com", json.getString("user"));
+        assertFalse(json.has("site"));
+    }
+
+    @Test
+    public void reader_skipsUnknownTags() {
+        EntryRecord.Writer writer = EntryRecord.writer();
+        writer.write(EntryRecord.TAG_ID, "id");
+        writer.write(1000, "field from a newer app");
+        writer.write(EntryRecord.TAG_SITE, "site");
+
+        VaultEntry entry = new VaultEntry(new EntryRecord.Reader(writer.buffer(), 0, writer.length()), null);
+        assertEquals("id", entry.getId());
+        assertEquals("site", entry.getSite());
+        assertEquals("", entry.getPassword());
+    }
+
+    @Test
+    public void reader_rejectsTruncatedRecords() {
+        EntryRecord.Writer writer = EntryRecord.writer();
+        writer.write(EntryRecord.TAG_ID, "q1w2e3r4t5y6");
+        try {
+            EntryRecord.Reader reader = new EntryRecord.Reader(writer.buffer(), 0, writer.length() - 1);
+            while (reader.next()) reader.value();
+            fail("Truncated record must be rejected");
+        } catch (IllegalArgumentException ignored) {
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package com.f3rni.petalvault;
+
+import static org.junit.Assert.*;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+public class EntrySearchIndexTest {
+    private static HashSet<String> ids(List<VaultEntry> entries) {
+        HashSet<String> ids = new HashSet<>();
+        for (VaultEntry entry : entries) ids.add(entry.getId());
+        return ids;
+    }
+
+    private static HashSet<String> ids(String... ids) {
+        return new HashSet<>(Arrays.asList(ids));
+    }
+
+    @Test
+    public void search_matchesSubstringsOfSiteAndUsername() {
+        EntrySearchIndex index = new EntrySearchIndex();
+        index.rebuild(Arrays.asList(
+                new VaultEntry("a", "GitHub.com", "fern", "", ""),
+                new VaultEntry("b", "mail.example.com", "Fern.Lane", "", ""),
+                new VaultEntry("c", "Caf\u00e9 Bank", "user", "", "")));
+
+        assertEquals(ids("a"), ids(index.search("hub")));
+        assertEquals(ids("a", "b"), ids(index.search("FERN")));
+        assertEquals(ids("a", "b"), ids(index.search(".com")));
+        assertEquals(ids("b"), ids(index.search("n.la")));
+        assertEquals(ids("c"), ids(index.search("cafe")));
+        assertEquals(ids("c"), ids(index.search("CAF\u00c9")));
+
+        // Short queries
+        assertEquals(ids("a", "b", "c"), ids(index.search("e")));
+        assertEquals(ids("c"), ids(index.search("us")));
+
+        // All trigrams present, but not as a substring
+        assertEquals(ids(), ids(index.search("hub.com.git")));
+        assertEquals(ids(), ids(index.search("missing")));
+
+        // Password and notes are not indexed
+        index.add(new VaultEntry("d", "site", "user", "secret", "notes"));
+        assertEquals(ids(), ids(index.search("secret")));
+    }
+
+    @Test
+    public void updateAndRemove_changeResults() {
+        EntrySearchIndex index = new EntrySearchIndex();
+        VaultEntry entry = new VaultEntry("a", "github.com", "fern", "", "");
+        index.add(entry);
+        index.add(new VaultEntry("b", "gitlab.com", "fern", "", ""));
+
+        entry.setSite("bitbucket.org");
+        index.update(entry);
+        assertEquals(ids("b"), ids(index.search("git")));
+        assertEquals(ids("a"), ids(index.search("bucket")));
+
+        index.remove("b");
+        index.remove("missing");
+        assertEquals(ids(), ids(index.search("gitlab")));
+        assertEquals(ids("a"), ids(index.search("fern")));
+        assertEquals(1, index.size());
+
+        // Free slot is reused
+        index.add(new VaultEntry("c", "gitlab.com", "other", "", ""));
+        assertEquals(ids("c"), ids(index.search("gitlab")));
+        assertEquals(ids("c"), ids(index.search("com")));
+        index.clear();
+        assertEquals(0, index.size());
+        assertEquals(ids(), ids(index.search("com")));
+    }
+
+    @Test
+    public void randomChanges_matchFullScan() {
+        Random random = new Random(7);
+        String alphabet = "abcde.";
+        EntrySearchIndex index = new EntrySearchIndex();
+        ArrayList<VaultEntry> entries = new ArrayList<>();
+        for (int step = 0; step < 3000; step++) {
+            int operation = random.nextInt(4);
+            if (operation < 2 || entries.isEmpty()) {
+                VaultEntry entry = new VaultEntry(null, randomText(random, alphabet), randomText(random, alphabet), "", "");
+                entries.add(entry);
+                index.add(entry);
+            } else if (operation == 2) {
+                VaultEntry entry = entries.get(random.nextInt(entries.size()));
+                entry.setUsername(randomText(random, alphabet));
+                index.update(entry);
+            } else index.remove(entries.remove(random.nextInt(entries.size())).getId());
+
+            if (step % 50 == 0) {
+                String query = randomText(random, alphabet).substring(0, 1 + random.nextInt(4));
+                HashSet<String> expected = new HashSet<>();
+                for (VaultEntry entry : entries)
+                    if (entry.getSite().contains(query) || entry.getUsername().contains(query)) expected.add(entry.getId());
+                assertEquals(query, expected, ids(index.search(query)));
+            }
+        }
+    }
+
+    private static String randomText(Random random, String alphabet) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 4 + random.nextInt(8); i++)
+            text.append(alphabet.charAt(random.nextInt(alphabet.length())));
+        return text.toString();
+    }
+
+    /**
+     * Run with ./gradlew test -Pbenchmark=true
+     */
+    @Test
+    public void benchmark_search() {
+        Assume.assumeTrue(Boolean.getBoolean("benchmark"));
+
+        int size = 50000;
+        Random random = new Random(1);
+        ArrayList<VaultEntry> entries = new ArrayList<>();
+        for (int i = 0; i < size; i++)
+            entries.add(new VaultEntry(null, "site" + random.nextInt(1000000) + ".example.com", "user" + i + "@mail.org", "", ""));
+
+        EntrySearchIndex index = new EntrySearchIndex();
+        long timeStarted = System.nanoTime();
+        index.rebuild(entries);
+        System.out.printf("Build: %.2f ms for %d entries%n", (System.nanoTime() - timeStarted) / 1e6, size);
+
+        for (String query : new String[]{"user4242@", "site12", "42", "example"}) {
+            int found = 0;
+            int runs = 100;
+            timeStarted = System.nanoTime();
+            for (int i = 0; i < runs; i++) found = index.search(query).size();
+            long indexed = (System.nanoTime() - timeStarted) / runs;
+
+            timeStarted = System.nanoTime();
+            for (int i = 0; i < runs; i++) {
+                int scanned = 0;
+                for (VaultEntry entry : entries)
+                    if (entry.getSite().toLowerCase().contains(query) || entry.getUsername().toLowerCase().contains(query)) scanned++;
+                assertEquals(found, scanned);
+            }
+            long linear = (System.nanoTime() - timeStarted) / runs;
+            System.out.printf("\"%s\": %d found, indexed %.3f ms, scan %.3f ms%n", query, found, indexed / 1e6, linear / 1e6);
+        }
+    }
+}
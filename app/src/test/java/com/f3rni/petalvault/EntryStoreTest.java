@@ -0,0 +1,140 @@
+package com.f3rni.petalvault;
+
+import static org.junit.Assert.*;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+public class EntryStoreTest {
+    private static VaultEntry entry(String id) {
+        return new VaultEntry(id, "site" + id, "user", "pass", "");
+    }
+
+    private static void assertSameOrder(List<VaultEntry> expected, EntryStore store) {
+        assertEquals(expected.size(), store.size());
+        for (int i = 0; i < expected.size(); i++) {
+            VaultEntry entry = expected.get(i);
+            assertSame(entry, store.get(i));
+            assertSame(entry, store.getById(entry.getId()));
+            assertEquals(i, store.indexOfId(entry.getId()));
+        }
+    }
+
+    @Test
+    public void addAndRemove_keepDisplayOrder() {
+        EntryStore store = new EntryStore();
+        store.addAll(Arrays.asList(entry("c"), entry("d")));
+        store.addFirst(entry("b"));
+        store.addFirst(entry("a"));
+        store.addLast(entry("e"));
+        assertEquals("abcde", ids(store));
+
+        // Holes in both parts
+        assertNotNull(store.removeById("b"));
+        assertNotNull(store.removeById("d"));
+        assertNull(store.removeById("missing"));
+        assertFalse(store.containsId("b"));
+        assertEquals(-1, store.indexOfId("b"));
+        assertEquals("ace", ids(store));
+        assertEquals(2, store.indexOfId("e"));
+
+        // Replace keeps position, adding existing ID moves entry
+        VaultEntry replacement = entry("c");
+        assertTrue(store.replace(replacement));
+        assertFalse(store.replace(entry("x")));
+        assertSame(replacement, store.get(1));
+        store.addFirst(entry("e"));
+        assertEquals("eac", ids(store));
+
+        store.clear();
+        assertEquals(0, store.size());
+        assertNull(store.getById("a"));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void view_isReadOnly() {
+        VaultUtils vaultUtils = new VaultUtils(new File("vaults"), null, new String[2048]);
+        vaultUtils.addEntry(entry("a"));
+        vaultUtils.getVaultEntries().add(entry("b"));
+    }
+
+    @Test
+    public void randomOperations_matchArrayList() {
+        Random random = new Random(42);
+        EntryStore store = new EntryStore();
+        ArrayList<VaultEntry> expected = new ArrayList<>();
+        int nextId = 0;
+        for (int step = 0; step < 5000; step++) {
+            int operation = random.nextInt(10);
+            if (operation < 3 || expected.isEmpty()) {
+                VaultEntry entry = entry(String.valueOf(nextId++));
+                store.addFirst(entry);
+                expected.add(0, entry);
+            } else if (operation < 5) {
+                VaultEntry entry = entry(String.valueOf(nextId++));
+                store.addLast(entry);
+                expected.add(entry);
+            } else if (operation < 8) {
+                VaultEntry entry = expected.remove(random.nextInt(expected.size()));
+                assertSame(entry, store.removeById(entry.getId()));
+            } else {
+                int index = random.nextInt(expected.size());
+                VaultEntry entry = entry(expected.get(index).getId());
+                assertTrue(store.replace(entry));
+                expected.set(index, entry);
+            }
+            if (step % 97 == 0) assertSameOrder(expected, store);
+        }
+        assertSameOrder(expected, store);
+    }
+
+    /**
+     * Lookup of every entry by ID (as in syncTo()). Run with ./gradlew test -Pbenchmark=true
+     */
+    @Test
+    public void benchmark_lookupById() {
+        Assume.assumeTrue(Boolean.getBoolean("benchmark"));
+
+        for (int size : new int[]{1000, 10000, 50000}) {
+            ArrayList<VaultEntry> list = new ArrayList<>();
+            EntryStore store = new EntryStore();
+            for (int i = 0; i < size; i++) {
+                VaultEntry entry = new VaultEntry(null, "site", "user", "pass", "");
+                list.add(entry);
+                store.addLast(entry);
+            }
+
+            long timeStarted = System.nanoTime();
+            int found = 0;
+            for (VaultEntry entry : list) {
+                for (VaultEntry candidate : list) {
+                    if (candidate.getId().equals(entry.getId())) {
+                        found++;
+                        break;
+                    }
+                }
+            }
+            long linear = System.nanoTime() - timeStarted;
+
+            timeStarted = System.nanoTime();
+            for (VaultEntry entry : list)
+                if (store.getById(entry.getId()) != null) found--;
+            long hashed = System.nanoTime() - timeStarted;
+
+            assertEquals(0, found);
+            System.out.printf("%d entries: linear %.2f ms, indexed %.2f ms%n", size, linear / 1e6, hashed / 1e6);
+        }
+    }
+
+    private static String ids(List<VaultEntry> entries) {
+        StringBuilder ids = new StringBuilder();
+        for (VaultEntry entry : entries) ids.append(entry.getId());
+        return ids.toString();
+    }
+}
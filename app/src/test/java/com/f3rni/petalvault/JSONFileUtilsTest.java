@@ -0,0 +1,122 @@
+package com.f3rni.petalvault;
+
+import static org.junit.Assert.*;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.nio.file.Files;
+
+public class JSONFileUtilsTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void writeJson_matchesToString() throws Exception {
+        JSONObject json = sampleVault("name \"quoted\" \\ / \n\t\u0001 \u2028 \u00fc\u6f22 \ud83d\udd11", 3);
+        json.put("number", 1.5);
+        json.put("flag", true);
+        json.put("nothing", JSONObject.NULL);
+
+        StringWriter writer = new StringWriter();
+        JSONFileUtils.writeJson(writer, json);
+        assertEquals(json.toString(), new JSONObject(writer.toString()).toString());
+
+        // Compact output
+        assertFalse(writer.toString().contains("\n"));
+    }
+
+    @Test
+    public void writeJsonToFile_replacesFile() throws Exception {
+        File file = new File(folder.getRoot(), "vault.json");
+        assertTrue(JSONFileUtils.writeJsonToFile(file, sampleVault("first", 10)));
+        JSONObject second = sampleVault("second", 20);
+        assertTrue(JSONFileUtils.writeJsonToFile(file, second));
+
+        assertEquals(second.toString(), JSONFileUtils.readJsonFromFile(file).toString());
+        assertFalse(new File(folder.getRoot(), "vault.json" + JSONFileUtils.TEMP_SUFFIX).exists());
+    }
+
+    @Test
+    public void writeJsonToFile_keepsOldFileOnCrashAtAnyOffset() throws Exception {
+        File file = new File(folder.getRoot(), "vault.json");
+        File tempFile = new File(folder.getRoot(), "vault.json" + JSONFileUtils.TEMP_SUFFIX);
+        assertTrue(JSONFileUtils.writeJsonToFile(file, sampleVault("old", 5)));
+        byte[] old = Files.readAllBytes(file.toPath());
+
+        JSONObject vaultNew = sampleVault("new", 5);
+        StringWriter writer = new StringWriter();
+        JSONFileUtils.writeJson(writer, vaultNew);
+        int size = writer.toString().getBytes("UTF-8").length;
+
+        // Fail at each byte offset (including right before sync and rename)
+        for (int offset = 0; offset <= size; offset++) {
+            int failAt = offset;
+            boolean failOnFlush = offset == size;
+            assertFalse(JSONFileUtils.writeJsonToFile(file, vaultNew, out -> new FailingOutputStream(out, failAt, failOnFlush)));
+            assertArrayEquals("Offset " + offset, old, Files.readAllBytes(file.toPath()));
+            assertFalse(tempFile.exists());
+        }
+
+        // Next successful save replaces it
+        assertTrue(JSONFileUtils.writeJsonToFile(file, vaultNew));
+        assertEquals(vaultNew.toString(), JSONFileUtils.readJsonFromFile(file).toString());
+    }
+
+    private static JSONObject sampleVault(String name, int entries) throws Exception {
+        JSONObject vault = new JSONObject();
+        vault.put("name", name);
+        vault.put("version", "3.0.0");
+        JSONArray array = new JSONArray();
+        for (int i = 0; i < entries; i++) {
+            JSONObject entry = new JSONObject();
+            entry.put("v", CryptoUtils.ENTRY_VERSION);
+            entry.put("enc", CryptoUtils.base64Encode(CryptoUtils.generateRandom(30)));
+            entry.put("iv", CryptoUtils.base64Encode(CryptoUtils.generateRandom(12)));
+            array.put(entry);
+        }
+        vault.put("entries", array);
+        return vault;
+    }
+
+    /**
+     * Simulates crash: throws after failAt bytes (or on flush if failOnFlush)
+     */
+    private static class FailingOutputStream extends FilterOutputStream {
+        private final int failAt;
+        private final boolean failOnFlush;
+        private int written;
+
+        FailingOutputStream(OutputStream out, int failAt, boolean failOnFlush) {
+            super(out);
+            this.failAt = failAt;
+            this.failOnFlush = failOnFlush;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (written >= failAt && !failOnFlush) throw new IOException("Crash at " + written);
+            out.write(b);
+            written++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            for (int i = 0; i < len; i++) write(b[off + i]);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (failOnFlush) throw new IOException("Crash before sync");
+            super.flush();
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.f3rni.petalvault;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class KdfCalibratorTest {
+    private static final long MB = 1024 * 1024;
+    private static final long SECOND = 1000000000L;
+
+    @Test
+    public void choose_fitsTargetTime() {
+        // N=2048 takes 10 ms -> N=131072 takes 640 ms, N=262144 would take 1280 ms
+        CryptoUtils.KdfParams kdfParams = KdfCalibrator.chooseScrypt(10000000L, SECOND, 1024 * MB, 4, 8);
+        assertEquals(131072, kdfParams.n);
+        assertEquals(KdfCalibrator.R, kdfParams.r);
+        assertEquals(4, kdfParams.p);
+    }
+
+    @Test
+    public void choose_fitsMemoryBudget() {
+        // Very fast device with 128 MB for 4 concurrent lanes -> 2 lanes of 64 MB -> N=65536
+        CryptoUtils.KdfParams kdfParams = KdfCalibrator.chooseScrypt(1000L, SECOND, 128 * MB, 4, 4);
+        assertEquals(65536, kdfParams.n);
+        assertEquals(2, kdfParams.p);
+
+        // Lanes that don't run concurrently don't need memory
+        kdfParams = KdfCalibrator.chooseScrypt(1000L, SECOND, 64 * MB, 4, 1);
+        assertEquals(65536, kdfParams.n);
+        assertEquals(4, kdfParams.p);
+    }
+
+    @Test
+    public void choose_neverMakesLanesCheaper() {
+        // Not even one lane fits -> single lane of legacy cost instead of N=16384 lanes
+        CryptoUtils.KdfParams kdfParams = KdfCalibrator.chooseScrypt(1000L, SECOND, 32 * MB, 4, 4);
+        assertEquals(KdfCalibrator.N_LANE_MIN, kdfParams.n);
+        assertEquals(1, kdfParams.p);
+    }
+
+    @Test
+    public void choose_staysWithinBounds() {
+        // Slow device still gets N_LANE_MIN
+        assertEquals(KdfCalibrator.N_LANE_MIN, KdfCalibrator.chooseScrypt(SECOND, SECOND, 1024 * MB, 1, 1).n);
+
+        // Fast device is capped by N_MAX
+        assertEquals(KdfCalibrator.N_MAX, KdfCalibrator.chooseScrypt(1L, SECOND, 1024 * 1024 * MB, 4, 4).n);
+    }
+
+    @Test
+    public void chooseArgon2id_fitsTargetTimeAndMemory() {
+        // m=2048 KiB takes 10 ms -> m=65536 KiB takes 320 ms, m=131072 KiB would take 640 ms, but needs 128 MiB
+        CryptoUtils.KdfParams kdfParams = KdfCalibrator.chooseArgon2id(10000000L, SECOND, 100 * MB, 4);
+        assertEquals(CryptoUtils.KdfParams.TYPE_ARGON2ID, kdfParams.type);
+        assertEquals(65536, kdfParams.m);
+        assertEquals(KdfCalibrator.T, kdfParams.t);
+        assertEquals(4, kdfParams.p);
+
+        // Slow device still gets M_MIN
+        assertEquals(KdfCalibrator.M_MIN, KdfCalibrator.chooseArgon2id(SECOND, SECOND, 1024 * MB, 1).m);
+    }
+}
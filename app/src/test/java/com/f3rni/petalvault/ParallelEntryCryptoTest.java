@@ -0,0 +1,225 @@
+package com.f3rni.petalvault;
+
+import static org.junit.Assert.*;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+public class ParallelEntryCryptoTest {
+    private static final int ENTRIES = 500;
+
+    private int thresholdOriginal;
+
+    @Before
+    public void setUp() {
+        // Small threshold to split the job between threads
+        thresholdOriginal = ParallelEntryCrypto.getParallelThreshold();
+        ParallelEntryCrypto.setParallelThreshold(8);
+    }
+
+    @After
+    public void tearDown() {
+        ParallelEntryCrypto.setParallelThreshold(thresholdOriginal);
+    }
+
+    @Test
+    public void incrementalEncryption_decryptsIdentically() throws Exception {
+        byte[] key = CryptoUtils.generateRandom(32);
+        List<VaultEntry> entries = new ArrayList<>();
+        for (int i = 0; i < ENTRIES; i++)
+            entries.add(new VaultEntry(null, "site" + i + ".com", "user" + i, "pass" + i, i % 7 == 0 ? "notes " + i : ""));
+
+        // Initial save encrypts everything
+        assertEquals(ENTRIES, ParallelEntryCrypto.encrypt(entries, key, false, null));
+        JSONArray encryptedBefore = toArray(entries);
+
+        // Change some entries
+        entries.get(0).setPassword("changed 0");
+        entries.get(123).setSite("changed.org");
+        entries.get(ENTRIES - 1).setNotes("changed notes");
+        entries.add(0, new VaultEntry(null, "new.com", "new", "new", ""));
+
+        // Only changed and new entries must be encrypted
+        assertEquals(4, ParallelEntryCrypto.encrypt(entries, key, false, null));
+        JSONArray encryptedAfter = toArray(entries);
+
+        // Unchanged entries keep their ciphertext
+        assertEquals(encryptedBefore.getJSONObject(50).getString("enc"), encryptedAfter.getJSONObject(51).getString("enc"));
+        assertNotEquals(encryptedBefore.getJSONObject(123).getString("enc"), encryptedAfter.getJSONObject(124).getString("enc"));
+
+        // Output decrypts to the same entries in the same order
+        List<VaultEntry> decrypted = ParallelEntryCrypto.decrypt(encryptedAfter, key, null);
+        assertEquals(entries.size(), decrypted.size());
+        for (int i = 0; i < entries.size(); i++) {
+            assertTrue("Entry " + i + " differs", entries.get(i).equals(decrypted.get(i)));
+            assertFalse(decrypted.get(i).isDirty());
+        }
+
+        // Same result as a full re-encryption
+        assertEquals(entries.size(), ParallelEntryCrypto.encrypt(entries, key, true, null));
+        List<VaultEntry> decryptedFull = ParallelEntryCrypto.decrypt(toArray(entries), key, null);
+        for (int i = 0; i < entries.size(); i++)
+            assertTrue(decryptedFull.get(i).equals(decrypted.get(i)));
+    }
+
+    @Test
+    public void decrypt_failsOnWrongKey() throws Exception {
+        byte[] key = CryptoUtils.generateRandom(32);
+        List<VaultEntry> entries = new ArrayList<>();
+        for (int i = 0; i < 100; i++) entries.add(new VaultEntry(null, "site" + i, "user", "pass", ""));
+        ParallelEntryCrypto.encrypt(entries, key, true, null);
+
+        try {
+            ParallelEntryCrypto.decrypt(toArray(entries), CryptoUtils.generateRandom(32), null);
+            fail("Decryption with wrong key must fail");
+        } catch (Exception ignored) {
+        }
+    }
+
+    @Test
+    public void legacyEntries_areUpgradedOnSave() throws Exception {
+        byte[] key = CryptoUtils.generateRandom(32);
+        EntryCodec codec = EntryCodec.get();
+        JSONArray legacy = new JSONArray();
+        for (int i = 0; i < 100; i++) {
+            VaultEntry entry = new VaultEntry(null, "site" + i, "user", "pass", "");
+            byte[] data = entry.getAsJSON().toString().substring(1).replaceFirst("}$", "").getBytes("UTF-8");
+            byte[] iv = CryptoUtils.generateRandom(16);
+            int length = codec.encryptCbc(data, data.length, key, iv);
+            JSONObject encrypted = new JSONObject();
+            encrypted.put("enc", CryptoUtils.base64Encode(java.util.Arrays.copyOf(codec.buffer(), length)));
+            encrypted.put("iv", CryptoUtils.base64Encode(iv));
+            legacy.put(encrypted);
+        }
+
+        // Legacy entries are readable, but stay dirty
+        List<VaultEntry> entries = ParallelEntryCrypto.decrypt(legacy, key, null);
+        for (VaultEntry entry : entries) assertTrue(entry.isDirty());
+
+        // Next incremental save re-encrypts them in the current format
+        assertEquals(100, ParallelEntryCrypto.encrypt(entries, key, false, null));
+        JSONArray upgraded = toArray(entries);
+        for (int i = 0; i < upgraded.length(); i++)
+            assertEquals(CryptoUtils.ENTRY_VERSION, CryptoUtils.getEntryVersion(upgraded.getJSONObject(i)));
+        List<VaultEntry> decrypted = ParallelEntryCrypto.decrypt(upgraded, key, null);
+        for (int i = 0; i < entries.size(); i++) {
+            assertTrue(entries.get(i).equals(decrypted.get(i)));
+            assertFalse(decrypted.get(i).isDirty());
+        }
+    }
+
+    @Test
+    public void jsonEntries_areUpgradedToRecords() throws Exception {
+        byte[] key = CryptoUtils.generateRandom(32);
+        JSONArray split = new JSONArray();
+        for (int i = 0; i < 100; i++)
+            split.put(encryptEntrySplit(new VaultEntry(null, "site" + i, "user", "pass" + i, "notes").getAsJSON(), key));
+
+        // v4 entries are readable, but stay dirty
+        List<VaultEntry> entries = ParallelEntryCrypto.decrypt(split, key, null);
+        for (VaultEntry entry : entries) assertTrue(entry.isDirty());
+        assertEquals("pass42", entries.get(42).getPassword());
+
+        assertEquals(100, ParallelEntryCrypto.encrypt(entries, key, false, null));
+        JSONArray upgraded = toArray(entries);
+        assertEquals(CryptoUtils.ENTRY_VERSION_RECORD, CryptoUtils.getEntryVersion(upgraded.getJSONObject(0)));
+        List<VaultEntry> decrypted = ParallelEntryCrypto.decrypt(upgraded, key, null);
+        for (int i = 0; i < entries.size(); i++) assertTrue(entries.get(i).equals(decrypted.get(i)));
+
+        // Generic JSON path reads records too
+        assertEquals(entries.get(7).getAsJSON().toString(), CryptoUtils.decryptEntry(upgraded.getJSONObject(7), key).toString());
+    }
+
+    @Test
+    public void decrypt_loadsSecretsOnDemand() throws Exception {
+        byte[] key = CryptoUtils.generateRandom(32);
+        List<VaultEntry> entries = new ArrayList<>();
+        for (int i = 0; i < 100; i++) entries.add(new VaultEntry(null, "site" + i, "user" + i, "pass" + i, "notes " + i));
+        ParallelEntryCrypto.encrypt(entries, key, true, null);
+
+        // Only index part is decrypted
+        List<VaultEntry> decrypted = ParallelEntryCrypto.decrypt(toArray(entries), key, null);
+        for (int i = 0; i < decrypted.size(); i++) {
+            assertEquals("site" + i, decrypted.get(i).getSite());
+            assertEquals("user" + i, decrypted.get(i).getUsername());
+            assertFalse(decrypted.get(i).isSecretLoaded());
+        }
+
+        // Secret is decrypted on first access
+        assertEquals("pass7", decrypted.get(7).getPassword());
+        assertTrue(decrypted.get(7).isSecretLoaded());
+        assertEquals("notes 7", decrypted.get(7).getNotes());
+        assertFalse(decrypted.get(7).isDirty());
+        assertFalse(decrypted.get(8).isSecretLoaded());
+
+        // Untouched entries are saved without decrypting their secret
+        decrypted.get(9).setSite("changed");
+        assertEquals(1, ParallelEntryCrypto.encrypt(decrypted, key, false, null));
+        assertFalse(decrypted.get(8).isSecretLoaded());
+        assertEquals(entries.get(8).getEncrypted().getString("sec"), decrypted.get(8).getEncrypted().getString("sec"));
+
+        List<VaultEntry> reloaded = ParallelEntryCrypto.decrypt(toArray(decrypted), key, null);
+        assertEquals("changed", reloaded.get(9).getSite());
+        assertEquals("pass9", reloaded.get(9).getPassword());
+
+        // Empty secret part
+        decrypted.get(10).setPassword("");
+        decrypted.get(10).setNotes("");
+        ParallelEntryCrypto.encrypt(decrypted, key, false, null);
+        reloaded = ParallelEntryCrypto.decrypt(toArray(decrypted), key, null);
+        assertEquals("", reloaded.get(10).getPassword());
+        assertEquals("", reloaded.get(10).getNotes());
+    }
+
+    /**
+     * Encrypts index part (id, site, user) and secret part (everything else) as JSON separately, as v4 did
+     */
+    private static JSONObject encryptEntrySplit(JSONObject decrypted, byte[] key) throws Exception {
+        JSONObject index = new JSONObject();
+        JSONObject secret = new JSONObject();
+        Iterator<String> keys = decrypted.keys();
+        while (keys.hasNext()) {
+            String name = keys.next();
+            if (name.equals("id") || name.equals("site") || name.equals("user")) index.put(name, decrypted.get(name));
+            else secret.put(name, decrypted.get(name));
+        }
+
+        JSONObject encrypted = new JSONObject();
+        encrypted.put("v", CryptoUtils.ENTRY_VERSION_SPLIT);
+        encrypted.put("d", EntryDictionary.CURRENT);
+        byte[] iv = CryptoUtils.generateRandom(EntryCodec.GCM_IV_LENGTH);
+        encrypted.put("enc", encryptJson(index, key, iv));
+        encrypted.put("iv", CryptoUtils.base64Encode(iv));
+        byte[] secIv = CryptoUtils.generateRandom(EntryCodec.GCM_IV_LENGTH);
+        encrypted.put("sec", encryptJson(secret, key, secIv));
+        encrypted.put("sec_iv", CryptoUtils.base64Encode(secIv));
+        return encrypted;
+    }
+
+    /**
+     * @return JSON content without braces, compressed and encrypted as base64
+     */
+    private static String encryptJson(JSONObject json, byte[] key, byte[] iv) throws Exception {
+        String content = json.toString().replace("\\/", "/");
+        byte[] data = content.substring(1, content.length() - 1).getBytes(StandardCharsets.UTF_8);
+        return CryptoPipeline.get().encryptToBase64(data, data.length, key, iv, EntryDictionary.CURRENT);
+    }
+
+    private static JSONArray toArray(List<VaultEntry> entries) throws Exception {
+        JSONArray array = new JSONArray();
+        for (VaultEntry entry : entries) {
+            JSONObject encrypted = entry.getEncrypted();
+            assertNotNull(encrypted);
+            array.put(encrypted);
+        }
+        return array;
+    }
+}
@@ -0,0 +1,53 @@
+package com.f3rni.petalvault;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+import org.spongycastle.crypto.generators.SCrypt;
+import org.spongycastle.util.encoders.Hex;
+
+import java.nio.charset.StandardCharsets;
+
+public class ScryptKdfTest {
+    private static void assertVector(String password, String salt, int n, int r, int p, String expected) {
+        byte[] derived = ScryptKdf.generate(password.getBytes(StandardCharsets.UTF_8), salt.getBytes(StandardCharsets.UTF_8), n, r, p, 64);
+        assertEquals(expected, Hex.toHexString(derived));
+    }
+
+    @Test
+    public void generate_matchesRfc7914Vectors() {
+        assertVector("", "", 16, 1, 1,
+                "77d6576238657b203b19ca42c18a0497f16b4844e3074ae8dfdffa3fede21442fcd0069ded0948f8326a753a0fc81f17e8d3e0fb2e0d3628cf35e20c38d18906");
+        assertVector("password", "NaCl", 1024, 8, 16,
+                "fdbabe1c9d3472007856e7190d01e9fe7c6ad7cbc8237830e77376634b3731622eaf30d92e22a3886ff109279d9830dac727afb94a83ee6d8360cbdfa2cc0640");
+        assertVector("pleaseletmein", "SodiumChloride", 16384, 8, 1,
+                "7023bdcb3afd7348461c06cd81fd38ebfda8fbba904f8e3ea9b543f6545da1f2d5432955613f0fcf62d49705242a9af9e61e85dc0d651e40dfcf017b45575887");
+    }
+
+    @Test
+    public void generate_matchesSpongyCastle() {
+        byte[] password = CryptoUtils.generateRandom(16);
+        byte[] salt = CryptoUtils.generateRandom(32);
+        assertArrayEquals(SCrypt.generate(password, salt, 65536, 8, 1, 32), ScryptKdf.generate(password, salt, 65536, 8, 1, 32));
+
+        // Smaller parameters after the large ones reuse the same arena
+        assertArrayEquals(SCrypt.generate(password, salt, 1024, 4, 3, 48), ScryptKdf.generate(password, salt, 1024, 4, 3, 48));
+
+        // Released arena is allocated again
+        ScryptKdf.releaseArena();
+        assertArrayEquals(SCrypt.generate(password, salt, 1024, 4, 3, 48), ScryptKdf.generate(password, salt, 1024, 4, 3, 48));
+    }
+
+    @Test
+    public void generate_parallelLanesMatchSpongyCastle() {
+        byte[] password = CryptoUtils.generateRandom(16);
+        byte[] salt = CryptoUtils.generateRandom(32);
+        CryptoUtils.KdfParams params = new CryptoUtils.KdfParams(16384, 8, 4);
+        assertArrayEquals(SCrypt.generate(password, salt, params.n, params.r, params.p, 32), ScryptKdf.generate(password, salt, params.n, params.r, params.p, 32));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void generate_rejectsCostNotPowerOfTwo() {
+        ScryptKdf.generate(new byte[0], new byte[0], 1000, 8, 1, 32);
+    }
+}
@@ -0,0 +1,60 @@
+package com.f3rni.petalvault;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+/**
+ * Test wordlist, random mnemonic and vaults named "Vault" created with it
+ */
+class TestVaults {
+    final String[] wordlist = new String[2048];
+    final String[] mnemonic;
+
+    TestVaults() {
+        for (int i = 0; i < wordlist.length; i++) wordlist[i] = "word" + i;
+        Mnemonic mnemonicGenerator = new Mnemonic(wordlist);
+        mnemonicGenerator.generateRandom();
+        mnemonic = mnemonicGenerator.getMnemonicArray();
+    }
+
+    static ConfigManager config(File dir) {
+        return new ConfigManager(new File(dir, "config.json"), "3.0.0");
+    }
+
+    static File vaultsDir(File dir) {
+        return new File(dir, "vaults");
+    }
+
+    VaultUtils vaultUtils(File dir, ConfigManager configManager) {
+        return new VaultUtils(vaultsDir(dir), configManager, wordlist);
+    }
+
+    /**
+     * Creates vault without password
+     *
+     * @param dir           data directory with "vaults" inside
+     * @param configManager config of the data directory
+     * @return relative path of created vault
+     */
+    String create(File dir, ConfigManager configManager) throws Exception {
+        VaultUtils vaultUtils = vaultUtils(dir, configManager);
+        assertTrue(vaultUtils.create("Vault", mnemonic, null));
+        return vaultUtils.getNamePath("Vault", null).relPath;
+    }
+
+    /**
+     * Opens vault with new VaultUtils as after app restart
+     *
+     * @param dir           data directory with "vaults" inside
+     * @param configManager config of the data directory
+     * @param relPath       relative path of the vault
+     * @return VaultUtils with opened vault
+     */
+    VaultUtils open(File dir, ConfigManager configManager, String relPath) {
+        VaultUtils vaultUtils = vaultUtils(dir, configManager);
+        vaultUtils.refreshAvailable();
+        assertTrue(vaultUtils.open(relPath, mnemonic));
+        return vaultUtils;
+    }
+}
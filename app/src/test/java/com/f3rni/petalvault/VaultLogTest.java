@@ -0,0 +1,202 @@
+package com.f3rni.petalvault;
+
+import static org.junit.Assert.*;
+
+import org.json.JSONObject;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class VaultLogTest {
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final TestVaults vaults = new TestVaults();
+
+    private static VaultLog.Record record(byte op, int i) throws Exception {
+        JSONObject data = new JSONObject();
+        data.put("enc", "entry" + i);
+        return new VaultLog.Record(op, data);
+    }
+
+    private static List<String> ids(List<VaultEntry> entries) {
+        ArrayList<String> ids = new ArrayList<>();
+        for (VaultEntry entry : entries) ids.add(entry.getId());
+        return ids;
+    }
+
+    private VaultUtils reopen(File dir, String relPath) {
+        // Log is enabled by default
+        return vaults.open(dir, TestVaults.config(dir), relPath);
+    }
+
+    @Test
+    public void append_isReadBack() throws Exception {
+        File vaultFile = temporaryFolder.newFile("vault.json");
+        VaultLog log = new VaultLog(vaultFile);
+        assertTrue(log.read("id").isEmpty());
+
+        log.append("id", Arrays.asList(record(VaultLog.OP_PUT, 0), record(VaultLog.OP_DELETE, 1)));
+        log.append("id", Arrays.asList(record(VaultLog.OP_PUT, 2)));
+        assertEquals(3, log.getRecordsCount());
+
+        ArrayList<VaultLog.Record> records = new VaultLog(vaultFile).read("id");
+        assertEquals(3, records.size());
+        assertEquals(VaultLog.OP_PUT, records.get(0).op);
+        assertEquals(VaultLog.OP_DELETE, records.get(1).op);
+        assertEquals("entry2", records.get(2).data.getString("enc"));
+    }
+
+    @Test
+    public void logOfOtherVaultFile_isDeleted() throws Exception {
+        File vaultFile = temporaryFolder.newFile("vault.json");
+        VaultLog log = new VaultLog(vaultFile);
+        log.append("old", Arrays.asList(record(VaultLog.OP_PUT, 0)));
+
+        assertTrue(new VaultLog(vaultFile).read("new").isEmpty());
+        assertFalse(log.getFile().exists());
+    }
+
+    @Test
+    public void tornTail_isTruncated() throws Exception {
+        File vaultFile = temporaryFolder.newFile("vault.json");
+        VaultLog log = new VaultLog(vaultFile);
+        log.append("id", Arrays.asList(record(VaultLog.OP_PUT, 0)));
+        long validLength = log.getFile().length();
+        log.append("id", Arrays.asList(record(VaultLog.OP_PUT, 1)));
+        long fullLength = log.getFile().length();
+        byte[] full = Files.readAllBytes(log.getFile().toPath());
+
+        // Crash at every offset of the second append
+        for (long length = validLength; length < fullLength; length++) {
+            try (RandomAccessFile file = new RandomAccessFile(log.getFile(), "rw")) {
+                file.setLength(0);
+                file.write(full, 0, (int) length);
+            }
+            ArrayList<VaultLog.Record> records = new VaultLog(vaultFile).read("id");
+            assertEquals(1, records.size());
+            assertEquals("entry0", records.get(0).data.getString("enc"));
+            assertEquals(validLength, log.getFile().length());
+        }
+
+        // Corrupted last record
+        full[full.length - 2] ^= 1;
+        Files.write(log.getFile().toPath(), full);
+        assertEquals(1, new VaultLog(vaultFile).read("id").size());
+        assertEquals(validLength, log.getFile().length());
+
+        // Appending after recovery
+        log = new VaultLog(vaultFile);
+        log.read("id");
+        log.append("id", Arrays.asList(record(VaultLog.OP_DELETE, 2)));
+        assertEquals(2, new VaultLog(vaultFile).read("id").size());
+    }
+
+    @Test
+    public void changes_areAppendedAndReplayed() throws Exception {
+        File dir = temporaryFolder.newFolder("data");
+        String relPath = vaults.create(dir, TestVaults.config(dir));
+        VaultUtils vaultUtils = reopen(dir, relPath);
+        for (int i = 9; i >= 0; i--)
+            vaultUtils.addEntry(new VaultEntry(null, "site" + i, "user" + i, "pass" + i, ""));
+        assertTrue(vaultUtils.save(relPath));
+
+        File vaultFile = new File(TestVaults.vaultsDir(dir), relPath);
+        File logFile = new VaultLog(vaultFile).getFile();
+        long vaultFileLength = vaultFile.length();
+        long lastModified = vaultFile.lastModified();
+
+        // Edit, add to the top and delete
+        EntryStore entries = vaultUtils.getEntryStore();
+        entries.get(3).setPassword("changed");
+        entries.addFirst(new VaultEntry(null, "new1", "user", "pass", "notes"));
+        entries.addFirst(new VaultEntry(null, "new2", "user", "", ""));
+        entries.removeById(entries.get(7).getId());
+        assertTrue(vaultUtils.save(relPath));
+        VaultEntry deleted = entries.removeById(entries.get(0).getId());
+        assertTrue(vaultUtils.save(relPath));
+
+        // Vault file is untouched
+        assertTrue(logFile.exists());
+        assertEquals(vaultFileLength, vaultFile.length());
+        assertEquals(lastModified, vaultFile.lastModified());
+
+        VaultUtils reopened = reopen(dir, relPath);
+        assertEquals(ids(entries), ids(reopened.getVaultEntries()));
+        for (int i = 0; i < entries.size(); i++)
+            assertTrue(entries.get(i).equals(reopened.getVaultEntries().get(i)));
+        assertNull(reopened.getEntryByID(deleted.getId()));
+
+        // Reordered entries can't be logged -> vault file is rewritten
+        entries = reopened.getEntryStore();
+        entries.addLast(entries.removeById(entries.get(0).getId()));
+        assertTrue(reopened.save(relPath));
+        assertFalse(logFile.exists());
+        assertEquals(ids(entries), ids(reopen(dir, relPath).getVaultEntries()));
+    }
+
+    @Test
+    public void compaction_rewritesVaultFile() throws Exception {
+        File dir = temporaryFolder.newFolder("data");
+        String relPath = vaults.create(dir, TestVaults.config(dir));
+        VaultUtils vaultUtils = reopen(dir, relPath);
+        vaultUtils.addEntry(new VaultEntry(null, "site", "user", "pass", ""));
+        assertTrue(vaultUtils.save(relPath));
+        File logFile = new VaultLog(new File(TestVaults.vaultsDir(dir), relPath)).getFile();
+
+        // Each save replaces the same entry
+        int saves = 0;
+        while (!vaultUtils.needsCompaction()) {
+            vaultUtils.getVaultEntries().get(0).setPassword("pass" + saves++);
+            assertTrue(vaultUtils.save(relPath));
+            assertTrue(saves < 1000);
+        }
+        assertTrue(logFile.exists());
+        assertFalse(vaultUtils.compact("other.json"));
+        assertTrue(vaultUtils.compact(relPath));
+        assertFalse(logFile.exists());
+        assertFalse(vaultUtils.needsCompaction());
+
+        VaultUtils reopened = reopen(dir, relPath);
+        assertEquals(1, reopened.getVaultEntries().size());
+        assertEquals("pass" + (saves - 1), reopened.getVaultEntries().get(0).getPassword());
+    }
+
+    /**
+     * Compares latency of editing one entry with rewriting vault file and with appending to the log.
+     * Run with ./gradlew test -Pbenchmark=true
+     */
+    @Test
+    public void benchmark_editLatency() throws Exception {
+        Assume.assumeTrue(Boolean.getBoolean("benchmark"));
+
+        for (int size : new int[]{100, 1000, 10000}) {
+            File dir = temporaryFolder.newFolder("data" + size);
+            String relPath = vaults.create(dir, TestVaults.config(dir));
+            VaultUtils vaultUtils = reopen(dir, relPath);
+            for (int i = size - 1; i >= 0; i--)
+                vaultUtils.addEntry(new VaultEntry(null, "site" + i, "user" + i, "pass" + i, "notes" + i));
+            assertTrue(vaultUtils.save(relPath));
+
+            int edits = 20;
+            long[] times = new long[2];
+            for (int mode = 0; mode < 2; mode++) {
+                long timeStarted = System.nanoTime();
+                for (int i = 0; i < edits; i++) {
+                    vaultUtils.getVaultEntries().get(i).setPassword("edited" + i);
+                    assertTrue(mode == 0 ? vaultUtils.compact(relPath) : vaultUtils.save(relPath));
+                }
+                times[mode] = (System.nanoTime() - timeStarted) / edits;
+            }
+            System.out.printf("%d entries: rewrite %.2f ms / edit, log %.2f ms / edit%n", size, times[0] / 1e6, times[1] / 1e6);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.f3rni.petalvault;
+
+import static org.junit.Assert.*;
+
+import org.json.JSONObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+
+public class VaultManifestTest {
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private JSONObject header() throws Exception {
+        JSONObject header = new JSONObject();
+        header.put("name", "Vault");
+        header.put("version", "3.0.0");
+        header.put("master_salt", "salt");
+        return header;
+    }
+
+    private File writeFile(File dir, String name, String content) throws Exception {
+        File file = new File(dir, name);
+        try (FileOutputStream outputStream = new FileOutputStream(file)) {
+            outputStream.write(content.getBytes(StandardCharsets.UTF_8));
+        }
+        return file;
+    }
+
+    @Test
+    public void put_isPersistedAndValidated() throws Exception {
+        File dir = temporaryFolder.newFolder("vaults");
+        File vaultFile = writeFile(dir, "a.json", "{\"name\":\"Vault\"}");
+
+        VaultManifest manifest = new VaultManifest(dir);
+        assertNull(manifest.get("a.json", vaultFile));
+        manifest.put("a.json", vaultFile, header(), 42);
+        manifest.save();
+
+        // Reload from the disk
+        JSONObject record = new VaultManifest(dir).get("a.json", vaultFile);
+        assertNotNull(record);
+        assertEquals("Vault", record.getString("name"));
+        assertEquals("3.0.0", record.getString("version"));
+        assertTrue(record.getBoolean("salt"));
+        assertEquals(42, record.getInt("entries"));
+
+        // Same size but different modification time
+        assertTrue(vaultFile.setLastModified(vaultFile.lastModified() - 10000));
+        assertNull(new VaultManifest(dir).get("a.json", vaultFile));
+
+        // Different size
+        manifest = new VaultManifest(dir);
+        manifest.put("a.json", vaultFile, header(), 42);
+        assertNotNull(manifest.get("a.json", vaultFile));
+        long lastModified = vaultFile.lastModified();
+        try (RandomAccessFile file = new RandomAccessFile(vaultFile, "rw")) {
+            file.setLength(file.length() + 1);
+        }
+        assertTrue(vaultFile.setLastModified(lastModified));
+        assertNull(manifest.get("a.json", vaultFile));
+    }
+
+    @Test
+    public void retain_removesDeletedVaults() throws Exception {
+        File dir = temporaryFolder.newFolder("vaults");
+        File a = writeFile(dir, "a.json", "{}");
+        File b = writeFile(dir, "b.json", "{}");
+
+        VaultManifest manifest = new VaultManifest(dir);
+        manifest.put("a.json", a, header(), 1);
+        manifest.put("b.json", b, header(), 2);
+        manifest.retain(Collections.singletonList("b.json"));
+        manifest.save();
+
+        manifest = new VaultManifest(dir);
+        assertNull(manifest.get("a.json", a));
+        assertNotNull(manifest.get("b.json", b));
+    }
+
+    @Test
+    public void corruptedManifest_isIgnored() throws Exception {
+        File dir = temporaryFolder.newFolder("vaults");
+        File vaultFile = writeFile(dir, "a.json", "{}");
+        writeFile(dir, VaultManifest.FILENAME, "{\"v\":1,\"vaults\":");
+        assertNull(new VaultManifest(dir).get("a.json", vaultFile));
+    }
+
+    @Test
+    public void refreshAvailable_usesManifest() throws Exception {
+        TestVaults vaults = new TestVaults();
+        File dir = temporaryFolder.newFolder("data");
+        ConfigManager configManager = TestVaults.config(dir);
+        File vaultsDir = TestVaults.vaultsDir(dir);
+        String relPath = vaults.create(dir, configManager);
+        File vaultFile = new File(vaultsDir, relPath);
+        assertTrue(new File(vaultsDir, VaultManifest.FILENAME).exists());
+
+        // Replace vault content without changing it's size and modification time. Cached header must be used
+        long size = vaultFile.length(), lastModified = vaultFile.lastModified();
+        StringBuilder garbage = new StringBuilder();
+        while (garbage.length() < size) garbage.append('x');
+        writeFile(vaultsDir, relPath, garbage.toString());
+        assertTrue(vaultFile.setLastModified(lastModified));
+        VaultUtils fresh = vaults.vaultUtils(dir, configManager);
+        fresh.refreshAvailable();
+        assertNotNull(fresh.getNamePath("Vault", relPath));
+
+        // Changed file must be read again
+        assertTrue(vaultFile.setLastModified(lastModified - 10000));
+        fresh.refreshAvailable();
+        assertNull(fresh.getNamePath("Vault", relPath));
+    }
+}
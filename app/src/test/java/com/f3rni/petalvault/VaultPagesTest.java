@@ -0,0 +1,232 @@
+package com.f3rni.petalvault;
+
+import static org.junit.Assert.*;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class VaultPagesTest {
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final TestVaults vaults = new TestVaults();
+    private File dir;
+    private ConfigManager configManager;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = temporaryFolder.newFolder("data");
+        configManager = TestVaults.config(dir);
+        configManager.edit().putBoolean(VaultUtils.CONFIG_KEY_PAGES, true).commit();
+    }
+
+    private VaultUtils open(String relPath) {
+        return vaults.open(dir, configManager, relPath);
+    }
+
+    private String createVault(int entries) throws Exception {
+        String relPath = vaults.create(dir, configManager);
+        VaultUtils vaultUtils = open(relPath);
+        for (int i = entries - 1; i >= 0; i--)
+            vaultUtils.addEntry(new VaultEntry(null, "site" + i, "user" + i, "pass" + i, i % 3 == 0 ? "notes" + i : ""));
+        assertTrue(vaultUtils.save(relPath));
+        return relPath;
+    }
+
+    private JSONObject readPagesJSON(String relPath) throws Exception {
+        return JSONFileUtils.readJsonFromFile(new File(TestVaults.vaultsDir(dir), relPath)).getJSONObject("pages");
+    }
+
+    private static void assertSameEntries(List<VaultEntry> expected, List<VaultEntry> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++)
+            assertTrue("Entry " + i, expected.get(i).equals(actual.get(i)));
+    }
+
+    @Test
+    public void pagedVault_isReadBack() throws Exception {
+        String relPath = createVault(1000);
+        JSONObject vault = JSONFileUtils.readJsonFromFile(new File(TestVaults.vaultsDir(dir), relPath));
+        assertFalse(vault.has("entries"));
+        assertEquals(4, vault.getJSONObject("pages").getJSONArray("table").length());
+
+        VaultUtils vaultUtils = open(relPath);
+        assertEquals(1000, vaultUtils.getVaultEntries().size());
+        for (int i = 0; i < 1000; i++) {
+            VaultEntry entry = vaultUtils.getVaultEntries().get(i);
+            assertEquals("site" + i, entry.getSite());
+            assertEquals("pass" + i, entry.getPassword());
+            assertEquals(i % 3 == 0 ? "notes" + i : "", entry.getNotes());
+        }
+    }
+
+    @Test
+    public void edit_writesOnlyTouchedPages() throws Exception {
+        String relPath = createVault(1000);
+        VaultUtils vaultUtils = open(relPath);
+        JSONArray tableBefore = readPagesJSON(relPath).getJSONArray("table");
+
+        // Edit entry in the third page
+        vaultUtils.getVaultEntries().get(600).setPassword("changed");
+        assertTrue(vaultUtils.save(relPath));
+        JSONArray tableAfter = readPagesJSON(relPath).getJSONArray("table");
+        assertEquals(tableBefore.length(), tableAfter.length());
+        for (int i = 0; i < tableBefore.length(); i++)
+            assertEquals(i == 2, !tableBefore.get(i).toString().equals(tableAfter.get(i).toString()));
+
+        // Add to the top -> only the first page is written
+        vaultUtils.addEntry(new VaultEntry(null, "new", "user", "pass", ""));
+        assertTrue(vaultUtils.save(relPath));
+        JSONArray tableAdded = readPagesJSON(relPath).getJSONArray("table");
+        assertNotEquals(tableAfter.get(0).toString(), tableAdded.get(0).toString());
+        for (int i = 1; i < tableAfter.length(); i++)
+            assertEquals(tableAfter.get(i).toString(), tableAdded.get(i).toString());
+
+        // Delete, move between pages and add to the bottom
+        EntryStore entries = vaultUtils.getEntryStore();
+        entries.removeById(entries.get(300).getId());
+        entries.addLast(entries.removeById(entries.get(10).getId()));
+        entries.addLast(new VaultEntry(null, "last", "user", "", "notes"));
+        assertTrue(vaultUtils.save(relPath));
+        assertSameEntries(entries, open(relPath).getVaultEntries());
+    }
+
+    @Test
+    public void largePage_isSplit() throws Exception {
+        String relPath = createVault(10);
+        VaultUtils vaultUtils = open(relPath);
+        for (int i = 0; i < 3 * VaultPages.PAGE_SIZE; i++)
+            vaultUtils.addEntry(new VaultEntry(null, "new" + i, "user", "pass", ""));
+        assertTrue(vaultUtils.save(relPath));
+        JSONArray table = readPagesJSON(relPath).getJSONArray("table");
+        for (int i = 0; i < table.length(); i++)
+            assertTrue(table.getJSONArray(i).getInt(3) <= 2 * VaultPages.PAGE_SIZE);
+        assertSameEntries(vaultUtils.getVaultEntries(), open(relPath).getVaultEntries());
+    }
+
+    @Test
+    public void uncommittedPages_areIgnored() throws Exception {
+        String relPath = createVault(600);
+        File vaultFile = new File(TestVaults.vaultsDir(dir), relPath);
+        VaultUtils vaultUtils = open(relPath);
+        byte[] key = CryptoUtils.generateRandom(32);
+
+        // Pages appended without writing vault header (ex. crash) and then rolled back
+        VaultPages pages = new VaultPages(vaultFile, readPagesJSON(relPath));
+        ArrayList<VaultEntry> entries = new ArrayList<>(vaultUtils.getVaultEntries());
+        entries.get(0).setSite("changed");
+        ParallelEntryCrypto.encrypt(entries, key, true, null);
+        long length = pages.getFile().length();
+        pages.write(entries, Collections.singleton(entries.get(0).getId()), key, false);
+        assertTrue(pages.getFile().length() > length);
+        assertSameEntries(entries.subList(1, entries.size()), open(relPath).getVaultEntries().subList(1, entries.size()));
+        pages.rollback();
+        assertEquals(length, pages.getFile().length());
+        assertEquals("site0", open(relPath).getVaultEntries().get(0).getSite());
+    }
+
+    @Test
+    public void pages_areReadWithPositionalReads() throws Exception {
+        String relPath = createVault(300);
+        VaultPages pages = new VaultPages(new File(TestVaults.vaultsDir(dir), relPath), readPagesJSON(relPath));
+        JSONArray table = readPagesJSON(relPath).getJSONArray("table");
+        try (RandomAccessFile file = new RandomAccessFile(pages.getFile(), "r")) {
+            FileChannel channel = file.getChannel();
+            for (int i = 0; i < table.length(); i++) {
+                JSONArray pageJSON = table.getJSONArray(i);
+                VaultPages.Page page = new VaultPages.Page(pageJSON.getLong(0), pageJSON.getInt(1), CryptoUtils.base64Decode(pageJSON.getString(2)), pageJSON.getInt(3));
+                assertEquals(page.length, VaultPages.readPage(channel, page).length);
+                assertEquals(0, channel.position());
+            }
+        }
+    }
+
+    @Test
+    public void compaction_writesNewPagesFile() throws Exception {
+        String relPath = createVault(300);
+        VaultUtils vaultUtils = open(relPath);
+        File oldFile = new VaultPages(new File(TestVaults.vaultsDir(dir), relPath), readPagesJSON(relPath)).getFile();
+
+        int saves = 0;
+        while (!vaultUtils.needsCompaction()) {
+            vaultUtils.getVaultEntries().get(0).setNotes("notes" + saves++);
+            assertTrue(vaultUtils.save(relPath));
+            assertTrue(saves < 1000);
+        }
+        assertTrue(vaultUtils.compact(relPath));
+        assertFalse(vaultUtils.needsCompaction());
+        assertFalse(oldFile.exists());
+        File newFile = new VaultPages(new File(TestVaults.vaultsDir(dir), relPath), readPagesJSON(relPath)).getFile();
+        assertTrue(newFile.exists());
+        assertSameEntries(vaultUtils.getVaultEntries(), open(relPath).getVaultEntries());
+    }
+
+    @Test
+    public void largeVault_isPagedByDefault() throws Exception {
+        configManager.edit().remove(VaultUtils.CONFIG_KEY_PAGES).commit();
+        assertFalse(JSONFileUtils.readJsonFromFile(new File(TestVaults.vaultsDir(dir), createVault(100))).has("pages"));
+
+        dir = temporaryFolder.newFolder("large");
+        configManager = TestVaults.config(dir);
+        String relPath = createVault(VaultUtils.PAGES_MIN_ENTRIES);
+        assertTrue(readPagesJSON(relPath).getJSONArray("table").length() > 0);
+        assertEquals(VaultUtils.PAGES_MIN_ENTRIES, open(relPath).getVaultEntries().size());
+    }
+
+    @Test
+    public void disablingPages_movesEntriesBackToVaultFile() throws Exception {
+        String relPath = createVault(300);
+        File pagesFile = new VaultPages(new File(TestVaults.vaultsDir(dir), relPath), readPagesJSON(relPath)).getFile();
+        VaultUtils vaultUtils = open(relPath);
+
+        configManager.edit().putBoolean(VaultUtils.CONFIG_KEY_PAGES, false).commit();
+        assertTrue(vaultUtils.removeEntry(vaultUtils.getVaultEntries().get(0).getId()));
+        assertTrue(vaultUtils.save(relPath));
+        assertFalse(pagesFile.exists());
+        JSONObject vault = JSONFileUtils.readJsonFromFile(new File(TestVaults.vaultsDir(dir), relPath));
+        assertFalse(vault.has("pages"));
+        assertEquals(299, vault.getJSONArray("entries").length());
+        assertSameEntries(vaultUtils.getVaultEntries(), open(relPath).getVaultEntries());
+    }
+
+    /**
+     * Compares latency of editing one entry of large vault with rewriting vault file and with paged vault.
+     * Run with ./gradlew test -Pbenchmark=true
+     */
+    @Test
+    public void benchmark_editLatency() throws Exception {
+        Assume.assumeTrue(Boolean.getBoolean("benchmark"));
+
+        for (int size : new int[]{1000, 10000, 50000}) {
+            for (boolean paged : new boolean[]{false, true}) {
+                configManager.edit().putBoolean(VaultUtils.CONFIG_KEY_PAGES, paged).putBoolean(VaultUtils.CONFIG_KEY_LOG, false).commit();
+                dir = temporaryFolder.newFolder("data" + size + paged);
+                String relPath = createVault(size);
+
+                long timeStarted = System.nanoTime();
+                VaultUtils vaultUtils = open(relPath);
+                long openTime = System.nanoTime() - timeStarted;
+
+                int edits = 20;
+                timeStarted = System.nanoTime();
+                for (int i = 0; i < edits; i++) {
+                    vaultUtils.getVaultEntries().get(i * (size / edits)).setPassword("edited" + i);
+                    assertTrue(vaultUtils.save(relPath));
+                }
+                System.out.printf("%d entries, %s: open %.1f ms, %.2f ms / edit%n", size, paged ? "pages" : "json", openTime / 1e6, (System.nanoTime() - timeStarted) / 1e6 / edits);
+            }
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.f3rni.petalvault;
+
+import static org.junit.Assert.*;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.StringReader;
+
+public class VaultReaderTest {
+    @Test
+    public void readHeader_skipsEntries() throws Exception {
+        JSONObject vault = sampleVault(100);
+
+        VaultReader.Header header = new VaultReader(new StringReader(vault.toString())).readHeader();
+        assertEquals(100, header.entriesCount);
+        assertFalse(header.vault.has("entries"));
+        vault.remove("entries");
+        assertEquals(vault.toString(), header.vault.toString());
+
+        // No entries key
+        assertEquals(-1, new VaultReader(new StringReader(vault.toString())).readHeader().entriesCount);
+    }
+
+    @Test
+    public void nextEntry_streamsEntries() throws Exception {
+        JSONObject vault = sampleVault(50);
+        JSONArray entries = vault.getJSONArray("entries");
+
+        // Compact and pretty-printed (written by older versions) files
+        for (String text : new String[]{vault.toString(), vault.toString(4)}) {
+            VaultReader reader = new VaultReader(new StringReader(text));
+            assertTrue(reader.beginEntries());
+            for (int i = 0; i < entries.length(); i++)
+                assertEquals(entries.getJSONObject(i).toString(), reader.nextEntry().toString());
+            assertNull(reader.nextEntry());
+            assertNull(reader.nextEntry());
+        }
+
+        // Empty array
+        vault.put("entries", new JSONArray());
+        VaultReader reader = new VaultReader(new StringReader(vault.toString()));
+        assertTrue(reader.beginEntries());
+        assertNull(reader.nextEntry());
+    }
+
+    @Test
+    public void reader_rejectsTruncatedFile() throws Exception {
+        String text = sampleVault(10).toString();
+        for (int length : new int[]{0, 1, text.length() / 2, text.length() - 1}) {
+            try {
+                VaultReader reader = new VaultReader(new StringReader(text.substring(0, length)));
+                reader.readHeader();
+                fail("Truncated file (" + length + " chars) must be rejected");
+            } catch (JSONException ignored) {
+            }
+        }
+    }
+
+    private static JSONObject sampleVault(int entries) throws Exception {
+        JSONObject vault = new JSONObject();
+        vault.put("name", "Vault with \"quotes\", {braces} and [brackets] \\");
+        vault.put("version", "3.0.0");
+        vault.put("master_salt", CryptoUtils.base64Encode(CryptoUtils.generateRandom(32)));
+        vault.put("master_kdf", CryptoUtils.KDF_LEGACY.toJSON());
+        JSONObject devices = new JSONObject();
+        devices.put("phone", new JSONObject().put("v", 2).put("entries", new JSONArray().put(new JSONObject().put("enc", "x"))));
+        vault.put("devices", devices);
+
+        JSONArray array = new JSONArray();
+        for (int i = 0; i < entries; i++) {
+            JSONObject entry = new JSONObject();
+            entry.put("v", CryptoUtils.ENTRY_VERSION);
+            entry.put("enc", CryptoUtils.base64Encode(CryptoUtils.generateRandom(30)));
+            entry.put("iv", CryptoUtils.base64Encode(CryptoUtils.generateRandom(12)));
+            array.put(entry);
+        }
+        vault.put("entries", array);
+        vault.put("flag", true);
+        return vault;
+    }
+}
@@ -0,0 +1,170 @@
+package com.f3rni.petalvault;
+
+import static org.junit.Assert.*;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+
+public class VaultSyncTest {
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final TestVaults vaults = new TestVaults();
+    private VaultUtils source, target;
+    private String sourcePath, targetPath;
+
+    @Before
+    public void setUp() throws Exception {
+        // Same vault on two devices
+        File sourceDir = temporaryFolder.newFolder("source");
+        sourcePath = vaults.create(sourceDir, TestVaults.config(sourceDir));
+        source = vaults.open(sourceDir, TestVaults.config(sourceDir), sourcePath);
+        File targetDir = temporaryFolder.newFolder("target");
+        targetPath = vaults.create(targetDir, TestVaults.config(targetDir));
+        target = vaults.open(targetDir, TestVaults.config(targetDir), targetPath);
+
+        for (int i = 9; i >= 0; i--)
+            source.addEntry(new VaultEntry(null, "site" + i, "user" + i, "pass" + i, ""));
+        assertTrue(source.save(sourcePath));
+    }
+
+    @Test
+    public void syncTo_derivesSubkeysFromSyncRoot() throws Exception {
+        VaultUtils.SyncData syncData = source.syncTo("target", sourcePath);
+        assertEquals(VaultUtils.SYNC_VERSION, syncData.version);
+        assertNotNull(syncData.rootSalt);
+        assertTrue(target.syncFrom(syncData, targetPath));
+        assertEquals(10, target.getVaultEntries().size());
+
+        // Device copy is decrypted with subkey of the same root -> only changes are synced
+        source.getVaultEntries().get(3).setPassword("changed");
+        VaultUtils.SyncData syncDataNext = source.syncTo("target", sourcePath);
+        assertEquals(1, syncDataNext.actions.size());
+        assertEquals(syncData.rootSalt, syncDataNext.rootSalt);
+        assertNotEquals(syncData.salt, syncDataNext.salt);
+        assertTrue(target.syncFrom(syncDataNext, targetPath));
+        assertEquals("changed", target.getEntryByID(source.getVaultEntries().get(3).getId()).getPassword());
+
+        JSONObject device = source.getDevices().getJSONObject("target");
+        assertEquals(VaultUtils.SYNC_VERSION, device.getInt("v"));
+        assertEquals(syncData.rootSalt, device.getString("root_salt"));
+    }
+
+    @Test
+    public void syncFrom_acceptsLegacyFormat() throws Exception {
+        byte[] salt = CryptoUtils.generateRandom(32);
+        byte[] syncKey = CryptoUtils.entropyToMasterKey(source.getMnemonic().getEntropy(), salt).masterKey;
+
+        ArrayList<String> actions = new ArrayList<>();
+        VaultEntry entry = source.getVaultEntries().get(0);
+        JSONObject action = CryptoUtils.encryptEntry(entry.getAsJSON(), syncKey);
+        action.put("act", "add");
+        actions.add(action.toString());
+
+        VaultUtils.SyncData syncData = new VaultUtils.SyncData(actions, CryptoUtils.base64Encode(salt));
+        assertEquals(1, syncData.version);
+        assertTrue(target.syncFrom(syncData, targetPath));
+        assertTrue(entry.equals(target.getEntryByID(entry.getId())));
+    }
+
+    @Test
+    public void search_followsOpenSyncAndEdits() throws Exception {
+        // Built during open
+        assertTrue(source.open(sourcePath, vaults.mnemonic));
+        assertEquals(10, source.search("").size());
+        assertEquals(10, source.search("site").size());
+        assertEquals(1, source.search("SITE7").size());
+
+        // Synced entries, in the order of vault entries
+        assertTrue(target.syncFrom(source.syncTo("target", sourcePath), targetPath));
+        List<VaultEntry> found = target.search("user");
+        assertEquals(10, found.size());
+        for (int i = 0; i < found.size(); i++)
+            assertEquals("user" + i, found.get(i).getUsername());
+
+        // Add, edit and remove
+        target.addEntry(new VaultEntry(null, "new site", "someone", "", ""));
+        assertEquals("new site", target.search("new s").get(0).getSite());
+        VaultEntry entry = target.search("site3").get(0);
+        entry.setSite("renamed");
+        target.updateEntry(entry);
+        assertEquals(0, target.search("site3").size());
+        assertEquals(entry.getId(), target.search("renam").get(0).getId());
+        assertTrue(target.removeEntry(entry.getId()));
+        assertEquals(0, target.search("renam").size());
+
+        // Cleared on close
+        target.close();
+        assertEquals(0, target.search("user").size());
+    }
+
+    @Test
+    public void sync_cancelledBeforeChanges_leavesVaultsUnchanged() throws Exception {
+        Runnable cancel = () -> {
+            throw new CancellationException("Operation cancelled");
+        };
+        try {
+            source.syncTo("target", sourcePath, cancel);
+            fail();
+        } catch (CancellationException ignored) {
+        }
+        assertTrue(source.getDeviceNames().isEmpty());
+
+        VaultUtils.SyncData syncData = source.syncTo(null, sourcePath);
+        try {
+            target.syncFrom(syncData, targetPath, cancel);
+            fail();
+        } catch (CancellationException ignored) {
+        }
+        assertEquals(0, target.getVaultEntries().size());
+    }
+
+    @Test
+    public void syncFrom_rejectsOutOfBudgetRootKdf() throws Exception {
+        VaultUtils.SyncData syncData = source.syncTo(null, sourcePath);
+
+        // QR code with sync root that needs gigabytes
+        JSONObject part = new JSONObject();
+        part.put("v", syncData.version);
+        part.put("salt", syncData.salt);
+        part.put("root_salt", syncData.rootSalt);
+        part.put("kdf", new CryptoUtils.KdfParams(1 << 20, 8, 4).toJSON());
+        JSONArray acts = new JSONArray();
+        for (String action : syncData.actions) acts.put(new JSONObject(action));
+        part.put("acts", acts);
+        try {
+            new VaultUtils.SyncData(new ArrayList<>(), null).addPart(part);
+            fail();
+        } catch (JSONException ignored) {
+        }
+
+        // Same parameters set directly are not derived either
+        syncData.rootKdfParams = new CryptoUtils.KdfParams(1 << 20, 8, 4);
+        assertFalse(target.syncFrom(syncData, targetPath));
+        assertEquals(0, target.getVaultEntries().size());
+
+        // Legacy root is accepted
+        part.put("kdf", CryptoUtils.KDF_LEGACY.toJSON());
+        VaultUtils.SyncData parsed = new VaultUtils.SyncData(new ArrayList<>(), null);
+        parsed.addPart(part);
+        assertTrue(target.syncFrom(parsed, targetPath));
+        assertEquals(10, target.getVaultEntries().size());
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void syncFrom_rejectsNewerFormat() throws Exception {
+        VaultUtils.SyncData syncData = source.syncTo(null, sourcePath);
+        syncData.version = VaultUtils.SYNC_VERSION + 1;
+        target.syncFrom(syncData, targetPath);
+    }
+}